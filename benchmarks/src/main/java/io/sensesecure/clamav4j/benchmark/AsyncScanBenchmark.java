@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j.benchmark;
+
+import io.sensesecure.clamav4j.ClamAVAsync;
+import io.sensesecure.clamav4j.ClamAVSource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of the asynchronous client for each connection mode.
+ * One operation starts {@code concurrency} scans and waits for all of them,
+ * so the scan rate is the operation rate times the concurrency.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncScanBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int size;
+
+    @Param({"1", "16", "256"})
+    public int concurrency;
+
+    @Param({"connection", "pool", "multiplexed"})
+    public String mode;
+
+    @Param({"stream", "buffer", "direct", "path"})
+    public String source;
+
+    @Param({"0", "1"})
+    public long latency;
+
+    private MockClamd mockClamd;
+    private ClamAVAsync clamAVAsync;
+    private ByteBuffer buffer;
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.mockClamd = new MockClamd(this.latency, null);
+        this.clamAVAsync = new ClamAVAsync(this.mockClamd.getAddress(), 0);
+        if ("pool".equals(this.mode)) {
+            this.clamAVAsync.setPool(this.clamAVAsync.newPool(Math.min(this.concurrency, POOL)));
+        } else if ("multiplexed".equals(this.mode)) {
+            this.clamAVAsync.setMultiplexer(this.clamAVAsync.newMultiplexer(SESSIONS, Math.max(1, this.concurrency / SESSIONS)));
+        }
+        if ("buffer".equals(this.source) || "direct".equals(this.source)) {
+            this.buffer = Payload.buffer(this.size, "direct".equals(this.source));
+        } else if ("path".equals(this.source)) {
+            this.file = Payload.file(this.size);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.clamAVAsync.close();
+        this.mockClamd.close();
+        if (this.file != null) {
+            Files.deleteIfExists(this.file);
+        }
+    }
+
+    @Benchmark
+    public void scan() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[this.concurrency];
+        for (int index = 0; index < this.concurrency; index++) {
+            futures[index] = this.clamAVAsync.scan(source());
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+    private ClamAVSource source() {
+        switch (this.source) {
+            case "buffer":
+            case "direct":
+                return ClamAVSource.of(this.buffer);
+            case "path":
+                return ClamAVSource.of(this.file);
+            default:
+                return ClamAVSource.of(Payload.stream(this.size));
+        }
+    }
+
+    protected static final int POOL = 64;
+    protected static final int SESSIONS = 4;
+}
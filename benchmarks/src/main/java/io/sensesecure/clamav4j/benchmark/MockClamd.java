@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j.benchmark;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process stand-in for clamd, speaking enough of its protocol for the
+ * benchmarks: INSTREAM, PING, VERSION and IDSESSION/END, with the z (NUL) and
+ * n (newline) command prefixes.
+ * <p>
+ * Stream content is read and discarded. Every verdict is the configured one,
+ * sent after the configured latency. In IDSESSION mode the replies are
+ * delayed independently, like clamd handing streams to its scanner threads,
+ * so pipelined requests overlap.
+ */
+public class MockClamd implements AutoCloseable {
+
+    private final ServerSocketChannel serverSocketChannel;
+    private final ExecutorService connections;
+    private final ScheduledExecutorService replies;
+    private volatile long latency;
+    private volatile String signature;
+    private Path directory;
+
+    /**
+     * Starts listening on an ephemeral loopback port.
+     *
+     * @param latency Milliseconds between the end of a stream and its verdict.
+     * @param signature Signature reported for every stream, null for clean.
+     * @throws IOException If the server socket could not be opened.
+     */
+    public MockClamd(long latency, String signature) throws IOException {
+        this(new InetSocketAddress("localhost", 0), latency, signature);
+    }
+
+    /**
+     * Starts listening on a TCP address, or on a local socket given a
+     * {@link UnixDomainSocketAddress}. The socket file is removed on close.
+     *
+     * @param address Address to listen on.
+     * @param latency Milliseconds between the end of a stream and its verdict.
+     * @param signature Signature reported for every stream, null for clean.
+     * @throws IOException If the server socket could not be opened.
+     */
+    public MockClamd(SocketAddress address, long latency, String signature) throws IOException {
+        this.latency = latency;
+        this.signature = signature;
+        this.serverSocketChannel = address instanceof UnixDomainSocketAddress ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+        this.serverSocketChannel.bind(address, 1024);
+        this.connections = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "mock-clamd");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.replies = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "mock-clamd-reply");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.connections.execute(this::accept);
+    }
+
+    /**
+     * Starts listening on a local socket in a new temporary directory.
+     *
+     * @param latency Milliseconds between the end of a stream and its verdict.
+     * @param signature Signature reported for every stream, null for clean.
+     * @return Running mock.
+     * @throws IOException If the server socket could not be opened.
+     */
+    public static MockClamd local(long latency, String signature) throws IOException {
+        Path directory = Files.createTempDirectory("clamd");
+        MockClamd mockClamd = new MockClamd(UnixDomainSocketAddress.of(directory.resolve("clamd.ctl")), latency, signature);
+        mockClamd.directory = directory;
+        return mockClamd;
+    }
+
+    public SocketAddress getAddress() throws IOException {
+        return this.serverSocketChannel.getLocalAddress();
+    }
+
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    public void setSignature(String signature) {
+        this.signature = signature;
+    }
+
+    @Override
+    public void close() throws IOException {
+        SocketAddress address = this.serverSocketChannel.getLocalAddress();
+        this.serverSocketChannel.close();
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        }
+        if (this.directory != null) {
+            Files.deleteIfExists(this.directory);
+        }
+        this.connections.shutdownNow();
+        this.replies.shutdownNow();
+    }
+
+    private void accept() {
+        while (this.serverSocketChannel.isOpen()) {
+            try {
+                final SocketChannel socketChannel = this.serverSocketChannel.accept();
+                this.connections.execute(() -> serve(socketChannel));
+            } catch (IOException ex) {
+                if (this.serverSocketChannel.isOpen()) {
+                    Logger.getLogger(MockClamd.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    private void serve(SocketChannel socketChannel) {
+        ByteBuffer input = ByteBuffer.allocate(65536);
+        input.flip();
+        boolean session = false;
+        int id = 0;
+        try (SocketChannel channel = socketChannel) {
+            while (true) {
+                String command = command(channel, input);
+                if (command == null) {
+                    return;
+                }
+                char delimiter = command.charAt(0) == 'n' ? '\n' : '\0';
+                String name = command.substring(1);
+                if ("IDSESSION".equals(name)) {
+                    session = true;
+                    continue;
+                }
+                if ("END".equals(name)) {
+                    return;
+                }
+                id++;
+                String reply;
+                long delay = 0;
+                if ("PING".equals(name)) {
+                    reply = "PONG";
+                } else if ("VERSION".equals(name)) {
+                    reply = VERSION;
+                } else if ("INSTREAM".equals(name)) {
+                    discardStream(channel, input);
+                    String found = this.signature;
+                    reply = found == null ? "stream: OK" : "stream: " + found + " FOUND";
+                    delay = this.latency;
+                } else {
+                    reply = "UNKNOWN COMMAND";
+                }
+                byte[] bytes = ((session ? id + ": " : "") + reply + delimiter).getBytes(StandardCharsets.US_ASCII);
+                if (session && delay > 0) {
+                    this.replies.schedule(() -> send(channel, bytes), delay, TimeUnit.MILLISECONDS);
+                } else {
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    send(channel, bytes);
+                }
+                if (!session) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            Logger.getLogger(MockClamd.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    private static void send(SocketChannel channel, byte[] bytes) {
+        synchronized (channel) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(MockClamd.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+
+    private static String command(SocketChannel channel, ByteBuffer input) throws IOException {
+        StringBuilder command = new StringBuilder();
+        while (true) {
+            if (!input.hasRemaining() && !fill(channel, input)) {
+                return null;
+            }
+            byte b = input.get();
+            if (b == 0 || b == '\n') {
+                return command.length() == 0 ? null : command.toString();
+            }
+            command.append((char) b);
+        }
+    }
+
+    private static void discardStream(SocketChannel channel, ByteBuffer input) throws IOException {
+        while (true) {
+            long length = readInt(channel, input) & 0xffffffffL;
+            if (length == 0) {
+                return;
+            }
+            while (length > 0) {
+                if (!input.hasRemaining() && !fill(channel, input)) {
+                    throw new EOFException();
+                }
+                int skip = (int) Math.min(length, input.remaining());
+                input.position(input.position() + skip);
+                length -= skip;
+            }
+        }
+    }
+
+    private static int readInt(SocketChannel channel, ByteBuffer input) throws IOException {
+        while (input.remaining() < 4) {
+            if (!fill(channel, input)) {
+                throw new EOFException();
+            }
+        }
+        return input.getInt();
+    }
+
+    private static boolean fill(SocketChannel channel, ByteBuffer input) throws IOException {
+        input.compact();
+        try {
+            return channel.read(input) > 0;
+        } finally {
+            input.flip();
+        }
+    }
+
+    /**
+     * Runs a mock on a port, or on a local socket if the first argument is a
+     * path.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String listen = args.length > 0 ? args[0] : "3310";
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        String signature = args.length > 2 ? args[2] : null;
+        SocketAddress address = listen.chars().allMatch(Character::isDigit) ? new InetSocketAddress("localhost", Integer.parseInt(listen)) : UnixDomainSocketAddress.of(listen);
+        try (MockClamd mockClamd = new MockClamd(address, latency, signature)) {
+            System.out.println("Mock clamd listening on " + mockClamd.getAddress());
+            Thread.currentThread().join();
+        }
+    }
+
+    protected static final String VERSION = "ClamAV 0.103.8/26734/Mon Dec  5 08:00:00 2022";
+}
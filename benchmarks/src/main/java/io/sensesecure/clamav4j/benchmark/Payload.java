@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Benchmark payloads of a given size that do not keep the whole content in
+ * memory unless asked to.
+ */
+public final class Payload {
+
+    private Payload() {
+    }
+
+    /**
+     * @param size Number of bytes in the stream.
+     * @return Stream of non-zero filler bytes.
+     */
+    public static InputStream stream(final long size) {
+        return new InputStream() {
+
+            private long remaining = size;
+
+            @Override
+            public int read() {
+                if (this.remaining <= 0) {
+                    return -1;
+                }
+                this.remaining--;
+                return FILLER;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (this.remaining <= 0) {
+                    return -1;
+                }
+                int length = (int) Math.min(len, this.remaining);
+                Arrays.fill(b, off, off + length, (byte) FILLER);
+                this.remaining -= length;
+                return length;
+            }
+        };
+    }
+
+    /**
+     * @param size Number of bytes in the buffer.
+     * @param direct true for an off-heap buffer.
+     * @return Buffer of filler bytes.
+     */
+    public static ByteBuffer buffer(int size, boolean direct) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) FILLER);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Creates a temporary file, sparse where the file system allows it, so
+     * gigabyte payloads are cheap to set up.
+     *
+     * @param size Length of the file.
+     * @return Path of the file, deleted when the JVM exits.
+     * @throws IOException If the file could not be created.
+     */
+    public static Path file(long size) throws IOException {
+        Path path = Files.createTempFile("clamav4j-benchmark", ".bin");
+        path.toFile().deleteOnExit();
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(size);
+        }
+        return path;
+    }
+
+    private static final int FILLER = 'x';
+}
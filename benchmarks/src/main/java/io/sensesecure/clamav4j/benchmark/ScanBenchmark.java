@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j.benchmark;
+
+import io.sensesecure.clamav4j.ClamAV;
+import io.sensesecure.clamav4j.ClamAVException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of the blocking client, comparing the InputStream
+ * and FileChannel paths, over loopback TCP and a local socket. Concurrency is set with the JMH thread count, e.g.
+ * {@code -t 16}; the pool is sized for up to {@value #POOL} threads.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216", "1073741824"})
+    public long size;
+
+    @Param({"connection", "pool"})
+    public String mode;
+
+    @Param({"0", "1"})
+    public long latency;
+
+    @Param({"tcp", "unix"})
+    public String transport;
+
+    private MockClamd mockClamd;
+    private ClamAV clamAV;
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.mockClamd = "unix".equals(this.transport) ? MockClamd.local(this.latency, null) : new MockClamd(this.latency, null);
+        this.clamAV = new ClamAV(this.mockClamd.getAddress(), 0);
+        if ("pool".equals(this.mode)) {
+            this.clamAV.setPool(ClamAV.newPool(this.mockClamd.getAddress(), POOL));
+        }
+        this.file = Payload.file(this.size);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (this.clamAV.getPool() != null) {
+            this.clamAV.getPool().close();
+        }
+        this.mockClamd.close();
+        Files.deleteIfExists(this.file);
+    }
+
+    @Benchmark
+    public String inputStream() throws IOException, ClamAVException {
+        return this.clamAV.scan(Payload.stream(this.size));
+    }
+
+    @Benchmark
+    public String fileChannel() throws IOException, ClamAVException {
+        try (FileChannel fileChannel = FileChannel.open(this.file)) {
+            return this.clamAV.scan(fileChannel);
+        }
+    }
+
+    protected static final int POOL = 64;
+}
@@ -15,75 +15,915 @@
  */
 package io.sensesecure.clamav4j;
 
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class ClamAV {
 
-    private InetSocketAddress address;
+    /**
+     * Commands that have clamd read files from its own filesystem.
+     */
+    public enum Command {
+        /**
+         * Scans a file or directory, stopping at the first infected file.
+         */
+        SCAN,
+        /**
+         * Scans a directory completely.
+         */
+        CONTSCAN,
+        /**
+         * Scans a directory completely, with the thread pool of clamd.
+         */
+        MULTISCAN,
+        /**
+         * Scans a directory completely, reporting every signature that
+         * matches a file rather than the first one.
+         */
+        ALLMATCHSCAN
+    }
+
+    private SocketAddress address;
     private int timeout;
+    private int connectTimeout;
+    private int writeTimeout;
+    private int replyTimeout;
+    private ClamAVPool<SocketChannel> pool;
+    private ClamAVCache cache;
+    private ClamAVCoalescer coalescer;
+    private ClamAVLimiter limiter;
+    private ClamAVHealth health;
+    private int chunkSize = defaultChunkSize;
+    private long streamMaxLength = 0;
+    private ExecutorService executor;
+    private ClamAVMetrics metrics = ClamAVMetrics.NONE;
 
-    public ClamAV(InetSocketAddress address, int timeout) {
+    public ClamAV(SocketAddress address, int timeout) {
         this.address = address;
-        this.timeout = timeout;
+        setTimeout(timeout);
     }
 
+    public ClamAV(InetSocketAddress address, int timeout) {
+        this((SocketAddress) address, timeout);
+    }
+
+    /**
+     * @return TCP address of clamd, null if it is reached over a local socket.
+     * @deprecated Use {@link #getSocketAddress}, which returns local socket
+     * addresses as well.
+     */
+    @Deprecated
     public InetSocketAddress getAddress() {
-        return this.address;
+        return this.address instanceof InetSocketAddress ? (InetSocketAddress) this.address : null;
     }
 
+    /**
+     * @deprecated Use {@link #setSocketAddress}.
+     */
+    @Deprecated
     public void setAddress(InetSocketAddress address) {
         this.address = address;
     }
 
+    public SocketAddress getSocketAddress() {
+        return this.address;
+    }
+
+    /**
+     * @param address TCP or local socket address of clamd.
+     */
+    public void setSocketAddress(SocketAddress address) {
+        this.address = address;
+    }
+
     public int getTimeout() {
         return this.timeout;
     }
 
+    /**
+     * Sets the timeout of requests, and of each phase of a scan.
+     *
+     * @param timeout Milliseconds, 0 for no limit.
+     */
     public void setTimeout(int timeout) {
         this.timeout = timeout;
+        this.connectTimeout = timeout;
+        this.writeTimeout = timeout;
+        this.replyTimeout = timeout;
+    }
+
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout Milliseconds until a connection to clamd must be
+     * established, 0 for no limit.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return this.writeTimeout;
+    }
+
+    /**
+     * @param writeTimeout Milliseconds clamd may go without accepting any
+     * content, 0 for no limit. It bounds a stall rather than the whole upload,
+     * so large content is not cut short.
+     */
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public int getReplyTimeout() {
+        return this.replyTimeout;
+    }
+
+    /**
+     * @param replyTimeout Milliseconds between the end of the content and the
+     * verdict, 0 for no limit.
+     */
+    public void setReplyTimeout(int replyTimeout) {
+        this.replyTimeout = replyTimeout;
+    }
+
+    public ClamAVPool<SocketChannel> getPool() {
+        return this.pool;
+    }
+
+    /**
+     * Routes requests through pooled IDSESSION connections instead of opening
+     * a connection per request.
+     *
+     * @param pool Pool created with {@link #newPool}, or null to disable.
+     */
+    public void setPool(ClamAVPool<SocketChannel> pool) {
+        this.pool = pool;
+    }
+
+    public ClamAVCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Answers repeated scans of the same content from a cache of results.
+     *
+     * @param cache Cache of results, or null to disable.
+     */
+    public void setCache(ClamAVCache cache) {
+        this.cache = cache;
+    }
+
+    public ClamAVCoalescer getCoalescer() {
+        return this.coalescer;
+    }
+
+    /**
+     * Sends concurrent scans of the same content to clamd once, and hands
+     * the verdict to all of them. Scans answered by the cache never get this
+     * far, and content digested for a cache with the default algorithm is
+     * keyed by that digest instead of being read once more.
+     *
+     * @param coalescer Coalescer shared by the scans, or null to disable.
+     */
+    public void setCoalescer(ClamAVCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    public ClamAVLimiter getLimiter() {
+        return this.limiter;
+    }
+
+    /**
+     * Holds back requests beyond a limit adapted to the load of clamd, which
+     * is polled with STATS in the background.
+     *
+     * @param limiter Limiter, which may be shared with other clients of the
+     * same clamd, or null to disable.
+     */
+    public void setLimiter(ClamAVLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public ClamAVHealth getHealth() {
+        return this.health;
+    }
+
+    /**
+     * Fails scans at once while clamd is known to be down, instead of
+     * letting each of them wait for a timeout. The version seen by the
+     * background checks of the health also saves the version requests of
+     * the cache.
+     *
+     * @param health Circuit breaker of the clamd at the address of this
+     * client, which may be shared with other clients of it, or null to
+     * disable.
+     */
+    public void setHealth(ClamAVHealth health) {
+        this.health = health;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
     }
 
+    /**
+     * Sets how many bytes are sent per INSTREAM chunk. Larger chunks need
+     * fewer writes; clamd accepts chunks of any size up to its
+     * StreamMaxLength.
+     *
+     * @param chunkSize Maximum number of bytes per chunk.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public long getStreamMaxLength() {
+        return this.streamMaxLength;
+    }
+
+    /**
+     * Sets the StreamMaxLength of clamd, so content known to be larger, e.g.
+     * a file or a buffer, fails with {@link ClamAVSizeLimitException} before
+     * anything is sent. clamd does not report its limit, so it has to be
+     * taken from clamd.conf. Content of unknown size is stopped by clamd.
+     *
+     * @param streamMaxLength Maximum number of bytes, 0 to leave it to clamd.
+     */
+    public void setStreamMaxLength(long streamMaxLength) {
+        this.streamMaxLength = streamMaxLength;
+    }
+
+    public ClamAVMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sets the receiver of the measurements of every scan, e.g. a
+     * {@link ClamAVStatistics}.
+     *
+     * @param metrics Receiver of the measurements.
+     */
+    public void setMetrics(ClamAVMetrics metrics) {
+        this.metrics = metrics == null ? ClamAVMetrics.NONE : metrics;
+    }
+
+    public ExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Sets the executor {@link #submit} runs blocking scans on. With virtual
+     * threads, see {@link #newVirtualThreadExecutor}, every scan may have its
+     * own thread even at tens of thousands of concurrent scans.
+     *
+     * @param executor Executor for submitted scans, or null for a shared
+     * default one.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Runs a blocking scan on the executor of this instance. Unless another
+     * executor is set, scans run on a shared executor that starts a virtual
+     * thread per scan where the JVM supports it, and a platform thread
+     * otherwise.
+     *
+     * @param source Content to be scanned, closed once the scan is over.
+     * @return Future verdict.
+     */
+    public CompletableFuture<ClamAVScanResult> submit(final ClamAVSource source) {
+        final CompletableFuture<ClamAVScanResult> future = new CompletableFuture<>();
+        try {
+            (this.executor == null ? sharedExecutor() : this.executor).execute(() -> {
+                try {
+                    future.complete(ClamAVScanResult.valueOf(scan(source)));
+                } catch (IOException | ClamAVException | RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            try {
+                source.close();
+            } catch (IOException closeException) {
+                ex.addSuppressed(closeException);
+            }
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    public CompletableFuture<ClamAVScanResult> submit(Path path) {
+        return submit(ClamAVSource.of(path, this.chunkSize));
+    }
+
+    /**
+     * Scans a file, sent chunk by chunk with {@link FileChannel#transferTo}
+     * so the content does not go through the heap.
+     *
+     * @param fileChannel File to be scanned.
+     * @return "OK", or the name of the matched signature.
+     * @throws IOException If the content could not be sent.
+     * @throws ClamAVException If clamd reported an error.
+     */
     public String scan(FileChannel fileChannel) throws IOException, ClamAVException {
-        return scan(fileChannel, this.address, this.timeout);
+        return scan(ClamAVSource.of(fileChannel, this.chunkSize));
+    }
+
+    /**
+     * Scans a slice of a file, e.g. to scan a file larger than the
+     * StreamMaxLength of clamd piece by piece.
+     *
+     * @param fileChannel File to be scanned.
+     * @param position Offset of the first byte to scan.
+     * @param length Number of bytes to scan, cut short at the end of the
+     * file.
+     * @return "OK", or the name of the matched signature.
+     * @throws IOException If the content could not be sent.
+     * @throws ClamAVException If clamd reported an error.
+     */
+    public String scan(FileChannel fileChannel, long position, long length) throws IOException, ClamAVException {
+        return scan(ClamAVSource.of(fileChannel, position, length, this.chunkSize));
+    }
+
+    public String scan(Path path) throws IOException, ClamAVException {
+        return scan(ClamAVSource.of(path, this.chunkSize));
+    }
+
+    public String scan(Path path, long position, long length) throws IOException, ClamAVException {
+        return scan(ClamAVSource.of(path, position, length, this.chunkSize));
     }
 
     public String scan(InputStream inputStream) throws IOException, ClamAVException {
-        return scan(inputStream, this.address, this.timeout);
+        return scan(ClamAVSource.of(inputStream, this.chunkSize));
+    }
+
+    /**
+     * Scans the remaining bytes of a buffer, written to the socket in slices
+     * without being copied. Direct and mapped buffers go to the socket as they
+     * are. The position of the buffer is not changed.
+     *
+     * @param byteBuffer Content to be scanned.
+     * @return "OK", or the name of the matched signature.
+     * @throws IOException If the content could not be sent.
+     * @throws ClamAVException If clamd reported an error.
+     */
+    public String scan(ByteBuffer byteBuffer) throws IOException, ClamAVException {
+        return scan(ClamAVSource.of(byteBuffer, this.chunkSize));
+    }
+
+    /**
+     * Scans the remaining bytes of several buffers as one stream, e.g. an
+     * upload received in pieces.
+     *
+     * @param byteBuffers Content to be scanned.
+     * @return "OK", or the name of the matched signature.
+     * @throws IOException If the content could not be sent.
+     * @throws ClamAVException If clamd reported an error.
+     */
+    public String scan(ByteBuffer[] byteBuffers) throws IOException, ClamAVException {
+        return scan(ClamAVSource.of(byteBuffers, this.chunkSize));
+    }
+
+    /**
+     * Scans content handed out by a source.
+     *
+     * @param source Content to be scanned, closed once the scan is over.
+     * @return "OK", or the name of the matched signature.
+     * @throws IOException If the content could not be sent.
+     * @throws ClamAVException If clamd reported an error.
+     */
+    public String scan(ClamAVSource source) throws IOException, ClamAVException {
+        ClamAVScanTrace trace = new ClamAVScanTrace(this.metrics, this.address);
+        try (source) {
+            checkSize(source, this.streamMaxLength);
+            String status = this.cache != null ? cached(source, trace) : send(source, trace);
+            trace.completed(status);
+            return status;
+        } catch (IOException | ClamAVException | RuntimeException ex) {
+            trace.failed(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Rejects content whose size is known to exceed the StreamMaxLength of
+     * clamd, rather than streaming it until clamd stops it.
+     *
+     * @param source Content to be scanned.
+     * @param streamMaxLength Maximum number of bytes, 0 for no check.
+     * @throws IOException If the size could not be read.
+     * @throws ClamAVSizeLimitException If the content is too large.
+     */
+    static void checkSize(ClamAVSource source, long streamMaxLength) throws IOException, ClamAVSizeLimitException {
+        if (streamMaxLength <= 0) {
+            return;
+        }
+        long size = source.size();
+        if (size > streamMaxLength) {
+            throw new ClamAVSizeLimitException("Content of " + size + " bytes exceeds the StreamMaxLength of " + streamMaxLength + " bytes");
+        }
+    }
+
+    private String send(ClamAVSource source, ClamAVScanTrace trace) throws IOException, ClamAVException {
+        return send(source, trace, null);
+    }
+
+    /**
+     * @param digested Digest of the content taken for the cache, which keys
+     * the scan in the coalescer as well, or null.
+     */
+    private String send(ClamAVSource source, ClamAVScanTrace trace, ClamAVCache.ClamAVDigestSource digested) throws IOException, ClamAVException {
+        ClamAVCoalescer flights = this.coalescer;
+        if (flights == null) {
+            return transmit(source, trace);
+        }
+        ClamAVCoalescer.ClamAVFlight flight = digested == null ? null : flights.prepare(source, digested.getAlgorithm(), digested.getDigest(), digested.getSize(), this.chunkSize);
+        if (flight == null) {
+            flight = source.rewind() ? flights.prepare(source, this.chunkSize) : prepare(flights, source, this.chunkSize);
+        }
+        for (boolean retried = false;; retried = true) {
+            if (flights.join(flight)) {
+                try {
+                    String status = transmit(flight.getSource(), trace);
+                    flights.land(flight, ClamAVScanResult.valueOf(status), null);
+                    return status;
+                } catch (IOException | ClamAVException | RuntimeException ex) {
+                    flights.land(flight, null, ex);
+                    throw ex;
+                }
+            }
+            try {
+                return flight.await().getStatus();
+            } catch (IOException ex) {
+                // The scan that was sent failed on its way, not on the content, so try once more.
+                if (retried || Thread.currentThread().isInterrupted() || !flight.getSource().rewind()) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffers content read only once on another thread, as it may be fed by
+     * the calling thread, e.g. through a {@link ClamAVPipe}.
+     */
+    private static ClamAVCoalescer.ClamAVFlight prepare(final ClamAVCoalescer flights, final ClamAVSource source, final int chunkSize) throws IOException {
+        final CompletableFuture<ClamAVCoalescer.ClamAVFlight> prepared = new CompletableFuture<>();
+        try {
+            sharedExecutor().execute(() -> {
+                try {
+                    prepared.complete(flights.prepare(source, chunkSize));
+                } catch (IOException | RuntimeException ex) {
+                    prepared.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            throw new IOException(ex);
+        }
+        try {
+            return prepared.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * @return Version seen by the background checks of the health if there
+     * are any, or else retrieved from clamd.
+     */
+    private ClamAVVersion checkedVersion() {
+        ClamAVHealth monitor = this.health;
+        ClamAVVersion version = monitor != null && monitor.getCheckInterval() > 0 ? monitor.getVersion() : null;
+        return version != null ? version : getVersion();
+    }
+
+    private String transmit(ClamAVSource source, ClamAVScanTrace trace) throws IOException, ClamAVException {
+        final ClamAVHealth breaker = this.health;
+        final ClamAVLimiter gate = this.limiter;
+        if (breaker == null && gate == null) {
+            return exchange(source, trace);
+        }
+        admit(breaker, gate);
+        Throwable error = null;
+        try {
+            return exchange(source, trace);
+        } catch (IOException | ClamAVException | RuntimeException ex) {
+            error = ex;
+            throw ex;
+        } finally {
+            if (gate != null) {
+                gate.release(trace, error);
+            }
+            if (breaker != null) {
+                if (trace.isSourceFailure(error)) {
+                    breaker.cancel();
+                } else {
+                    breaker.record(error);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets a request through the health breaker, then waits for a slot of
+     * the limiter, as far as either is set.
+     */
+    private void admit(ClamAVHealth breaker, ClamAVLimiter gate) throws IOException {
+        if (breaker != null) {
+            breaker.acquire();
+        }
+        if (gate != null) {
+            if (gate.isStatsCheckDue()) {
+                poll(gate);
+            }
+            try {
+                gate.acquire();
+            } catch (InterruptedIOException ex) {
+                if (breaker != null) {
+                    breaker.cancel();
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Passes the STATS of clamd to a limiter, without holding up the caller.
+     */
+    void poll(final ClamAVLimiter gate) {
+        try {
+            sharedExecutor().execute(() -> gate.update(getStats()));
+        } catch (RejectedExecutionException ex) {
+            Logger.getLogger(ClamAV.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    /**
+     * Checks the database version for a cache, without holding up the caller.
+     */
+    private void refresh(final ClamAVCache resultCache) {
+        try {
+            sharedExecutor().execute(() -> resultCache.validate(checkedVersion()));
+        } catch (RejectedExecutionException ex) {
+            Logger.getLogger(ClamAV.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    private String exchange(ClamAVSource source, ClamAVScanTrace trace) throws IOException, ClamAVException {
+        if (this.pool != null) {
+            return session(this.pool, INSTREAM, source, timeouts(), trace).getScanResult().getStatus();
+        }
+        return scan(source, this.address, timeouts(), trace);
+    }
+
+    private ClamAVTimeouts timeouts() {
+        return new ClamAVTimeouts(this.connectTimeout, this.writeTimeout, this.replyTimeout);
+    }
+
+    /**
+     * Content that can be read twice is digested before it is sent, so a hit
+     * saves the round trip to clamd. Other content is digested while it is
+     * streamed, and only its result is stored. Once the database version is
+     * known, it is checked again in the background by a single scan.
+     */
+    private String cached(ClamAVSource source, ClamAVScanTrace trace) throws IOException, ClamAVException {
+        ClamAVCache resultCache = this.cache;
+        long version = resultCache.getDatabaseVersion();
+        if (resultCache.isVersionCheckDue()) {
+            if (version < 0) {
+                version = resultCache.validate(checkedVersion());
+            } else {
+                refresh(resultCache);
+            }
+        }
+        if (source.rewind()) {
+            ClamAVCache.ClamAVDigestSource digested = new ClamAVCache.ClamAVDigestSource(source, resultCache.newDigest());
+            while (digested.next() != null) {
+                // Only the digest is needed.
+            }
+            source.rewind();
+            ClamAVScanResult result = resultCache.get(digested.getDigest());
+            if (result != null) {
+                return result.getStatus();
+            }
+            String status = send(source, trace, digested);
+            resultCache.put(digested.getDigest(), version, ClamAVScanResult.valueOf(status));
+            return status;
+        }
+        ClamAVCache.ClamAVDigestSource digestSource = new ClamAVCache.ClamAVDigestSource(source, resultCache.newDigest());
+        String status = send(digestSource, trace);
+        resultCache.put(digestSource.getDigest(), version, ClamAVScanResult.valueOf(status));
+        return status;
+    }
+
+    /**
+     * Has clamd read the files below a path itself, for deployments where
+     * clamd sees the same filesystem, so no content goes through the
+     * connection. Results are reported as clamd sends them, one line per
+     * file. Files and directories clamd cannot open but this process can
+     * read, e.g. because clamd runs on another host or as another user, are
+     * streamed with INSTREAM afterwards; other errors are reported as they
+     * are. The reply timeout limits the wait for each line.
+     * <p>
+     * The command takes a slot of the health breaker and the limiter like
+     * any scan, but its own connection rather than a pooled session, as
+     * clamd marks no end of the replies to a path within IDSESSION. The
+     * listener is called while the slot is held, so it should not scan
+     * through this client if the limiter may be down to one slot.
+     *
+     * @param path File or directory to be scanned.
+     * @param command How clamd walks the path.
+     * @param listener Receives the result of every file.
+     * @return Totals of the scan. Only bytes streamed with INSTREAM are
+     * counted, clamd does not report the size of the files it read.
+     * @throws IOException If clamd could not be reached, or its health breaker
+     * is open.
+     * @throws ClamAVException If clamd rejected the command.
+     */
+    public ClamAVDirectoryScanner.ClamAVScanSummary scan(Path path, Command command, Consumer<ClamAVDirectoryScanner.ClamAVFileResult> listener) throws IOException, ClamAVException {
+        long start = System.nanoTime();
+        String requested = path.toAbsolutePath().normalize().toString();
+        ClamAVPathScan pathScan = new ClamAVPathScan(listener);
+        List<Path> unreadable = new ArrayList<>();
+        final ClamAVHealth breaker = this.health;
+        final ClamAVLimiter gate = this.limiter;
+        admit(breaker, gate);
+        Throwable error = null;
+        try (SocketChannel socketChannel = connect(this.address, this.connectTimeout)) {
+            socketChannel.write(ByteBuffer.wrap(("z" + command.name() + " " + requested + "\0").getBytes(StandardCharsets.UTF_8)));
+            // Not the decoder of the thread, which streaming a file from the listener would reuse.
+            ClamAVReplyDecoder decoder = new ClamAVReplyDecoder();
+            while (next(socketChannel, decoder, this.replyTimeout)) {
+                String reported = decoder.getPath(requested.length() - 1);
+                if (reported == null) {
+                    throw new ClamAVException(decoder.getReply());
+                }
+                if (!decoder.isFileResult()) {
+                    continue;
+                }
+                Path file = Paths.get(reported);
+                if (decoder.isAccessError() && Files.isReadable(file)) {
+                    unreadable.add(file);
+                    continue;
+                }
+                try {
+                    pathScan.report(file, 0, decoder.getFileResult(), null);
+                } catch (ClamAVException ex) {
+                    pathScan.report(file, 0, null, ex);
+                }
+            }
+        } catch (IOException | ClamAVException | RuntimeException ex) {
+            error = ex;
+            throw ex;
+        } finally {
+            if (gate != null) {
+                // The time to walk a path says nothing about the load of clamd.
+                if (error instanceof IOException) {
+                    gate.release(0, true);
+                } else {
+                    gate.release();
+                }
+            }
+            if (breaker != null) {
+                breaker.record(error);
+            }
+        }
+        for (Path file : unreadable) {
+            stream(file, pathScan);
+        }
+        return pathScan.summary((System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Streams the regular files below a path that clamd could not read.
+     */
+    private void stream(Path path, final ClamAVPathScan pathScan) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes basicFileAttributes) {
+                if (basicFileAttributes.isRegularFile()) {
+                    try {
+                        pathScan.report(file, basicFileAttributes.size(), ClamAVScanResult.valueOf(scan(file)), null);
+                    } catch (IOException | ClamAVException ex) {
+                        pathScan.report(file, 0, null, ex);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                pathScan.report(file, 0, null, ex);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Reads the next of several replies to one command under a watchdog.
+     *
+     * @return false once clamd has closed the connection.
+     */
+    private static boolean next(SocketChannel socketChannel, ClamAVReplyDecoder decoder, int timeout) throws IOException {
+        ClamAVTimeouts.ClamAVWatchdog watchdog = ClamAVTimeouts.watch(socketChannel, timeout);
+        try {
+            while (!decoder.next()) {
+                if (socketChannel.read(decoder.getBuffer()) < 0) {
+                    return decoder.finish();
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            if (watchdog.isExpired()) {
+                throw (ClamAVReplyTimeoutException) new ClamAVReplyTimeoutException("No reply from clamd within " + timeout + " ms").initCause(ex);
+            }
+            throw ex;
+        } finally {
+            watchdog.cancel();
+        }
+    }
+
+    /**
+     * Counts the results of a path scan and passes them on. ALLMATCHSCAN
+     * reports a file once per signature, on consecutive lines, so those count
+     * as one file.
+     */
+    private static class ClamAVPathScan {
+
+        private final Consumer<ClamAVDirectoryScanner.ClamAVFileResult> listener;
+        private Path previous;
+        private long files = 0;
+        private long bytes = 0;
+        private long infected = 0;
+        private long errors = 0;
+
+        private ClamAVPathScan(Consumer<ClamAVDirectoryScanner.ClamAVFileResult> listener) {
+            this.listener = listener;
+        }
+
+        private void report(Path path, long size, ClamAVScanResult result, Throwable error) {
+            if (!path.equals(this.previous)) {
+                this.previous = path;
+                this.files++;
+                this.bytes += size;
+                if (error != null) {
+                    this.errors++;
+                } else if (result.isInfected()) {
+                    this.infected++;
+                }
+            }
+            this.listener.accept(new ClamAVDirectoryScanner.ClamAVFileResult(path, size, result, error));
+        }
+
+        private ClamAVDirectoryScanner.ClamAVScanSummary summary(long elapsed) {
+            return new ClamAVDirectoryScanner.ClamAVScanSummary(this.files, this.bytes, this.infected, this.errors, elapsed);
+        }
     }
 
     public boolean ping() {
+        if (this.pool != null) {
+            return ping(this.pool, this.timeout);
+        }
         return ping(this.address, this.timeout);
     }
 
+    /**
+     * Creates an executor that starts a virtual thread for every task.
+     *
+     * @return New executor, to be shut down by the caller.
+     * @throws UnsupportedOperationException If the JVM has no virtual threads,
+     * which need Java 21.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Looked up at run time, so the library still runs on Java 17.
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException ex) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21", ex);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static synchronized ExecutorService sharedExecutor() {
+        if (sharedExecutor == null) {
+            try {
+                sharedExecutor = newVirtualThreadExecutor();
+            } catch (UnsupportedOperationException ex) {
+                Logger.getLogger(ClamAV.class.getName()).log(Level.FINE, "Virtual threads unavailable, using platform threads", ex);
+                sharedExecutor = Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "clamav4j-scan");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Creates a pool of IDSESSION connections to a clamd daemon.
+     *
+     * @param address Address where the ClamAV is running.
+     * @param maxSessions Maximum number of sessions in use at the same time.
+     * @return Pool to be passed to {@link #setPool}.
+     */
+    public static ClamAVPool<SocketChannel> newPool(SocketAddress address, int maxSessions) {
+        return newPool(address, maxSessions, defaultTimeout);
+    }
+
+    /**
+     * Creates a pool of IDSESSION connections to a clamd daemon.
+     *
+     * @param address Address where the ClamAV is running.
+     * @param maxSessions Maximum number of sessions in use at the same time.
+     * @param connectTimeout Milliseconds until a new session must be
+     * connected, 0 for no limit.
+     * @return Pool to be passed to {@link #setPool}.
+     */
+    public static ClamAVPool<SocketChannel> newPool(SocketAddress address, int maxSessions, int connectTimeout) {
+        return new ClamAVPool<>(new ClamAVSessionConnector(address, connectTimeout), maxSessions);
+    }
+
     public static boolean ping(InetSocketAddress address, int timeout) {
-        try (SocketChannel socketChannel = SocketChannel.open(address)) {
+        return ping((SocketAddress) address, timeout);
+    }
+
+    public static boolean ping(SocketAddress address, int timeout) {
+        try {
+            return pong(address, timeout);
+        } catch (IOException ex) {
+            Logger.getLogger(ClamAV.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return false;
+    }
+
+    /**
+     * Sends PING without logging failures, for callers that check a daemon
+     * repeatedly.
+     *
+     * @param address Address where the ClamAV is running.
+     * @param timeout Timeout for the request.
+     * @return true if clamd answered PONG.
+     * @throws IOException If clamd could not be reached.
+     */
+    public static boolean pong(SocketAddress address, int timeout) throws IOException {
+        try (SocketChannel socketChannel = connect(address, timeout)) {
             socketChannel.write((ByteBuffer) ByteBuffer.wrap(PING));
 
-            socketChannel.socket().setSoTimeout(timeout);
+            return reply(socketChannel, timeout).is(PONG);
+        }
+    }
 
-            ByteBuffer data = ByteBuffer.allocate(1024);
-            socketChannel.read(data);
-            String status = new String(data.array());
-            status = status.substring(0, status.indexOf(0));
-            if (PONG.equals(status)) {
-                return true;
-            }
+    public static boolean ping(ClamAVPool<SocketChannel> pool, int timeout) {
+        try {
+            return session(pool, PING, null, ClamAVTimeouts.of(timeout), ClamAVScanTrace.NONE).is(PONG);
         } catch (IOException ex) {
             Logger.getLogger(ClamAV.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -91,68 +931,391 @@ public class ClamAV {
     }
 
     public static String scan(FileChannel fileChannel, InetSocketAddress address, int timeout) throws IOException, ClamAVException {
-        try (SocketChannel socketChannel = SocketChannel.open(address)) {
+        return scan(fileChannel, (SocketAddress) address, timeout);
+    }
+
+    public static String scan(InputStream inputStream, InetSocketAddress address, int timeout) throws IOException, ClamAVException {
+        return scan(inputStream, (SocketAddress) address, timeout);
+    }
+
+    public static String scan(FileChannel fileChannel, SocketAddress address, int timeout) throws IOException, ClamAVException {
+        return scan(ClamAVSource.of(fileChannel), address, timeout);
+    }
+
+    public static String scan(InputStream inputStream, SocketAddress address, int timeout) throws IOException, ClamAVException {
+        return scan(ClamAVSource.of(inputStream), address, timeout);
+    }
+
+    public static String scan(ClamAVSource source, SocketAddress address, int timeout) throws IOException, ClamAVException {
+        return scan(source, address, ClamAVTimeouts.of(timeout), ClamAVScanTrace.NONE);
+    }
+
+    static String scan(ClamAVSource source, SocketAddress address, ClamAVTimeouts timeouts, ClamAVScanTrace trace) throws IOException, ClamAVException {
+        try (SocketChannel socketChannel = connect(address, timeouts.connect)) {
+            trace.connected();
             socketChannel.write((ByteBuffer) ByteBuffer.wrap(INSTREAM));
-            ByteBuffer size = ByteBuffer.allocate(4);
+            boolean replied = instream(socketChannel, source, timeouts.write, trace);
+            trace.uploaded();
+
+            String status = reply(socketChannel, timeouts.reply, replied).getScanResult().getStatus();
+            trace.replied();
+            return status;
+        }
+    }
+
+    public static String scan(FileChannel fileChannel, ClamAVPool<SocketChannel> pool, int timeout) throws IOException, ClamAVException {
+        return scan(ClamAVSource.of(fileChannel), pool, timeout);
+    }
+
+    public static String scan(InputStream inputStream, ClamAVPool<SocketChannel> pool, int timeout) throws IOException, ClamAVException {
+        return scan(ClamAVSource.of(inputStream), pool, timeout);
+    }
+
+    public static String scan(ClamAVSource source, ClamAVPool<SocketChannel> pool, int timeout) throws IOException, ClamAVException {
+        return session(pool, INSTREAM, source, ClamAVTimeouts.of(timeout), ClamAVScanTrace.NONE).getScanResult().getStatus();
+    }
+
+    /**
+     * Opens a connection to clamd, giving up after the timeout. A
+     * {@link UnixDomainSocketAddress} connects to the LocalSocket of clamd,
+     * any other address to its TCPSocket. Everything sent afterwards is the
+     * same for both.
+     *
+     * @param address Address where the ClamAV is running.
+     * @param timeout Milliseconds, 0 for no limit.
+     * @return Connected channel in blocking mode.
+     * @throws IOException If the connection could not be established.
+     */
+    protected static SocketChannel connect(SocketAddress address, int timeout) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            return connectLocal((UnixDomainSocketAddress) address, timeout);
+        }
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            socketChannel.socket().connect(address, timeout);
+            return socketChannel;
+        } catch (SocketTimeoutException ex) {
+            socketChannel.close();
+            throw (ClamAVConnectTimeoutException) new ClamAVConnectTimeoutException("No connection to " + address + " within " + timeout + " ms").initCause(ex);
+        } catch (IOException | RuntimeException ex) {
+            socketChannel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Connects to a local socket. The connect only waits while the backlog of
+     * clamd is full, and socket adaptors do not support local sockets, so a
+     * watchdog enforces the timeout.
+     */
+    private static SocketChannel connectLocal(UnixDomainSocketAddress address, int timeout) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        ClamAVTimeouts.ClamAVWatchdog watchdog = ClamAVTimeouts.watch(socketChannel, timeout);
+        try {
+            socketChannel.connect(address);
+            return socketChannel;
+        } catch (IOException ex) {
+            socketChannel.close();
+            if (watchdog.isExpired()) {
+                throw (ClamAVConnectTimeoutException) new ClamAVConnectTimeoutException("No connection to " + address + " within " + timeout + " ms").initCause(ex);
+            }
+            throw ex;
+        } catch (RuntimeException ex) {
+            socketChannel.close();
+            throw ex;
+        } finally {
+            watchdog.cancel();
+        }
+    }
+
+    /**
+     * Streams a source under a watchdog, which closes the connection if clamd
+     * stops accepting content for longer than the timeout. clamd only replies
+     * before the end of the content to reject it, e.g. past its
+     * StreamMaxLength, and closes the connection right after. So the stream
+     * stops at such a reply, and a failed write is followed by a look for one
+     * before giving up.
+     *
+     * @return true if clamd replied before the end of the content, whose rest
+     * is left unsent. The reply is started in the decoder of the thread.
+     */
+    private static boolean instream(SocketChannel socketChannel, ClamAVSource source, int timeout, ClamAVScanTrace trace) throws IOException {
+        ClamAVTimeouts.ClamAVWatchdog watchdog = ClamAVTimeouts.watch(socketChannel, timeout);
+        try {
+            return instream(socketChannel, source, watchdog, trace);
+        } catch (IOException ex) {
+            if (watchdog.isExpired()) {
+                throw (ClamAVWriteTimeoutException) new ClamAVWriteTimeoutException("clamd accepted no content within " + timeout + " ms").initCause(ex);
+            }
+            try {
+                if (peek(socketChannel) > 0) {
+                    return true;
+                }
+            } catch (IOException peekException) {
+                ex.addSuppressed(peekException);
+            }
+            throw ex;
+        } finally {
+            watchdog.cancel();
+        }
+    }
+
+    /**
+     * Streams the chunks of a source, each written together with its length
+     * in a single gathering write. Files are sent with
+     * {@link FileChannel#transferTo} instead.
+     */
+    private static boolean instream(SocketChannel socketChannel, ClamAVSource source, ClamAVTimeouts.ClamAVWatchdog watchdog, ClamAVScanTrace trace) throws IOException {
+        if (source instanceof ClamAVSource.ClamAVPathSource) {
+            ClamAVSource.ClamAVFileChannelSource file;
+            try {
+                file = ((ClamAVSource.ClamAVPathSource) source).open();
+            } catch (IOException ex) {
+                throw trace.sourceFailed(ex);
+            }
+            return instream(socketChannel, file, watchdog, trace);
+        }
+        if (source instanceof ClamAVSource.ClamAVFileChannelSource) {
+            return instream(socketChannel, (ClamAVSource.ClamAVFileChannelSource) source, watchdog, trace);
+        }
+        ByteBuffer size = ByteBuffer.allocate(4);
+        ByteBuffer[] frame = {size, null};
+        long unchecked = 0;
+        for (ByteBuffer chunk = next(source, trace); chunk != null; chunk = next(source, trace)) {
             size.clear();
-            size.putInt((int) fileChannel.size()).flip();
+            size.putInt(chunk.remaining()).flip();
+            frame[1] = chunk;
+            trace.streamed(chunk.remaining());
+            unchecked += chunk.remaining();
+            while (chunk.hasRemaining()) {
+                socketChannel.write(frame);
+                watchdog.touch();
+            }
+            if (unchecked >= replyCheckInterval) {
+                unchecked = 0;
+                if (peek(socketChannel) != 0) {
+                    return true;
+                }
+            }
+        }
+        size.clear();
+        size.putInt(0).flip();
+        while (size.hasRemaining()) {
             socketChannel.write(size);
-            fileChannel.transferTo(0, (int) fileChannel.size(), socketChannel);
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next chunk, telling the trace if the content failed.
+     */
+    private static ByteBuffer next(ClamAVSource source, ClamAVScanTrace trace) throws IOException {
+        try {
+            return source.next();
+        } catch (IOException ex) {
+            throw trace.sourceFailed(ex);
+        }
+    }
+
+    /**
+     * Frames the rest of a file into chunks and hands each of them to the
+     * kernel with {@link FileChannel#transferTo}, which may need several
+     * calls per chunk. The length is taken up front, so a file that shrinks
+     * meanwhile fails the scan rather than ending the stream early.
+     */
+    private static boolean instream(SocketChannel socketChannel, ClamAVSource.ClamAVFileChannelSource source, ClamAVTimeouts.ClamAVWatchdog watchdog, ClamAVScanTrace trace) throws IOException {
+        ByteBuffer size = ByteBuffer.allocate(4);
+        long unchecked = 0;
+        for (long remaining = source.remaining(); remaining > 0;) {
+            int length = (int) Math.min(source.getChunkSize(), remaining);
             size.clear();
-            size.putInt(0).flip();
+            size.putInt(length).flip();
+            while (size.hasRemaining()) {
+                socketChannel.write(size);
+            }
+            try {
+                source.transferTo(socketChannel, length);
+            } catch (EOFException ex) {
+                throw trace.sourceFailed(ex);
+            }
+            watchdog.touch();
+            trace.streamed(length);
+            remaining -= length;
+            unchecked += length;
+            if (unchecked >= replyCheckInterval) {
+                unchecked = 0;
+                if (peek(socketChannel) != 0) {
+                    return true;
+                }
+            }
+        }
+        size.clear();
+        size.putInt(0).flip();
+        while (size.hasRemaining()) {
             socketChannel.write(size);
+        }
+        return false;
+    }
 
-            return scanResult(socketChannel, timeout);
+    /**
+     * Reads what clamd has sent so far without waiting, into the reset
+     * decoder of the thread for {@link #reply} to go on with.
+     *
+     * @return Number of bytes read, -1 if clamd closed the connection.
+     */
+    private static int peek(SocketChannel socketChannel) throws IOException {
+        ClamAVReplyDecoder decoder = decoders.get();
+        decoder.reset();
+        socketChannel.configureBlocking(false);
+        try {
+            return socketChannel.read(decoder.getBuffer());
+        } finally {
+            socketChannel.configureBlocking(true);
         }
     }
 
-    public static String scan(InputStream inputStream, InetSocketAddress address, int timeout) throws IOException, ClamAVException {
-        try (SocketChannel socketChannel = SocketChannel.open(address)) {
-            socketChannel.write((ByteBuffer) ByteBuffer.wrap(INSTREAM));
-            ByteBuffer size = ByteBuffer.allocate(4);
-            byte[] b = new byte[CHUNK];
-            int chunk = CHUNK;
-            while (chunk == CHUNK) {
-                chunk = inputStream.read(b);
-                if (chunk > 0) {
-                    size.clear();
-                    size.putInt(chunk).flip();
-                    socketChannel.write(size);
-                    socketChannel.write(ByteBuffer.wrap(b, 0, chunk));
+    /**
+     * Sends one command on a pooled session and returns its reply, after
+     * checking the request id. A session whose connection was dropped by clamd
+     * while idle is replaced once, as long as no payload has been consumed
+     * yet.
+     */
+    private static ClamAVReplyDecoder session(ClamAVPool<SocketChannel> pool, byte[] command, ClamAVSource source, ClamAVTimeouts timeouts, ClamAVScanTrace trace) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            ClamAVSession<SocketChannel> session = pool.borrow();
+            trace.connected();
+            SocketChannel socketChannel = session.getChannel();
+            boolean reused = session.getRequests() > 0;
+            int id = session.nextId();
+            try {
+                socketChannel.write(ByteBuffer.wrap(command));
+            } catch (IOException ex) {
+                pool.invalidate(session);
+                if (reused && attempt == 0) {
+                    continue;
                 }
+                throw ex;
             }
-            size.clear();
-            size.putInt(0).flip();
-            socketChannel.write(size);
+            boolean healthy = false;
+            try {
+                boolean replied = false;
+                if (source != null) {
+                    replied = instream(socketChannel, source, timeouts.write, trace);
+                    trace.uploaded();
+                }
+                ClamAVReplyDecoder reply = reply(socketChannel, timeouts.reply, replied);
+                trace.replied();
+                if (reply.getId() != id) {
+                    throw new IOException("Unexpected reply for request " + id + ": " + reply);
+                }
+                healthy = !replied && !reply.isError();
+                return reply;
+            } finally {
+                if (healthy) {
+                    pool.release(session);
+                } else {
+                    pool.invalidate(session);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a NUL-terminated reply from clamd into the decoder of the calling
+     * thread. The reply is valid until the thread reads the next one.
+     */
+    protected static ClamAVReplyDecoder reply(SocketChannel socketChannel) throws IOException {
+        ClamAVReplyDecoder decoder = decoders.get();
+        decoder.reset();
+        return receive(socketChannel, decoder);
+    }
 
-            return scanResult(socketChannel, timeout);
+    private static ClamAVReplyDecoder receive(SocketChannel socketChannel, ClamAVReplyDecoder decoder) throws IOException {
+        while (!decoder.next()) {
+            if (socketChannel.read(decoder.getBuffer()) < 0) {
+                if (decoder.finish()) {
+                    return decoder;
+                }
+                throw new IOException("Connection closed by clamd");
+            }
         }
+        return decoder;
     }
 
-    private static String scanResult(SocketChannel socketChannel, int timeout) throws IOException, ClamAVException {
-        socketChannel.socket().setSoTimeout(timeout);
-        ByteBuffer data = ByteBuffer.allocate(1024);
-        socketChannel.read(data);
-        String status = new String(data.array());
-        status = status.substring(0, status.indexOf(0));
-        Matcher matcher = FOUND.matcher(status);
-        if (matcher.matches()) {
-            return matcher.group(1);
-        } else if (OK.equals(status)) {
-            return "OK";
+    /**
+     * Reads a reply under a watchdog, which closes the connection if the reply
+     * is not complete within the timeout.
+     *
+     * @param socketChannel Connection to clamd.
+     * @param timeout Milliseconds, 0 for no limit.
+     * @return Reply, valid until the thread reads the next one.
+     * @throws IOException If the reply could not be read in time.
+     */
+    protected static ClamAVReplyDecoder reply(SocketChannel socketChannel, int timeout) throws IOException {
+        return reply(socketChannel, timeout, false);
+    }
+
+    /**
+     * @param started true to go on with the bytes already in the decoder of
+     * the thread, see {@link #peek}.
+     */
+    private static ClamAVReplyDecoder reply(SocketChannel socketChannel, int timeout, boolean started) throws IOException {
+        ClamAVTimeouts.ClamAVWatchdog watchdog = ClamAVTimeouts.watch(socketChannel, timeout);
+        try {
+            return started ? receive(socketChannel, decoders.get()) : reply(socketChannel);
+        } catch (IOException ex) {
+            if (watchdog.isExpired()) {
+                throw (ClamAVReplyTimeoutException) new ClamAVReplyTimeoutException("No reply from clamd within " + timeout + " ms").initCause(ex);
+            }
+            throw ex;
+        } finally {
+            watchdog.cancel();
         }
-        throw new ClamAVException(status);
     }
-    
+
     /**
      * Retrieves the ClamAV database version.
      * 
      * @return ClamAV version.
      */
     public ClamAVVersion getVersion() {
+        if (this.pool != null) {
+            return getVersion(this.pool, this.timeout);
+        }
         return getVersion(this.address, this.timeout);
     }
 
+    /**
+     * Retrieves the load of clamd, always on a new connection.
+     *
+     * @return STATS of clamd, null if they could not be retrieved.
+     */
+    public ClamAVStats getStats() {
+        return getStats(this.address, this.timeout);
+    }
+
+    /**
+     * Retrieves the load of clamd.
+     *
+     * @param address Address where the ClamAV is running.
+     * @param timeout Timeout for the request.
+     * @return STATS of clamd, null if they could not be retrieved.
+     */
+    public static ClamAVStats getStats(SocketAddress address, int timeout) {
+        try (SocketChannel socketChannel = connect(address, timeout)) {
+            socketChannel.write(ByteBuffer.wrap(STATS));
+            // The list of queued requests may exceed the usual length of a reply.
+            ClamAVReplyDecoder decoder = new ClamAVReplyDecoder(statsMaxLength);
+            if (!next(socketChannel, decoder, timeout)) {
+                throw new IOException("Connection closed by clamd");
+            }
+            return new ClamAVStats(decoder.getReply());
+        } catch (IOException | IllegalArgumentException ex) {
+            Logger.getLogger(ClamAV.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
     /**
      * Retrieves the ClamAV database version.
      * 
@@ -161,30 +1324,120 @@ public class ClamAV {
      * @return ClamAV version.
      */
     public static ClamAVVersion getVersion(InetSocketAddress address, int timeout) {
-        try (SocketChannel socketChannel = SocketChannel.open(address)) {
+        return getVersion((SocketAddress) address, timeout);
+    }
+
+    public static ClamAVVersion getVersion(SocketAddress address, int timeout) {
+        try {
+            return version(address, timeout);
+        } catch (IOException ex) {
+            Logger.getLogger(ClamAV.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the ClamAV database version without logging failures, for
+     * callers that check a daemon repeatedly.
+     *
+     * @param address Address where the ClamAV is running.
+     * @param timeout Timeout for the request.
+     * @return ClamAV version.
+     * @throws IOException If clamd could not be reached.
+     */
+    public static ClamAVVersion version(SocketAddress address, int timeout) throws IOException {
+        try (SocketChannel socketChannel = connect(address, timeout)) {
             socketChannel.write((ByteBuffer) ByteBuffer.wrap(VERSION));
-            socketChannel.socket().setSoTimeout(timeout);
-            ByteBuffer data = ByteBuffer.allocate(1024);
-            socketChannel.read(data);
-            String status = new String(data.array());
-            status = status.substring(0, status.indexOf(0));
-            return new ClamAVVersion(status);
+            return new ClamAVVersion(reply(socketChannel, timeout).getReply());
+        }
+    }
+
+    /**
+     * Retrieves the ClamAV database version over a pooled session.
+     *
+     * @param pool Pool of sessions to the ClamAV daemon.
+     * @param timeout Timeout for the request.
+     * @return ClamAV version.
+     */
+    public static ClamAVVersion getVersion(ClamAVPool<SocketChannel> pool, int timeout) {
+        try {
+            return new ClamAVVersion(session(pool, VERSION, null, ClamAVTimeouts.of(timeout), ClamAVScanTrace.NONE).getReply());
         } catch (IOException ex) {
             Logger.getLogger(ClamAV.class.getName()).log(Level.SEVERE, null, ex);
         }
         return null;
     }
 
+    /**
+     * Opens blocking connections in IDSESSION mode for {@link ClamAVPool}.
+     */
+    protected static class ClamAVSessionConnector implements ClamAVPool.Connector<SocketChannel> {
+
+        private final SocketAddress address;
+        private final int timeout;
+
+        protected ClamAVSessionConnector(SocketAddress address, int timeout) {
+            this.address = address;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public SocketChannel connect() throws IOException {
+            SocketChannel socketChannel = ClamAV.connect(this.address, this.timeout);
+            try {
+                socketChannel.write(ByteBuffer.wrap(IDSESSION));
+            } catch (IOException ex) {
+                socketChannel.close();
+                throw ex;
+            }
+            return socketChannel;
+        }
+
+        @Override
+        public boolean isAlive(SocketChannel socketChannel) {
+            if (!socketChannel.isOpen()) {
+                return false;
+            }
+            // An idle session has nothing to read; EOF or stray bytes mean clamd has given up on it.
+            synchronized (socketChannel.blockingLock()) {
+                try {
+                    socketChannel.configureBlocking(false);
+                    try {
+                        return socketChannel.read(ByteBuffer.allocate(1)) == 0;
+                    } finally {
+                        socketChannel.configureBlocking(true);
+                    }
+                } catch (IOException ex) {
+                    return false;
+                }
+            }
+        }
+
+        @Override
+        public void disconnect(SocketChannel socketChannel) throws IOException {
+            try {
+                if (socketChannel.isOpen()) {
+                    socketChannel.write(ByteBuffer.wrap(END));
+                }
+            } finally {
+                socketChannel.close();
+            }
+        }
+    }
+
     public static void main(String[] args) {
         if (args.length == 0) {
-            System.out.println("Usage: java program [--host <host>] [--port <port>] [--timeout <timeout>] [--channel] [--ping] [<file/directory>]");
+            System.out.println("Usage: java program [--host <host>] [--port <port>] [--socket <path>] [--timeout <timeout>] [--jobs <jobs>] [--ordered] [--command <SCAN|CONTSCAN|MULTISCAN|ALLMATCHSCAN>] [--ping] [<file/directory>]");
             return;
         }
 
         int timeout = defaultTimeout;
         int port = defaultPort;
         String host = defaultHost;
-        boolean channel = false;
+        String socket = null;
+        int jobs = ClamAVAsync.defaultJobs;
+        boolean ordered = false;
+        Command command = null;
         boolean ping = false;
         for (int index = 0; index < args.length - 1; index++) {
             if ("--host".equals(args[index]) && index + 1 < args.length - 1) {
@@ -193,64 +1446,73 @@ public class ClamAV {
             } else if ("--port".equals(args[index]) && index + 1 < args.length - 1) {
                 index++;
                 port = Integer.parseInt(args[index]);
+            } else if ("--socket".equals(args[index]) && index + 1 < args.length - 1) {
+                index++;
+                socket = args[index];
             } else if ("--timeout".equals(args[index]) && index + 1 < args.length - 1) {
                 index++;
                 timeout = Integer.parseInt(args[index]);
+            } else if ("--jobs".equals(args[index]) && index + 1 < args.length - 1) {
+                index++;
+                jobs = Integer.parseInt(args[index]);
+            } else if ("--ordered".equals(args[index])) {
+                ordered = true;
             } else if ("--channel".equals(args[index])) {
-                channel = true;
+                // Files are always read through a FileChannel now, the option is kept for existing scripts.
+            } else if ("--command".equals(args[index]) && index + 1 < args.length - 1) {
+                index++;
+                command = Command.valueOf(args[index].toUpperCase());
             } else if ("--ping".equals(args[index])) {
                 ping = true;
             } else {
-                System.out.println("Usage: java program [--host <host>] [--port <port>] [--timeout <timeout>] <file/directory>");
+                System.out.println("Usage: java program [--host <host>] [--port <port>] [--socket <path>] [--timeout <timeout>] [--jobs <jobs>] [--ordered] [--command <command>] <file/directory>");
                 return;
             }
         }
-        final ClamAV clamAV = new ClamAV(new InetSocketAddress(host, port), timeout);
+        final ClamAV clamAV = new ClamAV(socket == null ? new InetSocketAddress(host, port) : UnixDomainSocketAddress.of(socket), timeout);
         if (ping || ("--ping".equals(args[args.length - 1]))) {            
-            System.out.println(clamAV.getAddress() + ": " + (clamAV.ping() ? "ALIVE" : "DOWN"));
-        } else {
-            final boolean channelSelection = channel;
-            final Path path = Paths.get(args[args.length - 1]);
+            System.out.println(clamAV.getSocketAddress() + ": " + (clamAV.ping() ? "ALIVE" : "DOWN"));
+        } else if (command != null) {
             try {
-                Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
-                        try {
-                            if (channelSelection) {
-                                try (FileChannel fileChannel = FileChannel.open(path)) {
-                                    String status = clamAV.scan(fileChannel);
-                                    System.out.println(path + ": " + ("OK".equals(status) ? "OK" : (status + " FOUND")));
-                                }
-                            } else {
-                                try (InputStream inputStream = new FileInputStream(path.toFile())) {
-                                    String status = clamAV.scan(inputStream);
-                                    System.out.println(path + ": " + ("OK".equals(status) ? "OK" : (status + " FOUND")));
-                                }
-                            }
-                        } catch (ClamAVException | IOException ex) {
-                            System.out.println(path + ": " + ex);
-                            Logger.getLogger(ClamAV.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                        return FileVisitResult.CONTINUE;
-                    }
-                });
-            } catch (IOException ex) {
+                System.out.println(clamAV.scan(Paths.get(args[args.length - 1]), command, System.out::println));
+            } catch (ClamAVException | IOException ex) {
                 Logger.getLogger(ClamAV.class.getName()).log(Level.SEVERE, null, ex);
             }
+        } else {
+            ClamAVDirectoryScanner directoryScanner = new ClamAVDirectoryScanner(clamAV::submit, jobs);
+            directoryScanner.setChunkSize(clamAV.getChunkSize());
+            directoryScanner.setOrdered(ordered);
+            try {
+                System.out.println(directoryScanner.scan(Paths.get(args[args.length - 1]), System.out::println));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
     protected static final byte[] INSTREAM = "zINSTREAM\0".getBytes();
-    protected static final Pattern FOUND = Pattern.compile("^stream: (.+) FOUND$");
     protected static final String OK = "stream: OK";
-    protected static final int CHUNK = 4096;
+    protected static final String CLEAN = "OK";
+    protected static final int defaultChunkSize = 65536;
 
     protected static final byte[] PING = "zPING\0".getBytes();
     protected static final String PONG = "PONG";
 
     protected static final byte[] VERSION = "zVERSION\0".getBytes();
 
+    protected static final byte[] STATS = "zSTATS\0".getBytes();
+    protected static final int statsMaxLength = 65536;
+
+    protected static final byte[] IDSESSION = "zIDSESSION\0".getBytes();
+    protected static final byte[] END = "zEND\0".getBytes();
+    protected static final String ERROR = "ERROR";
+    protected static final String SIZE_LIMIT_EXCEEDED = "INSTREAM size limit exceeded. ERROR";
+    protected static final int replyCheckInterval = 1048576;
+
     protected static final int defaultTimeout = 0;
     protected static final int defaultPort = 3310;
     protected static final String defaultHost = "localhost";
+
+    private static final ThreadLocal<ClamAVReplyDecoder> decoders = ThreadLocal.withInitial(ClamAVReplyDecoder::new);
+    private static ExecutorService sharedExecutor;
 }
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Scans the entries of a ZIP or JAR archive separately, with a bounded
+ * number of scans in flight, so a large archive keeps several clamd threads
+ * or cluster nodes busy instead of one.
+ * <p>
+ * The archive is read once with {@link ZipInputStream}. Each entry is
+ * streamed to its own scan through a bounded buffer, so entries are sent one
+ * after another while clamd scans them in parallel, and an entry is never
+ * held in memory as a whole. Content that is not a ZIP archive is scanned as
+ * it is.
+ * <p>
+ * clamd unpacks nested archives within an entry itself, but signatures
+ * matching the archive as a whole, or content outside of the entries such as
+ * data appended to the archive, its comment or its central directory, are
+ * only seen when the archive is sent as well, which it is unless
+ * {@link #setScanContainer} turns it off.
+ * <p>
+ * One request in flight on the client is enough: the entries are read in
+ * order, and the archive as a whole is only sent from its own copy, so a scan
+ * waiting for a connection never waits on the reader. Entries are scanned in
+ * parallel only as far as the client, its pool and its limiter allow.
+ */
+public class ClamAVArchiveScanner {
+
+    private final Function<ClamAVSource, CompletableFuture<ClamAVScanResult>> scanner;
+    private final int maxInFlight;
+    private int chunkSize = ClamAV.defaultChunkSize;
+    private int capacity = ClamAVScanningInputStream.defaultCapacity;
+    private boolean scanContainer = true;
+
+    /**
+     * @param clamAVAsync Client the entries are scanned with.
+     * @param maxInFlight Maximum number of scans in progress at a time.
+     */
+    public ClamAVArchiveScanner(ClamAVAsync clamAVAsync, int maxInFlight) {
+        this(clamAVAsync::scan, maxInFlight);
+        this.chunkSize = clamAVAsync.getChunkSize();
+    }
+
+    /**
+     * @param scanner Starts the scan of an entry, e.g. {@code cluster::scan}
+     * to spread the entries over several clamd.
+     * @param maxInFlight Maximum number of scans in progress at a time.
+     */
+    public ClamAVArchiveScanner(Function<ClamAVSource, CompletableFuture<ClamAVScanResult>> scanner, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.scanner = scanner;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return Maximum number of bytes of an entry read but not yet sent to
+     * clamd.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    public boolean isScanContainer() {
+        return this.scanContainer;
+    }
+
+    /**
+     * Sends the archive as a whole in addition to its entries, so signatures
+     * matching the archive itself, or content outside of the entries, are not
+     * missed. The scan of the archive runs alongside those of the entries,
+     * but takes as long as without splitting. A stream is copied to a
+     * temporary file for it, and scanned once it has been read. On by
+     * default; turning it off trades that coverage for the faster verdict.
+     *
+     * @param scanContainer true to scan the archive as well.
+     */
+    public void setScanContainer(boolean scanContainer) {
+        this.scanContainer = scanContainer;
+    }
+
+    /**
+     * Scans a file, opened a second time if the archive is scanned as a whole
+     * as well. A file that cannot be split, e.g. a ZIP archive that
+     * {@link ZipInputStream} cannot read, is scanned as a whole instead.
+     *
+     * @param path Archive to scan.
+     * @return Combined verdict.
+     * @throws IOException If the file could not be opened.
+     * @throws InterruptedException If interrupted while waiting for scans;
+     * scans in progress complete in the background.
+     */
+    public ClamAVArchiveResult scan(Path path) throws IOException, InterruptedException {
+        ClamAVArchiveScan run = new ClamAVArchiveScan();
+        if (this.scanContainer) {
+            run.container = this.scanner.apply(ClamAVSource.of(path, this.chunkSize));
+        }
+        boolean split;
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            split = split(run, new BufferedInputStream(inputStream, this.chunkSize));
+        } catch (IOException ex) {
+            Logger.getLogger(ClamAVArchiveScanner.class.getName()).log(Level.FINE, null, ex);
+            split = false;
+        }
+        if (!split && run.container == null) {
+            run.container = this.scanner.apply(ClamAVSource.of(path, this.chunkSize));
+        }
+        return run.await();
+    }
+
+    /**
+     * Scans a stream, read to the end. Content that is not a ZIP archive is
+     * scanned as it is. If the archive is scanned as a whole as well, it is
+     * copied to a temporary file while it is read, and that copy is scanned
+     * once the entries have been read, so the scan of the archive never holds
+     * a connection while waiting for the entries to be read. Otherwise the
+     * stream cannot be read again, so an archive that turns out unreadable is
+     * reported as an error, unless it is scanned as a whole.
+     *
+     * @param inputStream Archive to scan, left open.
+     * @return Combined verdict.
+     * @throws IOException If the start of the stream could not be read, or
+     * the temporary file could not be created.
+     * @throws InterruptedException If interrupted while waiting for scans;
+     * scans in progress complete in the background.
+     */
+    public ClamAVArchiveResult scan(InputStream inputStream) throws IOException, InterruptedException {
+        ClamAVArchiveScan run = new ClamAVArchiveScan();
+        InputStream buffered = new BufferedInputStream(inputStream, this.chunkSize);
+        if (!isZip(buffered)) {
+            run.container = this.scanner.apply(ClamAVSource.of(buffered, this.chunkSize));
+            return run.await();
+        }
+        if (!this.scanContainer) {
+            try {
+                split(run, buffered);
+            } catch (IOException ex) {
+                run.report(new ClamAVEntryResult(-1, null, null, ex));
+            }
+            return run.await();
+        }
+        final Path copy = Files.createTempFile("clamav4j", ".zip");
+        boolean read = false;
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(copy)) {
+                InputStream copied = new BufferedInputStream(new ClamAVCopyInputStream(buffered, outputStream), this.chunkSize);
+                try {
+                    split(run, copied);
+                } catch (IOException ex) {
+                    // The scan of the archive as a whole covers the entries left out.
+                    Logger.getLogger(ClamAVArchiveScanner.class.getName()).log(Level.FINE, null, ex);
+                }
+                byte[] rest = new byte[this.chunkSize];
+                while (copied.read(rest) >= 0) {
+                    // Everything past the entries is part of the archive as well.
+                }
+            }
+            read = true;
+        } catch (IOException ex) {
+            run.report(new ClamAVEntryResult(-1, null, null, ex));
+        }
+        if (read) {
+            try {
+                run.container = this.scanner.apply(ClamAVSource.of(copy, this.chunkSize)).whenComplete((result, exc) -> delete(copy));
+            } catch (RuntimeException ex) {
+                delete(copy);
+                throw ex;
+            }
+        } else {
+            delete(copy);
+        }
+        return run.await();
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            Logger.getLogger(ClamAVArchiveScanner.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Starts the scan of every entry of an archive.
+     *
+     * @return false if the content is not a ZIP archive.
+     * @throws IOException If the archive could not be read to its end, after
+     * the scan of the entry being read was failed.
+     */
+    private boolean split(ClamAVArchiveScan run, InputStream inputStream) throws IOException, InterruptedException {
+        if (!isZip(inputStream)) {
+            return false;
+        }
+        ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+        byte[] buffer = new byte[this.chunkSize];
+        int index = 0;
+        for (ZipEntry entry = zipInputStream.getNextEntry(); entry != null; entry = zipInputStream.getNextEntry()) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            int size = entry.getSize() >= 0 ? (int) Math.max(1, Math.min(this.capacity, entry.getSize())) : this.capacity;
+            ClamAVPipe pipe = new ClamAVPipe(size, Math.max(1, Math.min(this.chunkSize, size / 2)));
+            run.submit(index++, entry.getName(), pipe);
+            try {
+                for (int count = zipInputStream.read(buffer); count >= 0; count = zipInputStream.read(buffer)) {
+                    pipe.write(buffer, 0, count);
+                    run.bytes.addAndGet(count);
+                }
+            } catch (IOException ex) {
+                pipe.abort(ex);
+                throw ex;
+            }
+            pipe.finish();
+        }
+        return true;
+    }
+
+    /**
+     * Looks for the signature of the first local file header, leaving the
+     * stream where it was.
+     */
+    private static boolean isZip(InputStream inputStream) throws IOException {
+        inputStream.mark(zipSignature.length);
+        byte[] head = new byte[zipSignature.length];
+        int length = 0;
+        for (int count = 0; count >= 0 && length < head.length; length += count) {
+            count = inputStream.read(head, length, head.length - length);
+            if (count < 0) {
+                break;
+            }
+        }
+        inputStream.reset();
+        if (length < head.length) {
+            return false;
+        }
+        for (int index = 0; index < head.length; index++) {
+            if (head[index] != zipSignature[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes everything read from a stream to a copy.
+     */
+    private static final class ClamAVCopyInputStream extends FilterInputStream {
+
+        private final OutputStream copy;
+
+        private ClamAVCopyInputStream(InputStream inputStream, OutputStream copy) {
+            super(inputStream);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                this.copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                this.copy.write(b, off, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] skipped = new byte[(int) Math.min(n, 8192)];
+            int count = read(skipped, 0, skipped.length);
+            return Math.max(0, count);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * State of one call to {@link #scan}.
+     */
+    private class ClamAVArchiveScan {
+
+        private final Semaphore semaphore = new Semaphore(maxInFlight);
+        private final List<ClamAVEntryResult> infected = new ArrayList<>();
+        private final List<ClamAVEntryResult> errors = new ArrayList<>();
+        private final AtomicLong entries = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final long started = System.currentTimeMillis();
+        private CompletableFuture<ClamAVScanResult> container;
+
+        /**
+         * Waits for a free slot, then starts the scan of an entry.
+         */
+        private void submit(final int index, final String name, final ClamAVPipe pipe) throws InterruptedException {
+            this.semaphore.acquire();
+            this.entries.incrementAndGet();
+            CompletableFuture<ClamAVScanResult> future;
+            try {
+                future = scanner.apply(pipe);
+            } catch (RuntimeException ex) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(ex);
+            }
+            future.whenComplete((result, exc) -> {
+                // A scan that ended without reading the whole entry must not hold up the reader.
+                pipe.close();
+                try {
+                    report(new ClamAVEntryResult(index, name, result, exc instanceof CompletionException ? exc.getCause() : exc));
+                } finally {
+                    this.semaphore.release();
+                }
+            });
+        }
+
+        private synchronized void report(ClamAVEntryResult result) {
+            if (result.getError() != null) {
+                this.errors.add(result);
+            } else if (result.isInfected()) {
+                this.infected.add(result);
+            }
+        }
+
+        /**
+         * Waits until every scan is complete.
+         */
+        private ClamAVArchiveResult await() throws InterruptedException {
+            this.semaphore.acquire(maxInFlight);
+            this.semaphore.release(maxInFlight);
+            ClamAVScanResult containerResult = null;
+            if (this.container != null) {
+                try {
+                    containerResult = this.container.get();
+                } catch (ExecutionException ex) {
+                    report(new ClamAVEntryResult(-1, null, null, ex.getCause()));
+                }
+            }
+            synchronized (this) {
+                Collections.sort(this.infected, Comparator.comparingInt(result -> result.index));
+                Collections.sort(this.errors, Comparator.comparingInt(result -> result.index));
+                return new ClamAVArchiveResult(containerResult, new ArrayList<>(this.infected), new ArrayList<>(this.errors), this.entries.get(), this.bytes.get(), System.currentTimeMillis() - this.started);
+            }
+        }
+    }
+
+    /**
+     * Outcome of the scan of one entry, or of the archive as a whole.
+     */
+    public static class ClamAVEntryResult {
+
+        private final int index;
+        private final String name;
+        private final ClamAVScanResult result;
+        private final Throwable error;
+
+        protected ClamAVEntryResult(int index, String name, ClamAVScanResult result, Throwable error) {
+            this.index = index;
+            this.name = name;
+            this.result = result;
+            this.error = error;
+        }
+
+        /**
+         * @return Path of the entry within the archive, null for the archive
+         * as a whole.
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return Verdict, null if the entry could not be scanned.
+         */
+        public ClamAVScanResult getResult() {
+            return this.result;
+        }
+
+        /**
+         * @return Reason the entry could not be scanned, null if it was.
+         */
+        public Throwable getError() {
+            return this.error;
+        }
+
+        public boolean isInfected() {
+            return this.result != null && this.result.isInfected();
+        }
+
+        @Override
+        public String toString() {
+            String path = this.name == null ? "(archive)" : this.name;
+            if (this.error != null) {
+                return path + ": " + this.error;
+            }
+            return path + ": " + (this.result.isInfected() ? this.result.getSignature() + " FOUND" : "OK");
+        }
+    }
+
+    /**
+     * Verdicts of an archive and its entries combined.
+     */
+    public static class ClamAVArchiveResult {
+
+        private final ClamAVScanResult containerResult;
+        private final List<ClamAVEntryResult> infected;
+        private final List<ClamAVEntryResult> errors;
+        private final long entries;
+        private final long bytes;
+        private final long elapsed;
+
+        protected ClamAVArchiveResult(ClamAVScanResult containerResult, List<ClamAVEntryResult> infected, List<ClamAVEntryResult> errors, long entries, long bytes, long elapsed) {
+            this.containerResult = containerResult;
+            this.infected = Collections.unmodifiableList(infected);
+            this.errors = Collections.unmodifiableList(errors);
+            this.entries = entries;
+            this.bytes = bytes;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return Verdict of the archive: the signature found in the archive
+         * as a whole if any, else that of the first infected entry, else OK.
+         */
+        public ClamAVScanResult getResult() {
+            if (this.containerResult != null && this.containerResult.isInfected()) {
+                return this.containerResult;
+            }
+            return this.infected.isEmpty() ? ClamAVScanResult.OK : this.infected.get(0).getResult();
+        }
+
+        /**
+         * @return Verdict of the archive scanned as a whole, or of content
+         * that is not an archive; null if not scanned.
+         */
+        public ClamAVScanResult getContainerResult() {
+            return this.containerResult;
+        }
+
+        public boolean isInfected() {
+            return getResult().isInfected();
+        }
+
+        /**
+         * @return true if nothing was found and everything could be scanned.
+         */
+        public boolean isClean() {
+            return !isInfected() && this.errors.isEmpty();
+        }
+
+        /**
+         * @return Infected entries, in the order of the archive.
+         */
+        public List<ClamAVEntryResult> getInfected() {
+            return this.infected;
+        }
+
+        /**
+         * @return Entries that could not be scanned, in the order of the
+         * archive, and the archive as a whole if it could not be read or
+         * scanned.
+         */
+        public List<ClamAVEntryResult> getErrors() {
+            return this.errors;
+        }
+
+        /**
+         * @return Number of entries scanned.
+         */
+        public long getEntries() {
+            return this.entries;
+        }
+
+        /**
+         * @return Number of uncompressed bytes of the entries.
+         */
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        /**
+         * @return Duration of the scan in milliseconds.
+         */
+        public long getElapsed() {
+            return this.elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "ClamAVArchiveResult [status=" + getResult().getStatus() + ", infected=" + this.infected + ", errors=" + this.errors + ", entries=" + this.entries + "]";
+        }
+    }
+
+    private static final byte[] zipSignature = {'P', 'K', 3, 4};
+}
@@ -15,246 +15,1396 @@
  */
 package io.sensesecure.clamav4j;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 
 public class ClamAVAsync implements AutoCloseable {
 
     private final AsynchronousChannelGroup asynchronousChannelGroup;
-    private InetSocketAddress address;
+    private final boolean ownsChannelGroup;
+    private SocketAddress address;
     private int timeout;
+    private int connectTimeout;
+    private int writeTimeout;
+    private int replyTimeout;
+    private ClamAVPool<AsynchronousSocketChannel> pool;
+    private ClamAVMultiplexer multiplexer;
+    private ClamAVCache cache;
+    private ClamAVCoalescer coalescer;
+    private ClamAVLimiter limiter;
+    private ClamAVHealth health;
+    private int chunkSize = ClamAV.defaultChunkSize;
+    private long streamMaxLength = 0;
+    private int readAhead = defaultReadAhead;
+    private ClamAVMetrics metrics = ClamAVMetrics.NONE;
+
+    public ClamAVAsync(SocketAddress address, int timeout) throws IOException {
+        this(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()), address, timeout);
+    }
 
     public ClamAVAsync(InetSocketAddress address, int timeout) throws IOException {
-        this.asynchronousChannelGroup = AsynchronousChannelGroup.withThreadPool(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+        this((SocketAddress) address, timeout);
+    }
+
+    /**
+     * Creates a client whose completion handlers run on the given executor.
+     * The executor is used exclusively by the channel group of this instance,
+     * and is shut down when this instance is closed.
+     *
+     * @param executorService Executor for the channel group.
+     * @param address Address where the ClamAV is running.
+     * @param timeout Timeout for requests.
+     * @throws IOException If the channel group could not be created.
+     */
+    public ClamAVAsync(ExecutorService executorService, SocketAddress address, int timeout) throws IOException {
+        this.asynchronousChannelGroup = AsynchronousChannelGroup.withThreadPool(executorService);
+        this.ownsChannelGroup = true;
         this.address = address;
-        this.timeout = timeout;
+        setTimeout(timeout);
+    }
+
+    /**
+     * Creates a client on a channel group shared with other clients. The group
+     * is left running when this instance is closed.
+     *
+     * @param asynchronousChannelGroup Channel group for the connections.
+     * @param address Address where the ClamAV is running.
+     * @param timeout Timeout for requests.
+     */
+    public ClamAVAsync(AsynchronousChannelGroup asynchronousChannelGroup, SocketAddress address, int timeout) {
+        this.asynchronousChannelGroup = asynchronousChannelGroup;
+        this.ownsChannelGroup = false;
+        this.address = address;
+        setTimeout(timeout);
+    }
+
+    public AsynchronousChannelGroup getChannelGroup() {
+        return this.asynchronousChannelGroup;
     }
 
+    /**
+     * @return TCP address of clamd, null if it is reached over a local socket.
+     * @deprecated Use {@link #getSocketAddress}, which returns local socket
+     * addresses as well.
+     */
+    @Deprecated
     public InetSocketAddress getAddress() {
-        return this.address;
+        return this.address instanceof InetSocketAddress ? (InetSocketAddress) this.address : null;
     }
 
+    /**
+     * @deprecated Use {@link #setSocketAddress}.
+     */
+    @Deprecated
     public void setAddress(InetSocketAddress address) {
         this.address = address;
     }
 
+    public SocketAddress getSocketAddress() {
+        return this.address;
+    }
+
+    /**
+     * Sets the address of clamd. Asynchronous channels do not support local
+     * sockets, so scans sent to a {@link UnixDomainSocketAddress} run on the
+     * blocking path of {@link ClamAV}, on a thread of its shared executor.
+     *
+     * @param address TCP or local socket address of clamd.
+     */
+    public void setSocketAddress(SocketAddress address) {
+        this.address = address;
+    }
+
     public int getTimeout() {
         return this.timeout;
     }
 
+    /**
+     * Sets the timeout of requests, and of each phase of a scan.
+     *
+     * @param timeout Milliseconds, 0 for no limit.
+     */
     public void setTimeout(int timeout) {
         this.timeout = timeout;
+        this.connectTimeout = timeout;
+        this.writeTimeout = timeout;
+        this.replyTimeout = timeout;
+    }
+
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout Milliseconds until a connection to clamd must be
+     * established, 0 for no limit.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return this.writeTimeout;
+    }
+
+    /**
+     * @param writeTimeout Milliseconds a single write to clamd may take, 0
+     * for no limit. It bounds a stall rather than the whole upload, so large
+     * content is not cut short.
+     */
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public int getReplyTimeout() {
+        return this.replyTimeout;
+    }
+
+    /**
+     * @param replyTimeout Milliseconds between the end of the content and the
+     * verdict, 0 for no limit.
+     */
+    public void setReplyTimeout(int replyTimeout) {
+        this.replyTimeout = replyTimeout;
+    }
+
+    public ClamAVPool<AsynchronousSocketChannel> getPool() {
+        return this.pool;
+    }
+
+    /**
+     * Routes scans through pooled IDSESSION connections instead of opening a
+     * connection per scan. The pool is closed together with this instance.
+     * A scan on a reused session that clamd dropped, e.g. after its
+     * IdleTimeout, is sent again on a new session if its content can be read
+     * again; content read only once, such as a stream, is not.
+     *
+     * @param pool Pool created with {@link #newPool}, or null to disable.
+     */
+    public void setPool(ClamAVPool<AsynchronousSocketChannel> pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Creates a pool of IDSESSION connections bound to the channel group of
+     * this instance. Scans wait for a free session, and new sessions are
+     * connected, without blocking the calling thread.
+     *
+     * @param maxSessions Maximum number of sessions in use at the same time.
+     * @return Pool to be passed to {@link #setPool}.
+     * @throws UnsupportedOperationException If clamd is on a local socket.
+     */
+    public ClamAVPool<AsynchronousSocketChannel> newPool(int maxSessions) {
+        return new ClamAVPool<>(new ClamAVAsyncSessionConnector(this.asynchronousChannelGroup, inetAddress(), this.connectTimeout), maxSessions);
+    }
+
+    public ClamAVMultiplexer getMultiplexer() {
+        return this.multiplexer;
+    }
+
+    /**
+     * Sends scans through a few long-lived IDSESSION connections, several
+     * scans at a time on each. Takes precedence over a pool. The multiplexer
+     * is closed together with this instance.
+     *
+     * @param multiplexer Multiplexer created with {@link #newMultiplexer}, or
+     * null to disable.
+     */
+    public void setMultiplexer(ClamAVMultiplexer multiplexer) {
+        this.multiplexer = multiplexer;
+    }
+
+    /**
+     * Creates a multiplexer bound to the channel group of this instance.
+     *
+     * @param sessions Number of connections to open.
+     * @param maxInFlight Maximum number of scans waiting for a reply on each
+     * connection.
+     * @return Multiplexer to be passed to {@link #setMultiplexer}.
+     * @throws UnsupportedOperationException If clamd is on a local socket.
+     */
+    public ClamAVMultiplexer newMultiplexer(int sessions, int maxInFlight) {
+        ClamAVMultiplexer clamAVMultiplexer = new ClamAVMultiplexer(this.asynchronousChannelGroup, inetAddress(), sessions, maxInFlight);
+        clamAVMultiplexer.setConnectTimeout(this.connectTimeout);
+        clamAVMultiplexer.setWriteTimeout(this.writeTimeout);
+        clamAVMultiplexer.setReplyTimeout(this.replyTimeout);
+        return clamAVMultiplexer;
+    }
+
+    private InetSocketAddress inetAddress() {
+        if (!(this.address instanceof InetSocketAddress)) {
+            throw new UnsupportedOperationException("Asynchronous channels require a TCP address: " + this.address);
+        }
+        return (InetSocketAddress) this.address;
+    }
+
+    public ClamAVCache getCache() {
+        return this.cache;
     }
 
-    public <A> void scan(InputStream inputStream, A attachment, ClamAVAsyncCallback<A> callback) throws IOException {
-        AsynchronousSocketChannel asynchronousSocketChannel = AsynchronousSocketChannel.open(this.asynchronousChannelGroup);
-        asynchronousSocketChannel.connect(this.address, new ClamAVAsyncObject(inputStream, attachment, callback, asynchronousSocketChannel), new ClamAVAsyncObjectCompletionHandlerConnect());
+    /**
+     * Answers repeated scans of the same content from a cache of results.
+     * Content that can be read twice is digested on the calling thread before
+     * it is sent; other content is digested while it is streamed.
+     *
+     * @param cache Cache of results, or null to disable.
+     */
+    public void setCache(ClamAVCache cache) {
+        this.cache = cache;
     }
-    
+
+    public ClamAVCoalescer getCoalescer() {
+        return this.coalescer;
+    }
+
+    /**
+     * Sends concurrent scans of the same content to clamd once, and hands
+     * the verdict to all of them. Scans answered by the cache never get this
+     * far, and content digested for a cache with the default algorithm is
+     * keyed by that digest instead of being read once more.
+     *
+     * @param coalescer Coalescer shared by the scans, or null to disable.
+     */
+    public void setCoalescer(ClamAVCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    public ClamAVLimiter getLimiter() {
+        return this.limiter;
+    }
+
+    /**
+     * Holds back scans beyond a limit adapted to the load of clamd, which is
+     * polled with STATS in the background. Scans held back wait without
+     * blocking a thread.
+     *
+     * @param limiter Limiter, which may be shared with other clients of the
+     * same clamd, or null to disable.
+     */
+    public void setLimiter(ClamAVLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public ClamAVHealth getHealth() {
+        return this.health;
+    }
+
+    /**
+     * Fails scans at once while clamd is known to be down, instead of
+     * letting each of them wait for a timeout. In a {@link ClamAVCluster},
+     * such a scan is retried on another node.
+     *
+     * @param health Circuit breaker of the clamd at the address of this
+     * client, which may be shared with other clients of it, or null to
+     * disable.
+     */
+    public void setHealth(ClamAVHealth health) {
+        this.health = health;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * Sets how many bytes are sent per INSTREAM chunk. Larger chunks need
+     * fewer writes; clamd accepts chunks of any size up to its
+     * StreamMaxLength.
+     *
+     * @param chunkSize Maximum number of bytes per chunk.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public long getStreamMaxLength() {
+        return this.streamMaxLength;
+    }
+
+    /**
+     * Sets the StreamMaxLength of clamd, so content known to be larger fails
+     * with {@link ClamAVSizeLimitException} before anything is sent, see
+     * {@link ClamAV#setStreamMaxLength}.
+     *
+     * @param streamMaxLength Maximum number of bytes, 0 to leave it to clamd.
+     */
+    public void setStreamMaxLength(long streamMaxLength) {
+        this.streamMaxLength = streamMaxLength;
+    }
+
+    public int getReadAhead() {
+        return this.readAhead;
+    }
+
+    /**
+     * Sets how many chunks of content that has to be read, e.g. from a
+     * stream or a file, are read ahead of the one being written. The reads
+     * happen off the I/O threads, files with an asynchronous channel and
+     * other content on a shared executor, so a slow source never stalls the
+     * channel group, and reading overlaps writing. Content in memory is
+     * written as it is.
+     *
+     * @param readAhead Number of chunks, 1 for double buffering, or 0 to
+     * read on the I/O threads.
+     */
+    public void setReadAhead(int readAhead) {
+        if (readAhead < 0) {
+            throw new IllegalArgumentException("readAhead must not be negative");
+        }
+        this.readAhead = readAhead;
+    }
+
+    public ClamAVMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sets the receiver of the measurements of every scan, e.g. a
+     * {@link ClamAVStatistics}.
+     *
+     * @param metrics Receiver of the measurements.
+     */
+    public void setMetrics(ClamAVMetrics metrics) {
+        this.metrics = metrics == null ? ClamAVMetrics.NONE : metrics;
+    }
+
+    public <A> void scan(final InputStream inputStream, final A attachment, final ClamAVAsyncCallback<A> callback) throws IOException {
+        scan(ClamAVSource.of(inputStream, this.chunkSize)).whenComplete((result, exc) -> {
+            if (exc == null) {
+                callback.completed(result.getStatus(), attachment, inputStream);
+            } else {
+                callback.failed(exc instanceof CompletionException ? exc.getCause() : exc, attachment, inputStream);
+            }
+        });
+    }
+
+    public CompletableFuture<ClamAVScanResult> scan(InputStream inputStream) {
+        return scan(ClamAVSource.of(inputStream, this.chunkSize));
+    }
+
+    /**
+     * Scans the remaining bytes of a buffer, written to the socket in slices
+     * without being copied. Direct and mapped buffers go to the socket as they
+     * are. The position of the buffer is not changed, and the buffer must not
+     * be modified until the scan is complete.
+     *
+     * @param byteBuffer Content to be scanned.
+     * @return Future verdict.
+     */
+    public CompletableFuture<ClamAVScanResult> scan(ByteBuffer byteBuffer) {
+        return scan(ClamAVSource.of(byteBuffer, this.chunkSize));
+    }
+
+    /**
+     * Scans the remaining bytes of several buffers as one stream, e.g. an
+     * upload received in pieces.
+     *
+     * @param byteBuffers Content to be scanned.
+     * @return Future verdict.
+     */
+    public CompletableFuture<ClamAVScanResult> scan(ByteBuffer[] byteBuffers) {
+        return scan(ClamAVSource.of(byteBuffers, this.chunkSize));
+    }
+
+    public CompletableFuture<ClamAVScanResult> scan(FileChannel fileChannel) {
+        return scan(ClamAVSource.of(fileChannel, this.chunkSize));
+    }
+
+    public CompletableFuture<ClamAVScanResult> scan(Path path) {
+        return scan(ClamAVSource.of(path, this.chunkSize));
+    }
+
+    /**
+     * Scans a slice of a file, e.g. to scan a file larger than the
+     * StreamMaxLength of clamd piece by piece.
+     *
+     * @param fileChannel File to be scanned.
+     * @param position Offset of the first byte to scan.
+     * @param length Number of bytes to scan, cut short at the end of the
+     * file.
+     * @return Future verdict.
+     */
+    public CompletableFuture<ClamAVScanResult> scan(FileChannel fileChannel, long position, long length) {
+        return scan(ClamAVSource.of(fileChannel, position, length, this.chunkSize));
+    }
+
+    public CompletableFuture<ClamAVScanResult> scan(Path path, long position, long length) {
+        return scan(ClamAVSource.of(path, position, length, this.chunkSize));
+    }
+
+    /**
+     * Scans content without blocking the calling thread. Errors, including
+     * connection failures, complete the future exceptionally.
+     *
+     * @param source Content to be scanned, closed once the scan is over.
+     * @return Future verdict.
+     */
+    public CompletableFuture<ClamAVScanResult> scan(ClamAVSource source) {
+        final ClamAVScanTrace trace = new ClamAVScanTrace(this.metrics, this.address);
+        CompletableFuture<ClamAVScanResult> future;
+        try {
+            ClamAV.checkSize(source, this.streamMaxLength);
+            future = this.cache != null ? cached(source, trace) : send(source, trace);
+        } catch (IOException | ClamAVSizeLimitException ex) {
+            future = failed(source, ex);
+        }
+        future.whenComplete(trace::finished);
+        return future;
+    }
+
+    /**
+     * Content that can be read twice is digested on the shared executor
+     * before it is sent, so a hit saves the round trip to clamd. Other
+     * content is digested while it is streamed.
+     */
+    private CompletableFuture<ClamAVScanResult> cached(final ClamAVSource source, final ClamAVScanTrace trace) {
+        final ClamAVCache resultCache = this.cache;
+        long version = resultCache.getDatabaseVersion();
+        if (resultCache.isVersionCheckDue()) {
+            CompletableFuture<Long> checked = refresh(resultCache);
+            if (version < 0) {
+                // Nothing could be cached yet, so wait for the version instead of scanning without it.
+                return checked.thenCompose(known -> cached(resultCache, known, source, trace));
+            }
+        }
+        return cached(resultCache, version, source, trace);
+    }
+
+    private CompletableFuture<ClamAVScanResult> cached(final ClamAVCache resultCache, final long version, final ClamAVSource source, final ClamAVScanTrace trace) {
+        try {
+            if (source.rewind()) {
+                return digest(resultCache, source).handle((digested, exc) -> {
+                    if (exc != null) {
+                        return failed(source, exc);
+                    }
+                    ClamAVScanResult result = resultCache.get(digested.getDigest());
+                    if (result != null) {
+                        return done(source, result);
+                    }
+                    return send(source, trace, digested).thenApply(scanResult -> {
+                        resultCache.put(digested.getDigest(), version, scanResult);
+                        return scanResult;
+                    });
+                }).thenCompose(future -> future);
+            }
+        } catch (IOException ex) {
+            return failed(source, ex);
+        }
+        final ClamAVCache.ClamAVDigestSource digestSource = new ClamAVCache.ClamAVDigestSource(source, resultCache.newDigest());
+        return send(digestSource, trace).thenApply(scanResult -> {
+            resultCache.put(digestSource.getDigest(), version, scanResult);
+            return scanResult;
+        });
+    }
+
+    /**
+     * Digests content that can be read again on another thread, as it may
+     * be a whole file, and rewinds it to be sent.
+     *
+     * @return Future digest, with the size of the content.
+     */
+    private static CompletableFuture<ClamAVCache.ClamAVDigestSource> digest(final ClamAVCache resultCache, final ClamAVSource source) {
+        final CompletableFuture<ClamAVCache.ClamAVDigestSource> digested = new CompletableFuture<>();
+        try {
+            ClamAV.sharedExecutor().execute(() -> {
+                try {
+                    ClamAVCache.ClamAVDigestSource digestSource = new ClamAVCache.ClamAVDigestSource(source, resultCache.newDigest());
+                    while (digestSource.next() != null) {
+                        // Only the digest is needed.
+                    }
+                    source.rewind();
+                    digested.complete(digestSource);
+                } catch (IOException | RuntimeException ex) {
+                    digested.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            digested.completeExceptionally(ex);
+        }
+        return digested;
+    }
+
+    private CompletableFuture<ClamAVScanResult> send(final ClamAVSource source, final ClamAVScanTrace trace) {
+        return send(source, trace, null);
+    }
+
+    /**
+     * @param digested Digest of the content taken for the cache, which keys
+     * the scan in the coalescer as well, or null.
+     */
+    private CompletableFuture<ClamAVScanResult> send(final ClamAVSource source, final ClamAVScanTrace trace, final ClamAVCache.ClamAVDigestSource digested) {
+        final ClamAVCoalescer flights = this.coalescer;
+        if (flights == null) {
+            return transmit(source, trace);
+        }
+        if (digested != null) {
+            ClamAVCoalescer.ClamAVFlight flight = flights.prepare(source, digested.getAlgorithm(), digested.getDigest(), digested.getSize(), this.chunkSize);
+            if (flight != null) {
+                return coalesced(flights, flight, trace, false);
+            }
+        }
+        // The content is read on another thread, as it may be a whole file, or be fed by the caller, e.g. through a pipe.
+        final CompletableFuture<ClamAVCoalescer.ClamAVFlight> prepared = new CompletableFuture<>();
+        try {
+            ClamAV.sharedExecutor().execute(() -> {
+                try {
+                    prepared.complete(flights.prepare(source, this.chunkSize));
+                } catch (IOException | RuntimeException ex) {
+                    prepared.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            prepared.completeExceptionally(ex);
+        }
+        return prepared.handle((flight, exc) -> exc == null ? coalesced(flights, flight, trace, false) : failed(source, exc)).thenCompose(future -> future);
+    }
+
+    private CompletableFuture<ClamAVScanResult> coalesced(final ClamAVCoalescer flights, final ClamAVCoalescer.ClamAVFlight flight, final ClamAVScanTrace trace, final boolean retried) {
+        if (flights.join(flight)) {
+            CompletableFuture<ClamAVScanResult> future = transmit(flight.getSource(), trace);
+            future.whenComplete((result, exc) -> flights.land(flight, result, exc));
+            return future;
+        }
+        return flight.getFuture().handle((result, exc) -> {
+            if (exc == null) {
+                return done(flight.getSource(), result);
+            }
+            Throwable cause = exc instanceof CompletionException && exc.getCause() != null ? exc.getCause() : exc;
+            // The scan that was sent failed on its way, not on the content, so try once more.
+            try {
+                if (!retried && cause instanceof IOException && flight.getSource().rewind()) {
+                    return coalesced(flights, flight, trace, true);
+                }
+            } catch (IOException ex) {
+                cause.addSuppressed(ex);
+            }
+            return failed(flight.getSource(), cause);
+        }).thenCompose(future -> future);
+    }
+
+    private static CompletableFuture<ClamAVScanResult> done(ClamAVSource source, ClamAVScanResult result) {
+        try {
+            source.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return CompletableFuture.completedFuture(result);
+    }
+
+    /**
+     * Checks the database version for a cache on another thread, as it is
+     * retrieved with the blocking client.
+     *
+     * @return Database version the cache is valid for.
+     */
+    private CompletableFuture<Long> refresh(final ClamAVCache resultCache) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        try {
+            ClamAV.sharedExecutor().execute(() -> {
+                try {
+                    future.complete(resultCache.validate(checkedVersion()));
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
+                    future.complete(resultCache.getDatabaseVersion());
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Logger.getLogger(ClamAVAsync.class.getName()).log(Level.FINE, null, ex);
+            future.complete(resultCache.getDatabaseVersion());
+        }
+        return future;
+    }
+
+    /**
+     * @return Version seen by the background checks of the health if there
+     * are any, or else retrieved from clamd.
+     */
+    private ClamAVVersion checkedVersion() {
+        ClamAVHealth monitor = this.health;
+        ClamAVVersion version = monitor != null && monitor.getCheckInterval() > 0 ? monitor.getVersion() : null;
+        return version != null ? version : getVersion();
+    }
+
+    private CompletableFuture<ClamAVScanResult> transmit(final ClamAVSource source, final ClamAVScanTrace trace) {
+        final ClamAVHealth breaker = this.health;
+        if (breaker == null) {
+            return throttled(source, trace);
+        }
+        try {
+            breaker.acquire();
+        } catch (ClamAVUnavailableException ex) {
+            return failed(source, ex);
+        }
+        CompletableFuture<ClamAVScanResult> future = throttled(source, trace);
+        future.whenComplete((result, exc) -> {
+            Throwable cause = exc instanceof CompletionException && exc.getCause() != null ? exc.getCause() : exc;
+            if (trace.isSourceFailure(cause)) {
+                breaker.cancel();
+            } else {
+                breaker.record(cause);
+            }
+        });
+        return future;
+    }
+
+    private CompletableFuture<ClamAVScanResult> throttled(final ClamAVSource source, final ClamAVScanTrace trace) {
+        final ClamAVLimiter gate = this.limiter;
+        if (gate == null) {
+            return exchange(source, trace);
+        }
+        if (gate.isStatsCheckDue()) {
+            try {
+                ClamAV.sharedExecutor().execute(() -> gate.update(getStats()));
+            } catch (RejectedExecutionException ex) {
+                Logger.getLogger(ClamAVAsync.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+        return gate.acquireAsync().thenCompose(permit -> {
+            CompletableFuture<ClamAVScanResult> future = exchange(source, trace);
+            future.whenComplete((result, exc) -> gate.release(trace, exc instanceof CompletionException && exc.getCause() != null ? exc.getCause() : exc));
+            return future;
+        });
+    }
+
+    private CompletableFuture<ClamAVScanResult> exchange(ClamAVSource source, ClamAVScanTrace trace) {
+        if (this.address instanceof UnixDomainSocketAddress) {
+            return local(source, trace);
+        }
+        if (this.multiplexer == null && this.pool != null) {
+            return pooled(this.pool, new ClamAVRetrySource(source), trace, false);
+        }
+        source = readAhead(source);
+        if (this.multiplexer != null) {
+            return this.multiplexer.scan(source, trace);
+        }
+        try {
+            AsynchronousSocketChannel asynchronousSocketChannel = AsynchronousSocketChannel.open(this.asynchronousChannelGroup);
+            ClamAVAsyncScan scan = new ClamAVAsyncScan(source, asynchronousSocketChannel, new CompletableFuture<ClamAVScanResult>());
+            scan.trace = trace;
+            scan.timeouts = timeouts();
+            scan.connecting = ClamAVTimeouts.watch(asynchronousSocketChannel, this.connectTimeout);
+            asynchronousSocketChannel.connect(this.address, scan, ClamAVAsyncScan.CONNECT);
+            return scan.future;
+        } catch (IOException ex) {
+            return failed(source, ex);
+        }
+    }
+
+    private ClamAVSource readAhead(ClamAVSource source) {
+        if (this.readAhead > 0 && source.isBlocking()) {
+            return ClamAVReadAhead.of(source, this.readAhead, this.chunkSize, ClamAV.sharedExecutor());
+        }
+        return source;
+    }
+
+    /**
+     * Scans over a session of the pool once one is free, without blocking
+     * the caller while waiting for it or while it is being connected. A
+     * reused session that fails on its connection, e.g. as clamd dropped it
+     * while idle, is replaced once, as long as the content can be sent again.
+     */
+    private CompletableFuture<ClamAVScanResult> pooled(final ClamAVPool<AsynchronousSocketChannel> sessions, final ClamAVRetrySource source, final ClamAVScanTrace trace, final boolean retried) {
+        final ClamAVTimeouts scanTimeouts = timeouts();
+        return sessions.borrowAsync().handle((session, exc) -> {
+            if (exc != null) {
+                source.release();
+                return failed(source, exc instanceof CompletionException && exc.getCause() != null ? exc.getCause() : exc);
+            }
+            final boolean reused = session.getRequests() > 0;
+            // A file is read ahead by its path, which leaves it to be read again.
+            ClamAVSource content = source.getSource() instanceof ClamAVSource.ClamAVPathSource ? source.getSource() : source;
+            ClamAVAsyncScan scan = new ClamAVAsyncSessionScan(readAhead(content), sessions, session);
+            scan.trace = trace;
+            scan.timeouts = scanTimeouts;
+            trace.connected();
+            scan.start();
+            return scan.future.handle((result, failure) -> {
+                if (failure == null) {
+                    source.release();
+                    return CompletableFuture.completedFuture(result);
+                }
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                try {
+                    if (reused && !retried && cause instanceof IOException && !(cause instanceof ClamAVTimeoutException)
+                            && !trace.isSourceFailure(cause) && (source.rewind() || source.isUntouched())) {
+                        return pooled(sessions, source, trace, true);
+                    }
+                } catch (IOException ex) {
+                    cause.addSuppressed(ex);
+                }
+                source.release();
+                return failed(source, cause);
+            }).thenCompose(future -> future);
+        }).thenCompose(future -> future);
+    }
+
+    /**
+     * Scans over a local socket with the blocking INSTREAM of {@link ClamAV},
+     * which asynchronous channels cannot connect to.
+     */
+    private CompletableFuture<ClamAVScanResult> local(final ClamAVSource source, final ClamAVScanTrace trace) {
+        final SocketAddress socketAddress = this.address;
+        final ClamAVTimeouts scanTimeouts = timeouts();
+        final CompletableFuture<ClamAVScanResult> future = new CompletableFuture<>();
+        try {
+            ClamAV.sharedExecutor().execute(() -> {
+                try (ClamAVSource content = source) {
+                    future.complete(ClamAVScanResult.valueOf(ClamAV.scan(content, socketAddress, scanTimeouts, trace)));
+                } catch (IOException | ClamAVException | RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            return failed(source, ex);
+        }
+        return future;
+    }
+
+    private ClamAVTimeouts timeouts() {
+        return new ClamAVTimeouts(this.connectTimeout, this.writeTimeout, this.replyTimeout);
+    }
+
+    private static CompletableFuture<ClamAVScanResult> failed(ClamAVSource source, Throwable exc) {
+        try {
+            source.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        CompletableFuture<ClamAVScanResult> future = new CompletableFuture<>();
+        future.completeExceptionally(exc);
+        return future;
+    }
+
     public boolean ping() {
         return ClamAV.ping(this.address, this.timeout);
     }
 
+    /**
+     * Retrieves the load of clamd.
+     *
+     * @return STATS of clamd, null if they could not be retrieved.
+     */
+    public ClamAVStats getStats() {
+        return ClamAV.getStats(this.address, this.timeout);
+    }
+
+    /**
+     * Retrieves the ClamAV database version.
+     *
+     * @return ClamAV version.
+     */
+    public ClamAVVersion getVersion() {
+        return ClamAV.getVersion(this.address, this.timeout);
+    }
+
     @Override
     public void close() {
+        if (this.multiplexer != null) {
+            this.multiplexer.close();
+        }
+        if (this.pool != null) {
+            this.pool.close();
+        }
+        if (!this.ownsChannelGroup) {
+            return;
+        }
         this.asynchronousChannelGroup.shutdown();
         try {
-            this.asynchronousChannelGroup.awaitTermination(this.timeout == 0 ? Long.MAX_VALUE : this.timeout, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException ex) {
+            // Scans still running after the grace period are failed by closing their channels.
+            if (!this.asynchronousChannelGroup.awaitTermination(this.timeout == 0 ? defaultShutdownTimeout : this.timeout, TimeUnit.MILLISECONDS)) {
+                this.asynchronousChannelGroup.shutdownNow();
+            }
+        } catch (InterruptedException | IOException ex) {
             Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
-    static protected class ClamAVAsyncObject<A> {
+    /**
+     * Drives one INSTREAM request: command, length-prefixed chunks, the
+     * terminating zero-length chunk and the reply. Every chunk goes out
+     * together with its length in one gathering write, the first one also
+     * carrying the command. The object is its own completion handler for
+     * every write and read, so streaming a payload allocates nothing per
+     * chunk.
+     */
+    static protected class ClamAVAsyncScan implements CompletionHandler<Long, Void> {
+
+        protected static final CompletionHandler<Void, ClamAVAsyncScan> CONNECT = new CompletionHandler<Void, ClamAVAsyncScan>() {
+
+            @Override
+            public void completed(Void result, ClamAVAsyncScan scan) {
+                scan.connecting.cancel();
+                scan.trace.connected();
+                scan.start();
+            }
+
+            @Override
+            public void failed(Throwable exc, ClamAVAsyncScan scan) {
+                scan.fail(scan.timedOut(exc));
+            }
+        };
+
+        protected static final CompletionHandler<ByteBuffer, ClamAVAsyncScan> CHUNK = new CompletionHandler<ByteBuffer, ClamAVAsyncScan>() {
+
+            @Override
+            public void completed(ByteBuffer chunk, ClamAVAsyncScan scan) {
+                scan.data = chunk;
+                scan.frame();
+            }
+
+            @Override
+            public void failed(Throwable exc, ClamAVAsyncScan scan) {
+                scan.sourceFailed(scan.trace.sourceFailed(exc instanceof IOException ? (IOException) exc : new IOException(exc)));
+            }
+        };
+
+        protected static final CompletionHandler<Integer, ClamAVAsyncScan> RECEIVE = new CompletionHandler<Integer, ClamAVAsyncScan>() {
+
+            @Override
+            public void completed(Integer result, ClamAVAsyncScan scan) {
+                scan.received(result);
+            }
 
-        protected final InputStream inputStream;
-        protected final A attachment;
-        protected final ClamAVAsyncCallback<A> callback;
+            @Override
+            public void failed(Throwable exc, ClamAVAsyncScan scan) {
+                scan.answer(() -> scan.fail(scan.writeFailure != null ? scan.writeFailure : scan.timedOut(exc)));
+            }
+        };
+
+        protected static final int HEAD = 0;
+        protected static final int FRAME = 1;
+        protected static final int REPLY = 2;
+
+        protected final ClamAVSource source;
         protected final AsynchronousSocketChannel asynchronousSocketChannel;
+        protected final CompletableFuture<ClamAVScanResult> future;
         protected final ByteBuffer head = ByteBuffer.wrap(ClamAV.INSTREAM);
-        protected byte[] buffer = new byte[ClamAV.CHUNK];
-        protected int chunk = 0;
+        protected final ByteBuffer size = ByteBuffer.allocate(4);
+        protected final ByteBuffer[] frame = new ByteBuffer[3];
+        protected int offset;
+        protected int length;
         protected ByteBuffer data;
-        ByteBuffer size = ByteBuffer.allocate(4);
-        ByteBuffer read = ByteBuffer.allocate(1024);
+        protected ClamAVReplyDecoder decoder;
+        protected int state = HEAD;
+        protected boolean stopped = false;
+        ClamAVScanTrace trace = ClamAVScanTrace.NONE;
+        ClamAVTimeouts timeouts = ClamAVTimeouts.NONE;
+        ClamAVTimeouts.ClamAVWatchdog connecting = ClamAVTimeouts.ClamAVWatchdog.NONE;
+        private volatile ClamAVTimeouts.ClamAVWatchdog replying = ClamAVTimeouts.ClamAVWatchdog.NONE;
+        private boolean uploading = false;
+        private boolean finished = false;
+        private Runnable answer;
+        private Throwable writeFailure;
 
-        protected ClamAVAsyncObject(InputStream inputStream, A attachment, ClamAVAsyncCallback<A> callback, AsynchronousSocketChannel asynchronousSocketChannel) {
-            this.inputStream = inputStream;
-            this.attachment = attachment;
-            this.callback = callback;
+        protected ClamAVAsyncScan(ClamAVSource source, AsynchronousSocketChannel asynchronousSocketChannel, CompletableFuture<ClamAVScanResult> future) {
+            this.source = source;
             this.asynchronousSocketChannel = asynchronousSocketChannel;
+            this.future = future;
+        }
+
+        /**
+         * Starts writing on a connected channel, and reading from it at the
+         * same time. clamd only replies before the end of the content to
+         * reject it, e.g. past its StreamMaxLength, so such a reply stops the
+         * upload rather than the rest of the content being sent for nothing.
+         */
+        protected void start() {
+            this.state = HEAD;
+            synchronized (this) {
+                this.uploading = true;
+            }
+            watch();
+            chunk();
+        }
+
+        /**
+         * Starts reading the reply.
+         */
+        protected void watch() {
+            this.decoder = newDecoder();
+            receive();
+        }
+
+        @Override
+        public void completed(Long result, Void attachment) {
+            while (this.length > 0 && !this.frame[this.offset].hasRemaining()) {
+                this.offset++;
+                this.length--;
+            }
+            if (this.length > 0) {
+                gather();
+            } else if (this.data == null) {
+                written();
+            } else if (!answered()) {
+                chunk();
+            }
+        }
+
+        /**
+         * Called when a write failed. Unless it timed out, the connection may
+         * have been closed by clamd right after a reply, which is read to the
+         * end and takes precedence over the failure.
+         */
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            Throwable failure = timedOut(exc);
+            Runnable action;
+            synchronized (this) {
+                this.uploading = false;
+                action = this.answer;
+                if (action == null && failure instanceof IOException && !(failure instanceof ClamAVTimeoutException)) {
+                    this.writeFailure = failure;
+                    this.replying = ClamAVTimeouts.watch(this.asynchronousSocketChannel, this.timeouts.reply);
+                    return;
+                }
+            }
+            if (action != null) {
+                action.run();
+            } else {
+                fail(failure);
+            }
+        }
+
+        /**
+         * Maps the failure of an operation that ran out of time to the timeout
+         * exception of the phase it was in.
+         *
+         * @param exc Failure of a connect, write or read.
+         * @return Timeout exception, or the failure itself.
+         */
+        protected Throwable timedOut(Throwable exc) {
+            ClamAVTimeoutException timeoutException;
+            if (this.connecting.isExpired()) {
+                timeoutException = new ClamAVConnectTimeoutException("No connection to clamd within " + this.timeouts.connect + " ms");
+            } else if (this.replying.isExpired()) {
+                timeoutException = new ClamAVReplyTimeoutException("No reply from clamd within " + this.timeouts.reply + " ms");
+            } else if (!(exc instanceof InterruptedByTimeoutException)) {
+                return exc;
+            } else {
+                timeoutException = new ClamAVWriteTimeoutException("clamd accepted no content within " + this.timeouts.write + " ms");
+            }
+            timeoutException.initCause(exc);
+            return timeoutException;
+        }
+
+        /**
+         * Fetches the next chunk from the source and writes it, or the
+         * terminating zero length once the source is exhausted. A source read
+         * ahead hands out the chunk once it is read, without blocking.
+         */
+        private void chunk() {
+            if (this.source instanceof ClamAVReadAhead) {
+                ((ClamAVReadAhead) this.source).next(this, CHUNK);
+                return;
+            }
+            try {
+                this.data = this.source.next();
+            } catch (IOException ex) {
+                sourceFailed(this.trace.sourceFailed(ex));
+                return;
+            }
+            frame();
+        }
+
+        /**
+         * Writes the current chunk behind its length, zero if there is none,
+         * and behind the command if nothing has been written yet.
+         */
+        protected void frame() {
+            this.size.clear();
+            this.size.putInt(this.data == null ? 0 : this.data.remaining()).flip();
+            this.offset = 0;
+            this.length = 0;
+            if (this.state == HEAD) {
+                this.frame[this.length++] = this.head;
+            }
+            this.frame[this.length++] = this.size;
+            if (this.data != null) {
+                this.frame[this.length++] = this.data;
+                this.trace.streamed(this.data.remaining());
+            }
+            this.state = FRAME;
+            gather();
+        }
+
+        private void gather() {
+            this.asynchronousSocketChannel.write(this.frame, this.offset, this.length, this.timeouts.write, TimeUnit.MILLISECONDS, null, this);
+        }
+
+        /**
+         * Called when the content could not be read. The connection is left in
+         * the middle of a stream, so it is closed.
+         *
+         * @param exc Error of the source.
+         */
+        protected void sourceFailed(IOException exc) {
+            fail(exc);
+        }
+
+        /**
+         * Called once the terminating zero-length chunk has been written. The
+         * reply is being read already, from now on under the reply timeout.
+         */
+        protected void written() {
+            this.trace.uploaded();
+            this.state = REPLY;
+            synchronized (this) {
+                this.replying = ClamAVTimeouts.watch(this.asynchronousSocketChannel, this.timeouts.reply);
+            }
+            uploaded();
+        }
+
+        /**
+         * Ends the upload, and the scan too if clamd has replied meanwhile.
+         */
+        protected void uploaded() {
+            Runnable action;
+            synchronized (this) {
+                this.uploading = false;
+                action = this.answer;
+            }
+            if (action != null) {
+                action.run();
+            }
+        }
+
+        /**
+         * Stops the upload if clamd has replied meanwhile, and ends the scan
+         * with the reply.
+         *
+         * @return true if the upload was stopped.
+         */
+        private boolean answered() {
+            Runnable action;
+            synchronized (this) {
+                action = this.answer;
+                if (action == null) {
+                    return false;
+                }
+                this.uploading = false;
+                this.stopped = true;
+            }
+            action.run();
+            return true;
+        }
+
+        /**
+         * Ends the scan with what was read, once the upload is over. What is
+         * read during the upload is left to the writer, which stops at the
+         * next chunk, so the content is not read while the scan ends.
+         */
+        void answer(Runnable action) {
+            synchronized (this) {
+                if (this.uploading) {
+                    this.answer = action;
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        /**
+         * @return Decoder for the reply.
+         */
+        protected ClamAVReplyDecoder newDecoder() {
+            return new ClamAVReplyDecoder();
         }
 
-        protected void completed(String result) {
+        private void receive() {
+            try {
+                this.asynchronousSocketChannel.read(this.decoder.getBuffer(), this, RECEIVE);
+            } catch (IOException ex) {
+                answer(() -> fail(ex));
+            }
+        }
+
+        private void received(int result) {
+            if (this.decoder.next() || (result < 0 && this.decoder.finish())) {
+                answer(() -> replied(this.decoder));
+            } else if (result < 0) {
+                answer(() -> fail(this.writeFailure != null ? this.writeFailure : new IOException("Connection closed by clamd")));
+            } else {
+                receive();
+            }
+        }
+
+        /**
+         * Completes the scan with the reply of clamd.
+         *
+         * @param reply Decoded reply, valid during the call only.
+         */
+        protected void replied(ClamAVReplyDecoder reply) {
+            try {
+                complete(reply.getScanResult());
+            } catch (ClamAVException ex) {
+                fail(ex);
+            }
+        }
+
+        protected void complete(ClamAVScanResult result) {
+            if (!finish()) {
+                return;
+            }
+            this.trace.replied();
+            closeSource();
+            // A stream cut short leaves the connection out of step with clamd.
+            release(!this.stopped);
+            this.future.complete(result);
+        }
+
+        protected void fail(final Throwable exc) {
+            if (!finish()) {
+                return;
+            }
+            release(false);
+            // A read still in progress must be over before the content is read again, e.g. on another node.
+            ClamAVReadAhead.close(this.source, () -> this.future.completeExceptionally(exc));
+        }
+
+        /**
+         * Marks the scan as over, as a failing write and the read running
+         * alongside it may both try to end it, and stops its watchdogs.
+         *
+         * @return false if the scan was over already.
+         */
+        private boolean finish() {
+            synchronized (this) {
+                if (this.finished) {
+                    return false;
+                }
+                this.finished = true;
+            }
+            this.connecting.cancel();
+            this.replying.cancel();
+            return true;
+        }
+
+        /**
+         * Gives up the connection once the scan is over.
+         *
+         * @param healthy false if the connection must not be reused.
+         */
+        protected void release(boolean healthy) {
             try {
                 this.asynchronousSocketChannel.close();
             } catch (IOException ex) {
                 Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
             }
-            this.callback.completed(result, attachment, inputStream);
         }
 
-        protected void failed(Throwable exc) {
+        private void closeSource() {
             try {
-                this.asynchronousSocketChannel.close();
+                this.source.close();
             } catch (IOException ex) {
                 Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
             }
-            this.callback.failed(exc, attachment, inputStream);
         }
     }
 
-    static protected class ClamAVAsyncObjectCompletionHandlerRead implements CompletionHandler<Integer, ClamAVAsyncObject> {
+    /**
+     * Scan on a pooled IDSESSION connection, returned to the pool afterwards.
+     */
+    static protected class ClamAVAsyncSessionScan extends ClamAVAsyncScan {
 
-        @Override
-        public void completed(Integer result, ClamAVAsyncObject attachment) {
-            for (int index = 0; index < attachment.read.position(); index++) {
-                if (attachment.read.array()[index] == 0) {
-                    String status = new String(attachment.read.array()).substring(0, index);
-                    Matcher matcher = ClamAV.FOUND.matcher(status);
-                    if (matcher.matches()) {
-                        attachment.completed(matcher.group(1));
-                    } else if (ClamAV.OK.equals(status)) {
-                        attachment.completed("OK");
-                    } else {
-                        attachment.failed(new ClamAVException(status));
-                    }
-                    return;
-                }
-            }
+        protected final ClamAVPool<AsynchronousSocketChannel> pool;
+        protected final ClamAVSession<AsynchronousSocketChannel> session;
+        protected final int id;
 
-            attachment.asynchronousSocketChannel.read(attachment.read, attachment, this);
+        protected ClamAVAsyncSessionScan(ClamAVSource source, ClamAVPool<AsynchronousSocketChannel> pool, ClamAVSession<AsynchronousSocketChannel> session) {
+            super(source, session.getChannel(), new CompletableFuture<ClamAVScanResult>());
+            this.pool = pool;
+            this.session = session;
+            this.id = session.nextId();
         }
 
         @Override
-        public void failed(Throwable exc, ClamAVAsyncObject attachment) {
-            attachment.failed(exc);
+        protected ClamAVReplyDecoder newDecoder() {
+            ClamAVReplyDecoder sessionDecoder = this.session.getDecoder();
+            sessionDecoder.reset();
+            return sessionDecoder;
         }
-    }
-
-    static protected class ClamAVAsyncObjectCompletionHandlerData implements CompletionHandler<Integer, ClamAVAsyncObject> {
 
         @Override
-        public void completed(Integer result, ClamAVAsyncObject attachment) {
-            if (attachment.head.remaining() != 0) {
-                attachment.asynchronousSocketChannel.write(attachment.data, attachment, this);
+        protected void replied(ClamAVReplyDecoder reply) {
+            if (reply.getId() != this.id) {
+                fail(new IOException("Unexpected reply for request " + this.id + ": " + reply));
             } else {
-                if (attachment.chunk == ClamAV.CHUNK) {
-                    try {
-                        if ((attachment.chunk = attachment.inputStream.read(attachment.buffer)) < 0) {
-                            attachment.chunk = 0;
-                        }
-                        attachment.data = ByteBuffer.wrap(attachment.buffer, 0, attachment.chunk);
-                        attachment.size.clear();
-                        attachment.size.putInt(attachment.chunk).flip();
-                        attachment.asynchronousSocketChannel.write(attachment.size, attachment, new ClamAVAsyncObjectCompletionHandlerSize());
-                    } catch (IOException ex) {
-                        Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
-                        this.failed(ex, attachment);
-                    }
-                } else {
-                    attachment.chunk = 0;
-                    attachment.size.clear();
-                    attachment.size.putInt(attachment.chunk).flip();
-                    attachment.asynchronousSocketChannel.write(attachment.size, attachment, new ClamAVAsyncObjectCompletionHandlerSize());
-                }
+                super.replied(reply);
             }
         }
 
         @Override
-        public void failed(Throwable exc, ClamAVAsyncObject attachment) {
-            attachment.failed(exc);
+        protected void release(boolean healthy) {
+            if (healthy) {
+                this.pool.release(this.session);
+            } else {
+                this.pool.invalidate(this.session);
+            }
         }
     }
 
-    static protected class ClamAVAsyncObjectCompletionHandlerSize implements CompletionHandler<Integer, ClamAVAsyncObject> {
+    /**
+     * Opens asynchronous connections in IDSESSION mode for {@link ClamAVPool}.
+     */
+    protected static class ClamAVAsyncSessionConnector implements ClamAVPool.Connector<AsynchronousSocketChannel> {
+
+        private final AsynchronousChannelGroup asynchronousChannelGroup;
+        private final InetSocketAddress address;
+        private final int timeout;
+
+        protected ClamAVAsyncSessionConnector(AsynchronousChannelGroup asynchronousChannelGroup, InetSocketAddress address, int timeout) {
+            this.asynchronousChannelGroup = asynchronousChannelGroup;
+            this.address = address;
+            this.timeout = timeout;
+        }
 
         @Override
-        public void completed(Integer result, ClamAVAsyncObject attachment) {
-            if (attachment.head.remaining() != 0) {
-                attachment.asynchronousSocketChannel.write(attachment.size, attachment, this);
-            } else {
-                if (attachment.chunk == 0) {
-                    attachment.asynchronousSocketChannel.read(attachment.read, attachment, new ClamAVAsyncObjectCompletionHandlerRead());
+        public AsynchronousSocketChannel connect() throws IOException {
+            AsynchronousSocketChannel asynchronousSocketChannel = AsynchronousSocketChannel.open(this.asynchronousChannelGroup);
+            try {
+                if (this.timeout > 0) {
+                    asynchronousSocketChannel.connect(this.address).get(this.timeout, TimeUnit.MILLISECONDS);
                 } else {
-                    attachment.asynchronousSocketChannel.write(attachment.data, attachment, new ClamAVAsyncObjectCompletionHandlerData());
+                    asynchronousSocketChannel.connect(this.address).get();
+                }
+                ByteBuffer head = ByteBuffer.wrap(ClamAV.IDSESSION);
+                while (head.hasRemaining()) {
+                    asynchronousSocketChannel.write(head).get();
                 }
+                return asynchronousSocketChannel;
+            } catch (InterruptedException ex) {
+                asynchronousSocketChannel.close();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                asynchronousSocketChannel.close();
+                throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+            } catch (TimeoutException ex) {
+                asynchronousSocketChannel.close();
+                throw (ClamAVConnectTimeoutException) new ClamAVConnectTimeoutException("No connection to " + this.address + " within " + this.timeout + " ms").initCause(ex);
             }
         }
 
         @Override
-        public void failed(Throwable exc, ClamAVAsyncObject attachment) {
-            attachment.failed(exc);
-        }
-    }
-
-    static protected class ClamAVAsyncObjectCompletionHandlerHead implements CompletionHandler<Integer, ClamAVAsyncObject> {
+        public CompletableFuture<AsynchronousSocketChannel> connectAsync() {
+            final CompletableFuture<AsynchronousSocketChannel> future = new CompletableFuture<>();
+            final AsynchronousSocketChannel asynchronousSocketChannel;
+            try {
+                asynchronousSocketChannel = AsynchronousSocketChannel.open(this.asynchronousChannelGroup);
+            } catch (IOException ex) {
+                future.completeExceptionally(ex);
+                return future;
+            }
+            final ByteBuffer head = ByteBuffer.wrap(ClamAV.IDSESSION);
+            final ClamAVTimeouts.ClamAVWatchdog watchdog = ClamAVTimeouts.watch(asynchronousSocketChannel, this.timeout);
+            final CompletionHandler<Integer, Void> written = new CompletionHandler<Integer, Void>() {
 
-        @Override
-        public void completed(Integer result, ClamAVAsyncObject attachment) {
-            if (attachment.head.remaining() != 0) {
-                attachment.asynchronousSocketChannel.write(attachment.head, attachment, this);
-            } else {
-                try {
-                    if ((attachment.chunk = attachment.inputStream.read(attachment.buffer)) < 0) {
-                        attachment.chunk = 0;
+                @Override
+                public void completed(Integer result, Void attachment) {
+                    if (head.hasRemaining()) {
+                        asynchronousSocketChannel.write(head, null, this);
+                        return;
                     }
-                    attachment.data = ByteBuffer.wrap(attachment.buffer, 0, attachment.chunk);
-                    attachment.size.clear();
-                    attachment.size.putInt(attachment.chunk).flip();
-                    attachment.asynchronousSocketChannel.write(attachment.size, attachment, new ClamAVAsyncObjectCompletionHandlerSize());
-                } catch (IOException ex) {
-                    Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
-                    this.failed(ex, attachment);
+                    watchdog.cancel();
+                    future.complete(asynchronousSocketChannel);
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    connectFailed(asynchronousSocketChannel, watchdog, exc, future);
                 }
+            };
+            try {
+                asynchronousSocketChannel.connect(this.address, null, new CompletionHandler<Void, Void>() {
+
+                    @Override
+                    public void completed(Void result, Void attachment) {
+                        asynchronousSocketChannel.write(head, null, written);
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, Void attachment) {
+                        connectFailed(asynchronousSocketChannel, watchdog, exc, future);
+                    }
+                });
+            } catch (RuntimeException ex) {
+                connectFailed(asynchronousSocketChannel, watchdog, ex, future);
             }
+            return future;
         }
 
-        @Override
-        public void failed(Throwable exc, ClamAVAsyncObject attachment) {
-            attachment.failed(exc);
+        private void connectFailed(AsynchronousSocketChannel asynchronousSocketChannel, ClamAVTimeouts.ClamAVWatchdog watchdog, Throwable exc, CompletableFuture<AsynchronousSocketChannel> future) {
+            watchdog.cancel();
+            try {
+                asynchronousSocketChannel.close();
+            } catch (IOException ex) {
+                exc.addSuppressed(ex);
+            }
+            if (watchdog.isExpired()) {
+                exc = new ClamAVConnectTimeoutException("No connection to " + this.address + " within " + this.timeout + " ms").initCause(exc);
+            }
+            future.completeExceptionally(exc);
         }
-    }
-
-    static protected class ClamAVAsyncObjectCompletionHandlerConnect implements CompletionHandler<Void, ClamAVAsyncObject> {
 
         @Override
-        public void completed(Void result, ClamAVAsyncObject attachment) {
-            attachment.asynchronousSocketChannel.write(attachment.head, attachment, new ClamAVAsyncObjectCompletionHandlerHead());
+        public boolean isAlive(AsynchronousSocketChannel asynchronousSocketChannel) {
+            return asynchronousSocketChannel.isOpen();
         }
 
         @Override
-        public void failed(Throwable exc, ClamAVAsyncObject attachment) {
-            attachment.failed(exc);
+        public void disconnect(AsynchronousSocketChannel asynchronousSocketChannel) throws IOException {
+            try {
+                if (asynchronousSocketChannel.isOpen()) {
+                    asynchronousSocketChannel.write(ByteBuffer.wrap(ClamAV.END)).get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | IllegalStateException ex) {
+                // A channel whose write timed out refuses further writes.
+                Logger.getLogger(ClamAVAsync.class.getName()).log(Level.FINE, null, ex);
+            } finally {
+                asynchronousSocketChannel.close();
+            }
         }
     }
 
     public static void main(String[] args) {
         if (args.length == 0) {
-            System.out.println("Usage: java program [--host <host>] [--port <port>] [--timeout <timeout>] [--ping] [<file/directory>]");
+            System.out.println("Usage: java program [--host <host>] [--port <port>] [--socket <path>] [--timeout <timeout>] [--jobs <jobs>] [--ordered] [--ping] [<file/directory>]");
             return;
         }
 
         int timeout = ClamAV.defaultTimeout;
         int port = ClamAV.defaultPort;
         String host = ClamAV.defaultHost;
+        String socket = null;
+        int jobs = defaultJobs;
+        boolean ordered = false;
         boolean ping = false;
         for (int index = 0; index < args.length - 1; index++) {
             if ("--host".equals(args[index]) && index + 1 < args.length - 1) {
@@ -263,62 +1413,41 @@ public class ClamAVAsync implements AutoCloseable {
             } else if ("--port".equals(args[index]) && index + 1 < args.length - 1) {
                 index++;
                 port = Integer.parseInt(args[index]);
+            } else if ("--socket".equals(args[index]) && index + 1 < args.length - 1) {
+                index++;
+                socket = args[index];
             } else if ("--timeout".equals(args[index]) && index + 1 < args.length - 1) {
                 index++;
                 timeout = Integer.parseInt(args[index]);
+            } else if ("--jobs".equals(args[index]) && index + 1 < args.length - 1) {
+                index++;
+                jobs = Integer.parseInt(args[index]);
+            } else if ("--ordered".equals(args[index])) {
+                ordered = true;
             } else if ("--ping".equals(args[index])) {
                 ping = true;
             } else {
-                System.out.println("Usage: java program [--host <host>] [--port <port>] [--timeout <timeout>] <file/directory>");
+                System.out.println("Usage: java program [--host <host>] [--port <port>] [--socket <path>] [--timeout <timeout>] [--jobs <jobs>] [--ordered] <file/directory>");
                 return;
             }
         }
-        try (final ClamAVAsync clamAVAsync = new ClamAVAsync(new InetSocketAddress(host, port), timeout)) {
+        try (final ClamAVAsync clamAVAsync = new ClamAVAsync(socket == null ? new InetSocketAddress(host, port) : UnixDomainSocketAddress.of(socket), timeout)) {
             if (ping || ("--ping".equals(args[args.length - 1]))) {
-                System.out.println(clamAVAsync.getAddress() + ": " + (clamAVAsync.ping() ? "ALIVE" : "DOWN"));
+                System.out.println(clamAVAsync.getSocketAddress() + ": " + (clamAVAsync.ping() ? "ALIVE" : "DOWN"));
             } else {
-                final Path path = Paths.get(args[args.length - 1]);
-                try {
-                    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
-                        @Override
-                        public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
-                            try {
-                                InputStream inputStream = new FileInputStream(path.toFile());
-                                clamAVAsync.scan(inputStream, path.toString(), new ClamAVAsyncCallback<String>() {
-
-                                    @Override
-                                    public void completed(String result, String attachment, InputStream inputStream) {
-                                        System.out.println(attachment + ": " + ("OK".equals(result) ? "OK" : (result + " FOUND")));
-                                        try {
-                                            inputStream.close();
-                                        } catch (IOException ex) {
-                                            Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
-                                        }
-                                    }
-
-                                    @Override
-                                    public void failed(Throwable exc, String attachment, InputStream inputStream) {
-                                        System.out.println(attachment + ": " + exc);
-                                        try {
-                                            inputStream.close();
-                                        } catch (IOException ex) {
-                                            Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
-                                        }
-                                    }
-                                });
-                            } catch (IOException ex) {
-                                System.out.println(path + ": " + ex);
-                                Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
-                            }
-                            return FileVisitResult.CONTINUE;
-                        }
-                    });
-                } catch (IOException ex) {
-                    Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
-                }
+                ClamAVDirectoryScanner directoryScanner = new ClamAVDirectoryScanner(clamAVAsync, jobs);
+                directoryScanner.setOrdered(ordered);
+                ClamAVDirectoryScanner.ClamAVScanSummary summary = directoryScanner.scan(Paths.get(args[args.length - 1]), System.out::println);
+                System.out.println(summary);
             }
         } catch (IOException ex) {
             Logger.getLogger(ClamAVAsync.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
+
+    protected static final int defaultJobs = 16;
+    protected static final long defaultShutdownTimeout = 30000;
+    protected static final int defaultReadAhead = 1;
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles direct buffers between scans. Allocating a direct buffer is far
+ * more expensive than a heap one, but content read into it goes from the file
+ * to the socket without being copied through the heap.
+ * <p>
+ * Only buffers up to twice the default chunk size are kept, so a few scans
+ * with a large chunk size do not hold on to their buffers for good.
+ */
+final class ClamAVBuffers {
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger count = new AtomicInteger();
+
+    private ClamAVBuffers() {
+    }
+
+    /**
+     * @param capacity Minimum capacity of the buffer.
+     * @return Cleared direct buffer limited to the capacity.
+     */
+    static ByteBuffer acquire(int capacity) {
+        if (capacity > maxBufferSize) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            count.decrementAndGet();
+            if (buffer.capacity() >= capacity) {
+                buffer.clear().limit(capacity);
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Hands a buffer back for reuse. The caller must not touch it afterwards.
+     *
+     * @param buffer Buffer returned by {@link #acquire}.
+     */
+    static void release(ByteBuffer buffer) {
+        if (buffer.capacity() > maxBufferSize) {
+            return;
+        }
+        if (count.incrementAndGet() > maxBuffers) {
+            count.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    static final int maxBuffers = 64;
+    static final int maxBufferSize = 2 * ClamAV.defaultChunkSize;
+}
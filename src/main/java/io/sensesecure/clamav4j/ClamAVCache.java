@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of scan results keyed by a digest of the content.
+ * <p>
+ * A verdict is only valid for the signature database it was produced with, so
+ * the cache remembers the database version reported by clamd and drops every
+ * entry once a different version is seen. The clients ask for the version at
+ * most once per check interval, in the background of a single scan, and keep
+ * the entries if clamd could not be asked.
+ */
+public class ClamAVCache {
+
+    private final int maxEntries;
+    private final String algorithm;
+    private final LinkedHashMap<ByteBuffer, ClamAVScanResult> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long memory = 0;
+    private long databaseVersion = -1;
+    private long versionCheckInterval = defaultVersionCheckInterval;
+    private volatile long versionChecked = 0;
+
+    public ClamAVCache(int maxEntries) {
+        this(maxEntries, defaultAlgorithm);
+    }
+
+    /**
+     * @param maxEntries Maximum number of results kept.
+     * @param algorithm Name of the {@link MessageDigest} algorithm for keys.
+     */
+    public ClamAVCache(int maxEntries, String algorithm) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        newDigest(algorithm);
+        this.maxEntries = maxEntries;
+        this.algorithm = algorithm;
+        this.entries = new LinkedHashMap<ByteBuffer, ClamAVScanResult>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ClamAVScanResult> eldest) {
+                if (size() > ClamAVCache.this.maxEntries) {
+                    memory -= footprint(eldest.getKey(), eldest.getValue());
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    public String getAlgorithm() {
+        return this.algorithm;
+    }
+
+    /**
+     * @return Milliseconds between two database version checks.
+     */
+    public long getVersionCheckInterval() {
+        return this.versionCheckInterval;
+    }
+
+    public void setVersionCheckInterval(long versionCheckInterval) {
+        this.versionCheckInterval = versionCheckInterval;
+    }
+
+    /**
+     * @return Database version the cached results belong to, -1 if unknown.
+     */
+    public synchronized long getDatabaseVersion() {
+        return this.databaseVersion;
+    }
+
+    /**
+     * Tells whether the database version should be checked again, and if so
+     * takes the check upon the caller, so only one of concurrent callers gets
+     * true.
+     *
+     * @return true if the caller should pass the version to {@link #validate}.
+     */
+    public boolean isVersionCheckDue() {
+        long checked = this.versionChecked;
+        long now = System.currentTimeMillis();
+        if (now - checked < this.versionCheckInterval) {
+            return false;
+        }
+        synchronized (this) {
+            if (this.versionChecked != checked) {
+                return false;
+            }
+            this.versionChecked = now;
+            return true;
+        }
+    }
+
+    /**
+     * Records the database version reported by clamd, dropping every entry if
+     * it changed. A failed check keeps the entries, as the database is not
+     * known to have changed, and it is checked again after the interval.
+     *
+     * @param version Version reported by clamd, null if it could not be
+     * retrieved.
+     * @return Database version the cache is valid for, -1 if unknown.
+     */
+    public synchronized long validate(ClamAVVersion version) {
+        this.versionChecked = System.currentTimeMillis();
+        if (version != null && version.getDatabaseVersion() != this.databaseVersion) {
+            clear();
+            this.databaseVersion = version.getDatabaseVersion();
+        }
+        return this.databaseVersion;
+    }
+
+    /**
+     * Looks up the result for a digest.
+     *
+     * @param digest Digest of the content.
+     * @return Cached result, or null.
+     */
+    public synchronized ClamAVScanResult get(byte[] digest) {
+        ClamAVScanResult result = this.databaseVersion < 0 ? null : this.entries.get(ByteBuffer.wrap(digest));
+        (result == null ? this.misses : this.hits).incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Stores a result, unless the database changed since the scan started.
+     *
+     * @param digest Digest of the content.
+     * @param databaseVersion Version returned by {@link #getDatabaseVersion}
+     * before the scan.
+     * @param result Result of the scan.
+     */
+    public synchronized void put(byte[] digest, long databaseVersion, ClamAVScanResult result) {
+        if (databaseVersion < 0 || databaseVersion != this.databaseVersion) {
+            return;
+        }
+        ByteBuffer key = ByteBuffer.wrap(digest);
+        ClamAVScanResult previous = this.entries.put(key, result);
+        if (previous != null) {
+            this.memory -= footprint(key, previous);
+        }
+        this.memory += footprint(key, result);
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+        this.memory = 0;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * @return Share of lookups answered from the cache, between 0 and 1.
+     */
+    public double getHitRate() {
+        long hit = this.hits.get();
+        long total = hit + this.misses.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * @return Estimated heap used by the entries, in bytes.
+     */
+    public synchronized long getMemoryUsage() {
+        return this.memory;
+    }
+
+    public MessageDigest newDigest() {
+        return newDigest(this.algorithm);
+    }
+
+    /**
+     * Digests a source from its current position to the end.
+     *
+     * @param source Content to digest.
+     * @return Digest of the content.
+     * @throws IOException If the content could not be read.
+     */
+    public byte[] digest(ClamAVSource source) throws IOException {
+        MessageDigest messageDigest = newDigest();
+        for (ByteBuffer chunk = source.next(); chunk != null; chunk = source.next()) {
+            messageDigest.update(chunk);
+        }
+        return messageDigest.digest();
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    /**
+     * Rough heap size of an entry: map node, key buffer and digest array, and
+     * the result with its signature name.
+     */
+    private static long footprint(ByteBuffer key, ClamAVScanResult result) {
+        long size = 64 + 48 + 16 + key.capacity();
+        if (result != ClamAVScanResult.OK) {
+            size += 16 + 40 + 2 * result.getStatus().length();
+        }
+        return size;
+    }
+
+    /**
+     * Digests the chunks of another source as they are handed out, so the
+     * digest is ready once the content has been streamed.
+     */
+    public static class ClamAVDigestSource implements ClamAVSource {
+
+        private final ClamAVSource source;
+        private final MessageDigest messageDigest;
+        private byte[] digest;
+        private long size = 0;
+
+        public ClamAVDigestSource(ClamAVSource source, MessageDigest messageDigest) {
+            this.source = source;
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            ByteBuffer chunk = this.source.next();
+            if (chunk == null) {
+                if (this.digest == null) {
+                    this.digest = this.messageDigest.digest();
+                }
+                return null;
+            }
+            int position = chunk.position();
+            this.size += chunk.remaining();
+            this.messageDigest.update(chunk);
+            chunk.position(position);
+            return chunk;
+        }
+
+        /**
+         * @return Digest of the content, null until it has been fully read.
+         */
+        public byte[] getDigest() {
+            return this.digest;
+        }
+
+        /**
+         * @return Number of bytes handed out so far.
+         */
+        public long getSize() {
+            return this.size;
+        }
+
+        public String getAlgorithm() {
+            return this.messageDigest.getAlgorithm();
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return this.source.isBlocking();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.source.close();
+        }
+    }
+
+    protected static final String defaultAlgorithm = "SHA-256";
+    protected static final long defaultVersionCheckInterval = 60000;
+}
@@ -0,0 +1,607 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads scans over several clamd daemons.
+ * <p>
+ * Every node is served by its own {@link ClamAVAsync} on a shared channel
+ * group. A background task pings the nodes and takes unreachable ones out of
+ * rotation until they answer again. A scan that fails on a node because of a
+ * connection error marks the node down and, if its content can be read again,
+ * is retried on another node.
+ * <p>
+ * Hedging is off by default. Once enabled, a scan whose verdict takes longer
+ * than a percentile of the recent scan latency is sent to a second node as
+ * well, and the first verdict wins. This cuts the tail latency caused by a
+ * node busy with a large archive. The content is buffered to be sent twice,
+ * up to a limit, and hedges are capped to a share of the scans.
+ */
+public class ClamAVCluster implements AutoCloseable {
+
+    /**
+     * How a node is picked for a scan.
+     */
+    public enum Balancing {
+        /**
+         * The healthy node with the fewest scans in progress.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * The less busy of two healthy nodes picked at random.
+         */
+        POWER_OF_TWO_CHOICES
+    }
+
+    private final AsynchronousChannelGroup asynchronousChannelGroup;
+    private final List<ClamAVClusterNode> nodes;
+    private final ScheduledExecutorService healthCheck;
+    private final int timeout;
+    private volatile Balancing balancing = Balancing.LEAST_OUTSTANDING;
+    private int chunkSize = ClamAV.defaultChunkSize;
+    private volatile double hedgePercentile = 0;
+    private volatile double maxHedgeRatio = defaultMaxHedgeRatio;
+    private volatile int maxHedgeBufferSize = defaultMaxHedgeBufferSize;
+    private volatile ClamAVHistogram latencies = new ClamAVHistogram();
+    private volatile ClamAVHistogram previousLatencies;
+    private double hedgeBudget = hedgeBurst;
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    public ClamAVCluster(List<? extends SocketAddress> addresses, int timeout) throws IOException {
+        this(addresses, timeout, defaultHealthCheckInterval);
+    }
+
+    /**
+     * @param addresses Addresses of the clamd daemons.
+     * @param timeout Timeout for requests.
+     * @param healthCheckInterval Milliseconds between two pings of a node.
+     * The nodes are pinged in parallel, within the timeout, or within 2
+     * seconds if it is 0.
+     * @throws IOException If the channel group could not be created.
+     */
+    public ClamAVCluster(List<? extends SocketAddress> addresses, int timeout, long healthCheckInterval) throws IOException {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("At least one address is required");
+        }
+        this.asynchronousChannelGroup = AsynchronousChannelGroup.withThreadPool(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+        this.timeout = timeout;
+        List<ClamAVClusterNode> list = new ArrayList<>();
+        for (SocketAddress address : addresses) {
+            list.add(new ClamAVClusterNode(new ClamAVAsync(this.asynchronousChannelGroup, address, timeout)));
+        }
+        this.nodes = Collections.unmodifiableList(list);
+        this.healthCheck = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "clamav4j-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.healthCheck.scheduleWithFixedDelay(this::check, 0, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public List<ClamAVClusterNode> getNodes() {
+        return this.nodes;
+    }
+
+    public Balancing getBalancing() {
+        return this.balancing;
+    }
+
+    public void setBalancing(Balancing balancing) {
+        this.balancing = balancing;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * @param chunkSize Maximum number of bytes per INSTREAM chunk.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return Percentile of the recent latency after which a scan is hedged,
+     * 0 if hedging is off.
+     */
+    public double getHedgePercentile() {
+        return this.hedgePercentile;
+    }
+
+    /**
+     * Sends a scan to a second node as well when its verdict takes longer
+     * than the given percentile of the recent scan latency. Hedging starts
+     * once enough scans were measured.
+     *
+     * @param hedgePercentile Percentile between 0 and 100, e.g. 95, or 0 to
+     * turn hedging off.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile < 0 || hedgePercentile > 100) {
+            throw new IllegalArgumentException("hedgePercentile must be between 0 and 100");
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public double getMaxHedgeRatio() {
+        return this.maxHedgeRatio;
+    }
+
+    /**
+     * @param maxHedgeRatio Maximum share of scans sent twice, e.g. 0.05 for
+     * at most 5% more load on the nodes.
+     */
+    public void setMaxHedgeRatio(double maxHedgeRatio) {
+        if (maxHedgeRatio < 0 || maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("maxHedgeRatio must be between 0 and 1");
+        }
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    public int getMaxHedgeBufferSize() {
+        return this.maxHedgeBufferSize;
+    }
+
+    /**
+     * @param maxHedgeBufferSize Maximum number of bytes buffered per scan to
+     * be sent a second time. Larger content is never hedged.
+     */
+    public void setMaxHedgeBufferSize(int maxHedgeBufferSize) {
+        if (maxHedgeBufferSize < 0) {
+            throw new IllegalArgumentException("maxHedgeBufferSize must not be negative");
+        }
+        this.maxHedgeBufferSize = maxHedgeBufferSize;
+    }
+
+    /**
+     * @return Number of scans sent to a second node.
+     */
+    public long getHedged() {
+        return this.hedged.get();
+    }
+
+    /**
+     * @return Number of scans answered by the second node first.
+     */
+    public long getHedgeWins() {
+        return this.hedgeWins.get();
+    }
+
+    public CompletableFuture<ClamAVScanResult> scan(InputStream inputStream) {
+        return scan(ClamAVSource.of(inputStream, this.chunkSize));
+    }
+
+    public CompletableFuture<ClamAVScanResult> scan(ByteBuffer byteBuffer) {
+        return scan(ClamAVSource.of(byteBuffer, this.chunkSize));
+    }
+
+    public CompletableFuture<ClamAVScanResult> scan(ByteBuffer[] byteBuffers) {
+        return scan(ClamAVSource.of(byteBuffers, this.chunkSize));
+    }
+
+    public CompletableFuture<ClamAVScanResult> scan(FileChannel fileChannel) {
+        return scan(ClamAVSource.of(fileChannel, this.chunkSize));
+    }
+
+    public CompletableFuture<ClamAVScanResult> scan(Path path) {
+        return scan(ClamAVSource.of(path, this.chunkSize));
+    }
+
+    /**
+     * Scans content on the node picked by the balancing strategy.
+     *
+     * @param source Content to be scanned, closed once the scan is over.
+     * @return Future verdict.
+     */
+    public CompletableFuture<ClamAVScanResult> scan(ClamAVSource source) {
+        final CompletableFuture<ClamAVScanResult> future = new CompletableFuture<>();
+        long delay = this.hedgePercentile > 0 && this.nodes.size() > 1 ? hedgeDelay() : -1;
+        if (delay < 0) {
+            attempt(new ClamAVRetrySource(source), new ArrayList<ClamAVClusterNode>(), future);
+            return future;
+        }
+        // The content is buffered on another thread, as it may be a whole file, or be fed by the caller, e.g. through a pipe.
+        try {
+            ClamAV.sharedExecutor().execute(() -> hedge(source, delay, future));
+        } catch (RejectedExecutionException ex) {
+            new ClamAVRetrySource(source).release();
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Buffers content to send it to a first node, and to a second one after
+     * the delay. Content too large to be buffered is sent to one node only.
+     */
+    private void hedge(ClamAVSource source, long delay, CompletableFuture<ClamAVScanResult> future) {
+        ByteBuffer content;
+        try {
+            content = ClamAVCoalescer.buffer(source, this.maxHedgeBufferSize);
+            if (content.limit() > this.maxHedgeBufferSize) {
+                ClamAVSource rest = source.rewind() ? source : new ClamAVCoalescer.ClamAVPrefixSource(content, source, this.chunkSize);
+                attempt(new ClamAVRetrySource(rest), new ArrayList<ClamAVClusterNode>(), future);
+                return;
+            }
+        } catch (IOException | RuntimeException ex) {
+            new ClamAVRetrySource(source).release();
+            future.completeExceptionally(ex);
+            return;
+        }
+        new ClamAVRetrySource(source).release();
+        final ClamAVHedge hedge = new ClamAVHedge(content, future);
+        launch(hedge, false);
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> launch(hedge, true));
+    }
+
+    private void attempt(final ClamAVRetrySource source, final List<ClamAVClusterNode> tried, final CompletableFuture<ClamAVScanResult> future) {
+        final ClamAVClusterNode node = select(tried);
+        tried.add(node);
+        node.outstanding.incrementAndGet();
+        final long start = System.nanoTime();
+        node.client.scan(source).whenComplete((result, exc) -> {
+            node.outstanding.decrementAndGet();
+            Throwable cause = exc instanceof CompletionException ? exc.getCause() : exc;
+            if (cause == null) {
+                measured(System.nanoTime() - start);
+                source.release();
+                future.complete(result);
+                return;
+            }
+            if (cause instanceof IOException && !source.isFailure(cause)) {
+                node.down(cause);
+                try {
+                    if (tried.size() < this.nodes.size() && (source.rewind() || source.isUntouched())) {
+                        attempt(source, tried, future);
+                        return;
+                    }
+                } catch (IOException ex) {
+                    cause = ex;
+                }
+            }
+            source.release();
+            future.completeExceptionally(cause);
+        });
+    }
+
+    /**
+     * Sends buffered content to a node not tried yet. A hedge is only sent
+     * while no verdict is in, to a healthy node, and within the budget.
+     */
+    private void launch(final ClamAVHedge hedge, final boolean hedging) {
+        final ClamAVClusterNode node;
+        final ClamAVHedgeSource source;
+        synchronized (hedge) {
+            if (hedge.future.isDone() || hedge.tried.size() >= this.nodes.size()) {
+                return;
+            }
+            node = select(hedge.tried);
+            if (hedging && (!node.healthy || !spendHedge())) {
+                return;
+            }
+            hedge.tried.add(node);
+            source = new ClamAVHedgeSource(hedge.content.duplicate(), this.chunkSize, hedging);
+            hedge.running.add(source);
+        }
+        if (hedging) {
+            this.hedged.incrementAndGet();
+        }
+        node.outstanding.incrementAndGet();
+        final long start = System.nanoTime();
+        node.client.scan(source).whenComplete((result, exc) -> {
+            node.outstanding.decrementAndGet();
+            Throwable cause = exc instanceof CompletionException ? exc.getCause() : exc;
+            if (cause == null) {
+                measured(System.nanoTime() - start);
+            }
+            boolean pending = false;
+            boolean retry = false;
+            synchronized (hedge) {
+                hedge.running.remove(source);
+                if (source.cancelled) {
+                    return;
+                }
+                if (cause instanceof IOException) {
+                    pending = !hedge.running.isEmpty();
+                    retry = !pending && hedge.tried.size() < this.nodes.size();
+                } else {
+                    // The first verdict wins, the scans still running are cut short.
+                    for (ClamAVHedgeSource loser : hedge.running) {
+                        loser.cancelled = true;
+                    }
+                }
+            }
+            if (cause instanceof IOException) {
+                node.down(cause);
+                if (retry) {
+                    launch(hedge, false);
+                } else if (!pending) {
+                    hedge.future.completeExceptionally(cause);
+                }
+                return;
+            }
+            if (cause != null) {
+                hedge.future.completeExceptionally(cause);
+                return;
+            }
+            if (source.hedging) {
+                this.hedgeWins.incrementAndGet();
+            }
+            hedge.future.complete(result);
+        });
+    }
+
+    /**
+     * @return Nanoseconds after which a scan is hedged, -1 if too few scans
+     * were measured.
+     */
+    private long hedgeDelay() {
+        ClamAVHistogram histogram = this.previousLatencies;
+        if (histogram == null) {
+            histogram = this.latencies;
+            if (histogram.getCount() < minHedgeSamples) {
+                return -1;
+            }
+        }
+        synchronized (this) {
+            this.hedgeBudget = Math.min(hedgeBurst, this.hedgeBudget + this.maxHedgeRatio);
+        }
+        return histogram.getValueAtPercentile(this.hedgePercentile);
+    }
+
+    /**
+     * Every scan that could be hedged adds the maximum hedge ratio to a
+     * budget, up to a small burst, and every hedge takes one from it.
+     */
+    private synchronized boolean spendHedge() {
+        if (this.hedgeBudget < 1) {
+            return false;
+        }
+        this.hedgeBudget--;
+        return true;
+    }
+
+    /**
+     * Records the latency of a scan. The latencies are kept in windows of a
+     * fixed number of scans, and the last full window is the one hedging
+     * relies on, so it follows changes of the load.
+     */
+    private void measured(long nanos) {
+        ClamAVHistogram histogram = this.latencies;
+        histogram.record(nanos);
+        if (histogram.getCount() >= latencyWindow) {
+            synchronized (this) {
+                if (this.latencies == histogram) {
+                    this.previousLatencies = histogram;
+                    this.latencies = new ClamAVHistogram();
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks a node not tried yet, preferring healthy ones.
+     */
+    private ClamAVClusterNode select(List<ClamAVClusterNode> tried) {
+        List<ClamAVClusterNode> candidates = new ArrayList<>(this.nodes.size());
+        for (ClamAVClusterNode node : this.nodes) {
+            if (node.healthy && !tried.contains(node)) {
+                candidates.add(node);
+            }
+        }
+        if (candidates.isEmpty()) {
+            // Health information may be stale, so give the remaining nodes a chance.
+            for (ClamAVClusterNode node : this.nodes) {
+                if (!tried.contains(node)) {
+                    candidates.add(node);
+                }
+            }
+        }
+        if (this.balancing == Balancing.POWER_OF_TWO_CHOICES && candidates.size() > 2) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(candidates.size());
+            int second = random.nextInt(candidates.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            ClamAVClusterNode a = candidates.get(first);
+            ClamAVClusterNode b = candidates.get(second);
+            return a.outstanding.get() <= b.outstanding.get() ? a : b;
+        }
+        ClamAVClusterNode best = candidates.get(0);
+        for (ClamAVClusterNode node : candidates) {
+            if (node.outstanding.get() < best.outstanding.get()) {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Pings every node at once, each within a bounded time even if requests
+     * have no timeout, so a node that hangs holds up neither the check of the
+     * others nor the next round.
+     */
+    private void check() {
+        final int checkTimeout = this.timeout > 0 ? this.timeout : defaultHealthCheckTimeout;
+        List<CompletableFuture<Void>> checks = new ArrayList<>();
+        for (final ClamAVClusterNode node : this.nodes) {
+            try {
+                checks.add(CompletableFuture.runAsync(() -> check(node, checkTimeout), ClamAV.sharedExecutor()));
+            } catch (RejectedExecutionException ex) {
+                check(node, checkTimeout);
+            }
+        }
+        CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private static void check(ClamAVClusterNode node, int checkTimeout) {
+        try {
+            if (ClamAV.pong(node.getAddress(), checkTimeout)) {
+                node.up();
+            } else {
+                node.down(new IOException("Unexpected reply to PING"));
+            }
+        } catch (IOException | RuntimeException ex) {
+            node.down(ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.healthCheck.shutdownNow();
+        for (ClamAVClusterNode node : this.nodes) {
+            node.client.close();
+        }
+        this.asynchronousChannelGroup.shutdown();
+        try {
+            if (!this.asynchronousChannelGroup.awaitTermination(this.timeout == 0 ? ClamAVAsync.defaultShutdownTimeout : this.timeout, TimeUnit.MILLISECONDS)) {
+                this.asynchronousChannelGroup.shutdownNow();
+            }
+        } catch (InterruptedException | IOException ex) {
+            Logger.getLogger(ClamAVCluster.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    public static class ClamAVClusterNode {
+
+        private final ClamAVAsync client;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile boolean healthy = true;
+
+        protected ClamAVClusterNode(ClamAVAsync client) {
+            this.client = client;
+        }
+
+        public SocketAddress getAddress() {
+            return this.client.getSocketAddress();
+        }
+
+        /**
+         * @return Client of this node, e.g. to enable a pool for it.
+         */
+        public ClamAVAsync getClient() {
+            return this.client;
+        }
+
+        /**
+         * @return Number of scans in progress on this node.
+         */
+        public int getOutstanding() {
+            return this.outstanding.get();
+        }
+
+        public boolean isHealthy() {
+            return this.healthy;
+        }
+
+        protected synchronized void up() {
+            if (!this.healthy) {
+                Logger.getLogger(ClamAVCluster.class.getName()).log(Level.INFO, "{0} is back in rotation", getAddress());
+                this.healthy = true;
+            }
+        }
+
+        protected synchronized void down(Throwable exc) {
+            if (this.healthy) {
+                Logger.getLogger(ClamAVCluster.class.getName()).log(Level.WARNING, getAddress() + " taken out of rotation", exc);
+                this.healthy = false;
+            }
+        }
+    }
+
+    /**
+     * A scan whose buffered content may be sent to several nodes.
+     */
+    private static final class ClamAVHedge {
+
+        private final ByteBuffer content;
+        private final CompletableFuture<ClamAVScanResult> future;
+        private final List<ClamAVClusterNode> tried = new ArrayList<>();
+        private final List<ClamAVHedgeSource> running = new ArrayList<>();
+
+        private ClamAVHedge(ByteBuffer content, CompletableFuture<ClamAVScanResult> future) {
+            this.content = content;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Copy of buffered content sent to one node. Once another node answered,
+     * the rest of the upload is cut short. clamd cannot be told to stop a
+     * scan, so a copy already uploaded is left to its verdict, which is
+     * ignored.
+     */
+    private static final class ClamAVHedgeSource implements ClamAVSource {
+
+        private final ClamAVSource source;
+        private final boolean hedging;
+        private volatile boolean cancelled = false;
+
+        private ClamAVHedgeSource(ByteBuffer content, int chunkSize, boolean hedging) {
+            this.source = ClamAVSource.of(content, chunkSize);
+            this.hedging = hedging;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (this.cancelled) {
+                throw new IOException("Scan answered by another node");
+            }
+            return this.source.next();
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return false;
+        }
+    }
+
+    protected static final long defaultHealthCheckInterval = 5000;
+    protected static final int defaultHealthCheckTimeout = 2000;
+    protected static final double defaultMaxHedgeRatio = 0.05;
+    protected static final int defaultMaxHedgeBufferSize = 1048576;
+    protected static final int minHedgeSamples = 100;
+    protected static final int latencyWindow = 1000;
+    protected static final double hedgeBurst = 10;
+}
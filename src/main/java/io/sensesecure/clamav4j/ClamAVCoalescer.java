@@ -0,0 +1,395 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends concurrent scans of the same content to clamd only once.
+ * <p>
+ * Scans are keyed by a digest and the size of their content. The first scan
+ * of a key is sent, and scans of the same key arriving while it is in flight
+ * wait for its verdict instead. Nothing is kept once the verdict is out, a
+ * {@link ClamAVCache} remembers verdicts for later scans.
+ * <p>
+ * If clamd rejects the content, every waiting scan fails the same way. If the
+ * scan fails for another reason, e.g. a lost connection, the waiting scans
+ * try once more on their own, and one of them is sent.
+ * <p>
+ * Content that can only be read once is buffered to be digested, up to a
+ * limit above which it is sent on its own. A scan that waits for another one
+ * drops its copy for the one kept per key, which it falls back on if it has
+ * to try again. Keys in flight and scans waiting per key are bounded as well,
+ * and scans beyond the bounds are sent on their own.
+ */
+public class ClamAVCoalescer {
+
+    private final int maxKeys;
+    private final int maxWaiters;
+    private final int maxBufferSize;
+    private final Map<ByteBuffer, ClamAVFlightEntry> flights = new HashMap<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+
+    public ClamAVCoalescer() {
+        this(defaultMaxKeys, defaultMaxWaiters, defaultMaxBufferSize);
+    }
+
+    /**
+     * @param maxKeys Maximum number of distinct contents in flight.
+     * @param maxWaiters Maximum number of scans waiting for the same content.
+     * @param maxBufferSize Maximum number of bytes buffered per scan of
+     * content that can only be read once.
+     */
+    public ClamAVCoalescer(int maxKeys, int maxWaiters, int maxBufferSize) {
+        if (maxKeys <= 0 || maxWaiters < 0 || maxBufferSize < 0) {
+            throw new IllegalArgumentException("maxKeys must be positive, maxWaiters and maxBufferSize not negative");
+        }
+        this.maxKeys = maxKeys;
+        this.maxWaiters = maxWaiters;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    public int getMaxKeys() {
+        return this.maxKeys;
+    }
+
+    public int getMaxWaiters() {
+        return this.maxWaiters;
+    }
+
+    public int getMaxBufferSize() {
+        return this.maxBufferSize;
+    }
+
+    /**
+     * @return Number of distinct contents being scanned.
+     */
+    public synchronized int size() {
+        return this.flights.size();
+    }
+
+    /**
+     * @return Number of scans sent to clamd as the first of their content.
+     */
+    public long getSent() {
+        return this.sent.get();
+    }
+
+    /**
+     * @return Number of scans answered with the verdict of another scan.
+     */
+    public long getCoalesced() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * @return Number of scans sent on their own because of the bounds.
+     */
+    public long getBypassed() {
+        return this.bypassed.get();
+    }
+
+    /**
+     * Digests the content of a scan, buffering it first if it can only be
+     * read once. Such content may be fed by the thread that started the scan,
+     * e.g. through a {@link ClamAVPipe}, in which case this has to run on
+     * another thread.
+     *
+     * @param source Content to be scanned.
+     * @param chunkSize Chunk size of the buffered content.
+     * @return Flight of the scan, with the source to send.
+     * @throws IOException If the content could not be read.
+     */
+    ClamAVFlight prepare(ClamAVSource source, int chunkSize) throws IOException {
+        if (!source.rewind()) {
+            ByteBuffer buffered = buffer(source, this.maxBufferSize);
+            if (buffered.limit() > this.maxBufferSize) {
+                return new ClamAVFlight(new ClamAVPrefixSource(buffered, source, chunkSize), null, null, chunkSize);
+            }
+            source.close();
+            return digested(ClamAVSource.of(buffered, chunkSize), buffered, chunkSize);
+        }
+        return digested(source, null, chunkSize);
+    }
+
+    /**
+     * Keys a scan by a digest taken already, e.g. for a {@link ClamAVCache},
+     * so the content is not read once more.
+     *
+     * @param source Content to be scanned, rewound.
+     * @param algorithm Algorithm of the digest.
+     * @param digest Digest of the content.
+     * @param size Number of bytes of the content.
+     * @param chunkSize Chunk size of the content.
+     * @return Flight of the scan, or null if the digest is not of the
+     * algorithm of the keys.
+     */
+    ClamAVFlight prepare(ClamAVSource source, String algorithm, byte[] digest, long size, int chunkSize) {
+        if (!ClamAVCache.defaultAlgorithm.equalsIgnoreCase(algorithm)) {
+            return null;
+        }
+        return new ClamAVFlight(source, key(digest, size), null, chunkSize);
+    }
+
+    private static ClamAVFlight digested(ClamAVSource source, ByteBuffer content, int chunkSize) throws IOException {
+        MessageDigest messageDigest = newDigest();
+        long size = 0;
+        for (ByteBuffer chunk = source.next(); chunk != null; chunk = source.next()) {
+            size += chunk.remaining();
+            messageDigest.update(chunk);
+        }
+        source.rewind();
+        return new ClamAVFlight(source, key(messageDigest.digest(), size), content, chunkSize);
+    }
+
+    private static ByteBuffer key(byte[] digest, long size) {
+        ByteBuffer key = ByteBuffer.allocate(digest.length + 8).put(digest).putLong(size);
+        key.flip();
+        return key;
+    }
+
+    /**
+     * Joins the flight of the same content if there is one, or starts it.
+     *
+     * @return true if the scan is to be sent, and its outcome passed to
+     * {@link #land}; false if it is to wait for {@link ClamAVFlight#getFuture}.
+     */
+    boolean join(ClamAVFlight flight) {
+        flight.entry = null;
+        if (flight.key == null) {
+            this.bypassed.incrementAndGet();
+            return true;
+        }
+        synchronized (this) {
+            ClamAVFlightEntry entry = this.flights.get(flight.key);
+            if (entry != null && entry.waiters < this.maxWaiters) {
+                entry.waiters++;
+                flight.entry = entry;
+                if (flight.content != null) {
+                    if (entry.content == null) {
+                        entry.content = flight.content;
+                    }
+                    flight.share(entry.content);
+                }
+                this.coalesced.incrementAndGet();
+                return false;
+            }
+            if (entry == null && this.flights.size() < this.maxKeys) {
+                entry = new ClamAVFlightEntry();
+                entry.content = flight.content;
+                this.flights.put(flight.key, entry);
+                flight.entry = entry;
+                flight.leader = true;
+                this.sent.incrementAndGet();
+                return true;
+            }
+        }
+        this.bypassed.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Hands the outcome of a sent scan to the scans waiting for it. The key is
+     * released first, so scans arriving afterwards start a new flight.
+     */
+    void land(ClamAVFlight flight, ClamAVScanResult result, Throwable error) {
+        ClamAVFlightEntry entry = flight.entry;
+        if (entry == null || !flight.leader) {
+            return;
+        }
+        flight.leader = false;
+        synchronized (this) {
+            this.flights.remove(flight.key, entry);
+        }
+        if (error == null) {
+            entry.future.complete(result);
+        } else {
+            entry.future.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+        }
+    }
+
+    /**
+     * Reads content into memory, up to a limit.
+     *
+     * @param source Content to be read.
+     * @param limit Number of bytes after which reading stops.
+     * @return Content read, more than the limit if the source goes on, in
+     * which case the rest is still to be read from the source.
+     * @throws IOException If the content could not be read.
+     */
+    static ByteBuffer buffer(ClamAVSource source, int limit) throws IOException {
+        byte[] bytes = new byte[initialBufferSize];
+        int length = 0;
+        for (ByteBuffer chunk = source.next(); chunk != null; chunk = source.next()) {
+            int remaining = chunk.remaining();
+            if (length + remaining > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + remaining));
+            }
+            chunk.get(bytes, length, remaining);
+            length += remaining;
+            if (length > limit) {
+                break;
+            }
+        }
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ClamAVCache.defaultAlgorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * A scan going through the coalescer.
+     */
+    static final class ClamAVFlight {
+
+        private final ByteBuffer key;
+        private final int chunkSize;
+        private ClamAVSource source;
+        private ByteBuffer content;
+        private ClamAVFlightEntry entry;
+        private boolean leader = false;
+
+        private ClamAVFlight(ClamAVSource source, ByteBuffer key, ByteBuffer content, int chunkSize) {
+            this.source = source;
+            this.key = key;
+            this.content = content;
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * Swaps the buffered copy of the content for the same content kept
+         * for its key, so only one copy stays in memory while scans wait.
+         */
+        private void share(ByteBuffer shared) {
+            if (shared != this.content) {
+                this.content = shared;
+                this.source = ClamAVSource.of(shared, this.chunkSize);
+            }
+        }
+
+        /**
+         * @return Content to send, which may be a buffered copy of the
+         * content passed in.
+         */
+        ClamAVSource getSource() {
+            return this.source;
+        }
+
+        /**
+         * @return Verdict of the scan that was sent for the same content.
+         */
+        CompletableFuture<ClamAVScanResult> getFuture() {
+            return this.entry.future;
+        }
+
+        /**
+         * Waits for the verdict of the scan that was sent for the same
+         * content.
+         *
+         * @return Verdict.
+         * @throws IOException If the scan failed to reach clamd.
+         * @throws ClamAVException If clamd rejected the content.
+         */
+        ClamAVScanResult await() throws IOException, ClamAVException {
+            try {
+                return this.entry.future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof ClamAVException) {
+                    throw (ClamAVException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    private static final class ClamAVFlightEntry {
+
+        private final CompletableFuture<ClamAVScanResult> future = new CompletableFuture<>();
+        private ByteBuffer content;
+        private int waiters = 0;
+    }
+
+    /**
+     * Content buffered before it turned out too large, followed by the rest
+     * of the source it was read from.
+     */
+    static final class ClamAVPrefixSource implements ClamAVSource {
+
+        private final ByteBuffer prefix;
+        private final ClamAVSource source;
+        private final int chunkSize;
+
+        ClamAVPrefixSource(ByteBuffer prefix, ClamAVSource source, int chunkSize) {
+            this.prefix = prefix;
+            this.source = source;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (!this.prefix.hasRemaining()) {
+                return this.source.next();
+            }
+            ByteBuffer chunk = this.prefix.slice();
+            chunk.limit(Math.min(chunk.remaining(), this.chunkSize));
+            this.prefix.position(this.prefix.position() + chunk.remaining());
+            return chunk;
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return this.source.isBlocking();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.source.close();
+        }
+    }
+
+    protected static final int defaultMaxKeys = 4096;
+    protected static final int defaultMaxWaiters = 64;
+    protected static final int defaultMaxBufferSize = 1048576;
+    protected static final int initialBufferSize = 8192;
+}
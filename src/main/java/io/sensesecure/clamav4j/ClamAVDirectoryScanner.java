@@ -0,0 +1,447 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Scans every file below a directory with a bounded number of scans in
+ * flight.
+ * <p>
+ * Directories are listed in parallel on a fork-join pool, one task per
+ * directory, so idle workers steal the listing of subdirectories. A worker
+ * that finds a file waits for a free scan slot before handing it on, which
+ * throttles the traversal to the pace of clamd. Files are opened only once
+ * their scan starts, so at most as many files as scan slots are open at a
+ * time.
+ */
+public class ClamAVDirectoryScanner {
+
+    private final Function<ClamAVSource, CompletableFuture<ClamAVScanResult>> scanner;
+    private final int maxInFlight;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = ClamAV.defaultChunkSize;
+    private boolean ordered = false;
+    private boolean followLinks = false;
+
+    /**
+     * @param clamAVAsync Client the files are scanned with.
+     * @param maxInFlight Maximum number of scans in progress at a time.
+     */
+    public ClamAVDirectoryScanner(ClamAVAsync clamAVAsync, int maxInFlight) {
+        this(clamAVAsync::scan, maxInFlight);
+        this.chunkSize = clamAVAsync.getChunkSize();
+    }
+
+    /**
+     * @param scanner Starts the scan of a file, e.g. {@code cluster::scan}.
+     * @param maxInFlight Maximum number of scans in progress at a time.
+     */
+    public ClamAVDirectoryScanner(Function<ClamAVSource, CompletableFuture<ClamAVScanResult>> scanner, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.scanner = scanner;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    /**
+     * @return Number of threads listing directories.
+     */
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isOrdered() {
+        return this.ordered;
+    }
+
+    /**
+     * Reports the results sorted by path once every file is scanned, instead
+     * of as soon as each scan completes. The results are held in memory until
+     * then.
+     *
+     * @param ordered true to sort the results.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public boolean isFollowLinks() {
+        return this.followLinks;
+    }
+
+    public void setFollowLinks(boolean followLinks) {
+        this.followLinks = followLinks;
+    }
+
+    /**
+     * Scans a file, or every regular file below a directory, and waits until
+     * all scans are complete.
+     *
+     * @param root File or directory to scan.
+     * @param listener Receives the result of every file, one at a time.
+     * @return Totals of the run.
+     * @throws InterruptedException If interrupted while waiting for scans;
+     * the traversal is stopped, and scans in progress complete in the
+     * background.
+     */
+    public ClamAVScanSummary scan(Path root, Consumer<ClamAVFileResult> listener) throws InterruptedException {
+        ClamAVDirectoryScan run = new ClamAVDirectoryScan(listener);
+        ForkJoinPool forkJoinPool = new ForkJoinPool(this.parallelism);
+        try {
+            forkJoinPool.submit(new ClamAVDirectoryTask(run, root)).get();
+        } catch (InterruptedException ex) {
+            // Workers waiting for a slot are interrupted, and the others stop at the next entry.
+            run.interrupted = true;
+            forkJoinPool.shutdownNow();
+            throw ex;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : new IllegalStateException(ex.getCause());
+        } finally {
+            forkJoinPool.shutdown();
+        }
+        if (run.interrupted) {
+            throw new InterruptedException();
+        }
+        run.semaphore.acquire(this.maxInFlight);
+        run.semaphore.release(this.maxInFlight);
+        if (this.ordered) {
+            Collections.sort(run.results, Comparator.comparing(ClamAVFileResult::getPath));
+            for (ClamAVFileResult result : run.results) {
+                listener.accept(result);
+            }
+        }
+        return new ClamAVScanSummary(run.files.get(), run.bytes.get(), run.infected.get(), run.errors.get(), System.currentTimeMillis() - run.started);
+    }
+
+    /**
+     * State of one call to {@link #scan}.
+     */
+    private class ClamAVDirectoryScan {
+
+        private final Consumer<ClamAVFileResult> listener;
+        private final Semaphore semaphore = new Semaphore(maxInFlight);
+        private final List<ClamAVFileResult> results = new ArrayList<>();
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong infected = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final long started = System.currentTimeMillis();
+        private volatile boolean interrupted = false;
+
+        private ClamAVDirectoryScan(Consumer<ClamAVFileResult> listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Waits for a free slot, then starts the scan of a file.
+         */
+        private void submit(final Path path, final long size) {
+            try {
+                // A slot taken without waiting spares the pool a compensating thread.
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+
+                    private boolean acquired = false;
+
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        if (!this.acquired) {
+                            semaphore.acquire();
+                            this.acquired = true;
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        if (!this.acquired) {
+                            this.acquired = semaphore.tryAcquire();
+                        }
+                        return this.acquired;
+                    }
+                });
+            } catch (InterruptedException ex) {
+                this.interrupted = true;
+                return;
+            }
+            CompletableFuture<ClamAVScanResult> future;
+            try {
+                future = scanner.apply(ClamAVSource.of(path, chunkSize));
+            } catch (RuntimeException ex) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(ex);
+            }
+            future.whenComplete((result, exc) -> {
+                try {
+                    report(new ClamAVFileResult(path, size, result, exc instanceof CompletionException ? exc.getCause() : exc));
+                } finally {
+                    this.semaphore.release();
+                }
+            });
+        }
+
+        private void report(ClamAVFileResult result) {
+            if (result.getError() != null) {
+                this.errors.incrementAndGet();
+            } else {
+                this.files.incrementAndGet();
+                this.bytes.addAndGet(result.getSize());
+                if (result.isInfected()) {
+                    this.infected.incrementAndGet();
+                }
+            }
+            synchronized (this) {
+                if (ordered) {
+                    this.results.add(result);
+                } else {
+                    this.listener.accept(result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists one directory, forking a task for each subdirectory and
+     * submitting each regular file.
+     */
+    private class ClamAVDirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ClamAVDirectoryScan run;
+        private final Path path;
+
+        private ClamAVDirectoryTask(ClamAVDirectoryScan run, Path path) {
+            this.run = run;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            LinkOption[] linkOptions = followLinks ? new LinkOption[0] : new LinkOption[]{LinkOption.NOFOLLOW_LINKS};
+            List<ClamAVDirectoryTask> subtasks = new ArrayList<>();
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(this.path, BasicFileAttributes.class, linkOptions);
+                if (!attributes.isDirectory()) {
+                    if (attributes.isRegularFile()) {
+                        this.run.submit(this.path, attributes.size());
+                    }
+                    return;
+                }
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.path)) {
+                    for (Path entry : entries) {
+                        if (this.run.interrupted) {
+                            break;
+                        }
+                        try {
+                            attributes = Files.readAttributes(entry, BasicFileAttributes.class, linkOptions);
+                        } catch (IOException ex) {
+                            // e.g. removed since listed, the rest of the directory is still scanned.
+                            this.run.report(new ClamAVFileResult(entry, 0, null, ex));
+                            continue;
+                        }
+                        if (attributes.isDirectory()) {
+                            ClamAVDirectoryTask subtask = new ClamAVDirectoryTask(this.run, entry);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        } else if (attributes.isRegularFile()) {
+                            this.run.submit(entry, attributes.size());
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                this.run.report(new ClamAVFileResult(this.path, 0, null, ex));
+            } catch (DirectoryIteratorException ex) {
+                this.run.report(new ClamAVFileResult(this.path, 0, null, ex.getCause()));
+            }
+            for (ClamAVDirectoryTask subtask : subtasks) {
+                subtask.join();
+            }
+        }
+    }
+
+    /**
+     * Outcome of the scan of one file.
+     */
+    public static class ClamAVFileResult {
+
+        private final Path path;
+        private final long size;
+        private final ClamAVScanResult result;
+        private final Throwable error;
+
+        protected ClamAVFileResult(Path path, long size, ClamAVScanResult result, Throwable error) {
+            this.path = path;
+            this.size = size;
+            this.result = result;
+            this.error = error;
+        }
+
+        public Path getPath() {
+            return this.path;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        /**
+         * @return Verdict, null if the file could not be scanned.
+         */
+        public ClamAVScanResult getResult() {
+            return this.result;
+        }
+
+        /**
+         * @return Reason the file could not be scanned, null if it was.
+         */
+        public Throwable getError() {
+            return this.error;
+        }
+
+        public boolean isInfected() {
+            return this.result != null && this.result.isInfected();
+        }
+
+        @Override
+        public String toString() {
+            if (this.error != null) {
+                return this.path + ": " + this.error;
+            }
+            return this.path + ": " + (this.result.isInfected() ? this.result.getSignature() + " FOUND" : "OK");
+        }
+    }
+
+    /**
+     * Totals of a directory scan.
+     */
+    public static class ClamAVScanSummary {
+
+        private final long files;
+        private final long bytes;
+        private final long infected;
+        private final long errors;
+        private final long elapsed;
+
+        protected ClamAVScanSummary(long files, long bytes, long infected, long errors, long elapsed) {
+            this.files = files;
+            this.bytes = bytes;
+            this.infected = infected;
+            this.errors = errors;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return Number of files scanned.
+         */
+        public long getFiles() {
+            return this.files;
+        }
+
+        /**
+         * @return Number of bytes scanned.
+         */
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        public long getInfected() {
+            return this.infected;
+        }
+
+        /**
+         * @return Number of files and directories that could not be scanned.
+         */
+        public long getErrors() {
+            return this.errors;
+        }
+
+        /**
+         * @return Duration of the run in milliseconds.
+         */
+        public long getElapsed() {
+            return this.elapsed;
+        }
+
+        public double getFilesPerSecond() {
+            return perSecond(this.files);
+        }
+
+        public double getBytesPerSecond() {
+            return perSecond(this.bytes);
+        }
+
+        public double getInfectedPerSecond() {
+            return perSecond(this.infected);
+        }
+
+        private double perSecond(long count) {
+            return this.elapsed == 0 ? 0 : count * 1000.0 / this.elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Scanned files: %d, data scanned: %.2f MB, infected files: %d, errors: %d, time: %.3f sec (%.1f files/s, %.2f MB/s, %.1f infected/s)",
+                    this.files, this.bytes / 1048576.0, this.infected, this.errors, this.elapsed / 1000.0,
+                    getFilesPerSecond(), getBytesPerSecond() / 1048576.0, getInfectedPerSecond());
+        }
+    }
+}
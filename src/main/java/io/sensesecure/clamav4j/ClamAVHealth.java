@@ -0,0 +1,333 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks whether a clamd daemon is reachable, and fails requests to it at
+ * once while it is not, instead of letting each of them wait for a timeout.
+ * <p>
+ * The circuit breaker is closed while clamd answers. Once a number of
+ * consecutive requests failed to reach clamd, it opens, and requests fail
+ * with {@link ClamAVUnavailableException} without a connection attempt. When
+ * the open duration has passed, it is half open and lets a single trial
+ * request through, whose outcome closes or opens it again.
+ * <p>
+ * A background task asks clamd for its VERSION on a schedule. A failed check
+ * opens the breaker and a successful one closes it, so requests stop as soon
+ * as clamd goes away, e.g. while it restarts, and resume as soon as it is
+ * back. A new database version, e.g. after a reload, is passed to the
+ * listeners.
+ */
+public class ClamAVHealth implements AutoCloseable {
+
+    /**
+     * State of the circuit breaker.
+     */
+    public enum State {
+        /**
+         * Requests are sent.
+         */
+        CLOSED,
+        /**
+         * Requests fail without being sent.
+         */
+        OPEN,
+        /**
+         * A single trial request is sent, the others fail.
+         */
+        HALF_OPEN
+    }
+
+    private final SocketAddress address;
+    private final int timeout;
+    private final long checkInterval;
+    private final int failureThreshold;
+    private final long openDuration;
+    private final ScheduledExecutorService monitor;
+    private final List<Consumer<ClamAVVersion>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long opened = 0;
+    private boolean trial = false;
+    private ClamAVVersion version;
+    private long databaseVersion = -1;
+
+    public ClamAVHealth(SocketAddress address, int timeout) {
+        this(address, timeout, defaultCheckInterval, defaultFailureThreshold, defaultOpenDuration);
+    }
+
+    /**
+     * @param address Address where the ClamAV is running.
+     * @param timeout Timeout for the checks.
+     * @param checkInterval Milliseconds between two checks, 0 to only check
+     * when {@link #check} is called.
+     * @param failureThreshold Number of consecutive failed requests that open
+     * the breaker.
+     * @param openDuration Milliseconds the breaker stays open before a trial
+     * request is let through.
+     */
+    public ClamAVHealth(SocketAddress address, int timeout, long checkInterval, int failureThreshold, long openDuration) {
+        if (checkInterval < 0 || failureThreshold <= 0 || openDuration < 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive, checkInterval and openDuration not negative");
+        }
+        this.address = address;
+        this.timeout = timeout;
+        this.checkInterval = checkInterval;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        if (checkInterval > 0) {
+            this.monitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "clamav4j-health-monitor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.monitor.scheduleWithFixedDelay(this::check, 0, checkInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.monitor = null;
+        }
+    }
+
+    public SocketAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * @return Milliseconds between two checks, 0 if there is no background
+     * check.
+     */
+    public long getCheckInterval() {
+        return this.checkInterval;
+    }
+
+    public int getFailureThreshold() {
+        return this.failureThreshold;
+    }
+
+    public long getOpenDuration() {
+        return this.openDuration;
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * @return true if a request would be sent now.
+     */
+    public synchronized boolean isAvailable() {
+        switch (this.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.nanoTime() - this.opened >= TimeUnit.MILLISECONDS.toNanos(this.openDuration);
+            default:
+                return !this.trial;
+        }
+    }
+
+    /**
+     * @return Version reported by the last check, null if it failed or no
+     * check ran yet.
+     */
+    public synchronized ClamAVVersion getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return Number of requests failed without being sent.
+     */
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    /**
+     * @return Number of database version changes seen by the checks.
+     */
+    public long getReloads() {
+        return this.reloads.get();
+    }
+
+    /**
+     * Registers a listener for new database versions, e.g.
+     * {@code cache::validate} to drop cached results right after a reload.
+     * Listeners are called on the thread of the check.
+     *
+     * @param listener Receives the new version.
+     */
+    public void addListener(Consumer<ClamAVVersion> listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<ClamAVVersion> listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Lets a request through if the breaker allows it. Every request let
+     * through must end with {@link #success}, {@link #failure} or
+     * {@link #cancel}.
+     *
+     * @throws ClamAVUnavailableException If the breaker is open, or half open
+     * with its trial request in progress.
+     */
+    public void acquire() throws ClamAVUnavailableException {
+        synchronized (this) {
+            if (this.state == State.CLOSED) {
+                return;
+            }
+            if (this.state == State.OPEN && System.nanoTime() - this.opened >= TimeUnit.MILLISECONDS.toNanos(this.openDuration)) {
+                this.state = State.HALF_OPEN;
+            }
+            if (this.state == State.HALF_OPEN && !this.trial) {
+                this.trial = true;
+                return;
+            }
+        }
+        this.rejected.incrementAndGet();
+        throw new ClamAVUnavailableException(this.address + " is unavailable");
+    }
+
+    /**
+     * Ends a request that got an answer from clamd, even an error, which
+     * closes the breaker.
+     */
+    public void success() {
+        synchronized (this) {
+            this.failures = 0;
+            this.trial = false;
+            if (this.state == State.CLOSED) {
+                return;
+            }
+            this.state = State.CLOSED;
+        }
+        Logger.getLogger(ClamAVHealth.class.getName()).log(Level.INFO, "{0} is available again", this.address);
+    }
+
+    /**
+     * Ends a request that failed to reach clamd, e.g. a refused connection
+     * or a timeout.
+     *
+     * @param exc Cause of the failure.
+     */
+    public void failure(Throwable exc) {
+        synchronized (this) {
+            this.trial = false;
+            this.failures++;
+            if (this.state == State.OPEN || (this.state == State.CLOSED && this.failures < this.failureThreshold)) {
+                return;
+            }
+            open();
+        }
+        Logger.getLogger(ClamAVHealth.class.getName()).log(Level.WARNING, this.address + " is unavailable", exc);
+    }
+
+    /**
+     * Ends a request that was given up before it was sent, or that failed
+     * because its content could not be read, which says nothing about clamd.
+     */
+    public synchronized void cancel() {
+        this.trial = false;
+    }
+
+    /**
+     * Ends a request with the outcome of sending it.
+     *
+     * @param exc Cause of the failure, null if the request succeeded. Only an
+     * {@link IOException} counts as a failure to reach clamd.
+     */
+    void record(Throwable exc) {
+        if (exc instanceof IOException) {
+            failure(exc);
+        } else {
+            success();
+        }
+    }
+
+    /**
+     * Asks clamd for its version, which closes the breaker if it answers and
+     * opens it otherwise.
+     *
+     * @return Version reported by clamd, null if it could not be retrieved.
+     */
+    public ClamAVVersion check() {
+        ClamAVVersion current;
+        try {
+            current = ClamAV.version(this.address, this.timeout);
+        } catch (IOException | RuntimeException ex) {
+            boolean opening;
+            synchronized (this) {
+                this.version = null;
+                opening = this.state != State.OPEN;
+                open();
+            }
+            if (opening) {
+                Logger.getLogger(ClamAVHealth.class.getName()).log(Level.WARNING, this.address + " is unavailable", ex);
+            }
+            return null;
+        }
+        success();
+        long previous;
+        synchronized (this) {
+            // Kept across failed checks, so a reload during a restart is seen as well.
+            previous = this.databaseVersion;
+            this.version = current;
+            this.databaseVersion = current.getDatabaseVersion();
+        }
+        if (previous >= 0 && previous != current.getDatabaseVersion()) {
+            this.reloads.incrementAndGet();
+            Logger.getLogger(ClamAVHealth.class.getName()).log(Level.INFO, "{0} reloaded its database, version {1}", new Object[]{this.address, current.getDatabaseVersion()});
+            for (Consumer<ClamAVVersion> listener : this.listeners) {
+                try {
+                    listener.accept(current);
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(ClamAVHealth.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        return current;
+    }
+
+    private void open() {
+        this.state = State.OPEN;
+        this.opened = System.nanoTime();
+        this.trial = false;
+    }
+
+    @Override
+    public void close() {
+        if (this.monitor != null) {
+            this.monitor.shutdownNow();
+        }
+    }
+
+    protected static final long defaultCheckInterval = 5000;
+    protected static final int defaultFailureThreshold = 3;
+    protected static final long defaultOpenDuration = 5000;
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, e.g. durations in nanoseconds.
+ * <p>
+ * Like an HDR histogram, values are counted in buckets whose width grows with
+ * the magnitude of the value: every power of two is split into 64 buckets, so
+ * a value is known within 1.6% from 64 up to {@link Long#MAX_VALUE}, and
+ * exactly below. Recording a value increments one counter and allocates
+ * nothing.
+ */
+public class ClamAVHistogram {
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.getAndIncrement(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        long current = this.max.get();
+        while (value > current && !this.max.compareAndSet(current, value)) {
+            current = this.max.get();
+        }
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public double getMean() {
+        long n = this.count.sum();
+        return n == 0 ? 0 : (double) this.sum.sum() / n;
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100.
+     * @return Highest value of the bucket holding the percentile, 0 if
+     * nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = 0;
+        for (int index = 0; index < BUCKETS; index++) {
+            n += this.counts.get(index);
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * n));
+        long seen = 0;
+        for (int index = 0; index < BUCKETS; index++) {
+            seen += this.counts.get(index);
+            if (seen >= rank) {
+                return Math.min(highest(index), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    public void reset() {
+        for (int index = 0; index < BUCKETS; index++) {
+            this.counts.set(index, 0);
+        }
+        this.count.reset();
+        this.sum.reset();
+        this.max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.0f, p50=%d, p90=%d, p99=%d, p99.9=%d, max=%d", getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99), getValueAtPercentile(99.9), getMax());
+    }
+
+    /**
+     * Values below 64 have a bucket each. Above, the bucket is given by the
+     * position of the highest bit and the six bits below it.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+        long next = (mantissa + 1) << shift;
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+}
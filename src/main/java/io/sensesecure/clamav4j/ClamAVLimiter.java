@@ -0,0 +1,310 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Limits the number of requests in flight to clamd, adapting the limit to
+ * how loaded clamd is.
+ * <p>
+ * clamd scans with a fixed number of threads and queues what is beyond them,
+ * so pushing more requests only adds latency until connections are refused.
+ * The limit follows the latency of the requests, i.e. the time clamd takes to
+ * answer once a request was sent: while it stays near the lowest latency
+ * seen, the limit grows with every request, and as latency rises the limit
+ * shrinks in proportion. Requests failing to reach clamd,
+ * e.g. timeouts or refused connections, and requests queued by clamd
+ * according to its STATS cut the limit by a fixed ratio. The limit never
+ * exceeds twice the MaxThreads reported by clamd, enough to keep its threads
+ * busy while as many streams are being uploaded.
+ * <p>
+ * Requests beyond the limit wait in order of arrival.
+ */
+public class ClamAVLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Queue<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+    private double limit;
+    private int inFlight = 0;
+    private double latency = 0;
+    private double baseline = 0;
+    private int ceiling;
+    private ClamAVStats stats;
+    private long statsCheckInterval = defaultStatsCheckInterval;
+    private volatile long statsChecked = 0;
+
+    public ClamAVLimiter() {
+        this(defaultInitialLimit, defaultMinLimit, defaultMaxLimit);
+    }
+
+    /**
+     * @param initialLimit Requests allowed in flight before any was measured.
+     * @param minLimit Lowest limit, at least 1.
+     * @param maxLimit Highest limit.
+     */
+    public ClamAVLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 0 < minLimit <= initialLimit <= maxLimit");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.ceiling = maxLimit;
+    }
+
+    /**
+     * @return Number of requests currently allowed in flight.
+     */
+    public synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * @return Number of requests waiting for the limit.
+     */
+    public synchronized int getWaiting() {
+        return this.waiting.size();
+    }
+
+    /**
+     * @return Smoothed latency of recent requests in nanoseconds.
+     */
+    public synchronized long getLatency() {
+        return (long) this.latency;
+    }
+
+    /**
+     * @return Latency considered unloaded in nanoseconds.
+     */
+    public synchronized long getBaseline() {
+        return (long) this.baseline;
+    }
+
+    /**
+     * @return STATS of clamd last seen, null if none yet.
+     */
+    public synchronized ClamAVStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * @return Milliseconds between two STATS requests.
+     */
+    public long getStatsCheckInterval() {
+        return this.statsCheckInterval;
+    }
+
+    /**
+     * @param statsCheckInterval Milliseconds between two STATS requests, 0 to
+     * disable them.
+     */
+    public void setStatsCheckInterval(long statsCheckInterval) {
+        this.statsCheckInterval = statsCheckInterval;
+    }
+
+    /**
+     * Tells whether the STATS should be checked again, and if so takes the
+     * check upon the caller, so only one of concurrent callers gets true.
+     *
+     * @return true if the caller should pass new STATS to {@link #update}.
+     */
+    public boolean isStatsCheckDue() {
+        long checked = this.statsChecked;
+        long now = System.currentTimeMillis();
+        if (this.statsCheckInterval <= 0 || now - checked < this.statsCheckInterval) {
+            return false;
+        }
+        synchronized (this) {
+            if (this.statsChecked != checked) {
+                return false;
+            }
+            this.statsChecked = now;
+            return true;
+        }
+    }
+
+    /**
+     * Takes the load reported by clamd into account.
+     *
+     * @param clamAVStats STATS of clamd, null if they could not be retrieved.
+     */
+    public void update(ClamAVStats clamAVStats) {
+        if (clamAVStats == null) {
+            return;
+        }
+        synchronized (this) {
+            this.stats = clamAVStats;
+            if (clamAVStats.getThreadsMax() > 0) {
+                this.ceiling = Math.max(this.minLimit, Math.min(this.maxLimit, 2 * clamAVStats.getThreadsMax() * Math.max(1, clamAVStats.getPools())));
+            }
+            if (clamAVStats.getQueue() > 0) {
+                this.limit *= backoffRatio;
+            }
+            this.limit = Math.max(this.minLimit, Math.min(this.ceiling, this.limit));
+        }
+        grant();
+    }
+
+    /**
+     * Waits until a request may be sent.
+     *
+     * @throws InterruptedIOException If the thread was interrupted while
+     * waiting.
+     */
+    public void acquire() throws InterruptedIOException {
+        CompletableFuture<Void> permit = acquireAsync();
+        try {
+            permit.get();
+        } catch (InterruptedException ex) {
+            if (!permit.cancel(false)) {
+                release();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Reserves a slot for a request without blocking.
+     *
+     * @return Completes once the request may be sent, on the thread that
+     * freed the slot.
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        synchronized (this) {
+            if (this.waiting.isEmpty() && this.inFlight < (int) this.limit) {
+                this.inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> permit = new CompletableFuture<>();
+            this.waiting.add(permit);
+            return permit;
+        }
+    }
+
+    /**
+     * Ends a request and adapts the limit to how it went.
+     *
+     * @param nanos Time clamd took to answer once the request was sent.
+     * @param overloaded true if the request could not reach clamd, e.g. it
+     * timed out or the connection was refused.
+     */
+    public void release(long nanos, boolean overloaded) {
+        synchronized (this) {
+            this.inFlight--;
+            if (overloaded) {
+                this.limit *= backoffRatio;
+            } else {
+                sample(nanos);
+            }
+            this.limit = Math.max(this.minLimit, Math.min(this.ceiling, this.limit));
+        }
+        grant();
+    }
+
+    /**
+     * Ends a scan with what its trace measured. Only the time clamd took to
+     * answer once the content was sent is sampled, as the upload before it
+     * grows with the size of the content and the speed of the link rather
+     * than with the load of clamd. A scan that failed on its content, or got
+     * no answer for its whole content, is not measured.
+     *
+     * @param trace Trace of the scan.
+     * @param exc Cause of the failure, null if the scan succeeded.
+     */
+    void release(ClamAVScanTrace trace, Throwable exc) {
+        if (exc instanceof IOException && !trace.isSourceFailure(exc)) {
+            release(0, true);
+        } else if (trace.getVerdictTime() >= 0) {
+            release(trace.getVerdictTime(), false);
+        } else {
+            release();
+        }
+    }
+
+    /**
+     * Ends a request without measuring it, e.g. one given up before it was
+     * sent.
+     */
+    public void release() {
+        synchronized (this) {
+            this.inFlight--;
+        }
+        grant();
+    }
+
+    /**
+     * Moves the limit towards the ratio of the unloaded latency to the
+     * current one, plus the square root of the limit as headroom to keep
+     * probing for more throughput. The baseline follows the smoothed latency
+     * down at once and up slowly, so it recovers from a change of content
+     * sizes.
+     */
+    private void sample(long nanos) {
+        this.latency = this.latency == 0 ? nanos : this.latency + (nanos - this.latency) * latencySmoothing;
+        if (this.baseline == 0 || this.latency < this.baseline) {
+            this.baseline = this.latency;
+        } else {
+            this.baseline += (this.latency - this.baseline) * baselineDrift;
+        }
+        double gradient = Math.max(minGradient, Math.min(1.0, tolerance * this.baseline / this.latency));
+        double target = this.limit * gradient + Math.sqrt(this.limit);
+        this.limit += (target - this.limit) * limitSmoothing;
+    }
+
+    private void grant() {
+        while (true) {
+            CompletableFuture<Void> permit;
+            synchronized (this) {
+                if (this.waiting.isEmpty() || this.inFlight >= (int) this.limit) {
+                    return;
+                }
+                permit = this.waiting.poll();
+                this.inFlight++;
+            }
+            // A waiter that gave up leaves its slot to the next one.
+            if (!permit.complete(null)) {
+                synchronized (this) {
+                    this.inFlight--;
+                }
+            }
+        }
+    }
+
+    protected static final int defaultInitialLimit = 10;
+    protected static final int defaultMinLimit = 1;
+    protected static final int defaultMaxLimit = 1000;
+    protected static final long defaultStatsCheckInterval = 5000;
+    protected static final double backoffRatio = 0.9;
+    protected static final double tolerance = 1.5;
+    protected static final double minGradient = 0.5;
+    protected static final double latencySmoothing = 0.1;
+    protected static final double baselineDrift = 0.001;
+    protected static final double limitSmoothing = 0.2;
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+/**
+ * Receives the measurements of the scans of a {@link ClamAV} or
+ * {@link ClamAVAsync} client, e.g. to forward them to a metrics library.
+ * <p>
+ * A scan goes through three phases: getting a connection, which is a new
+ * connection or a pooled session, uploading the content, and waiting for the
+ * verdict. Scans answered from the cache skip all of them. Durations are in
+ * nanoseconds.
+ * <p>
+ * Methods are called on the threads doing the scans, including the threads of
+ * the channel group, so they must be thread-safe and must not block.
+ *
+ * @see ClamAVStatistics
+ */
+public interface ClamAVMetrics {
+
+    /**
+     * Measurements are discarded.
+     */
+    ClamAVMetrics NONE = new ClamAVMetrics() {
+    };
+
+    default void scanStarted() {
+    }
+
+    /**
+     * @param nanos Time until a connection to clamd was ready.
+     */
+    default void connected(long nanos) {
+    }
+
+    /**
+     * @param bytes Number of bytes of content streamed to clamd.
+     * @param nanos Time spent sending the content.
+     */
+    default void uploaded(long bytes, long nanos) {
+    }
+
+    /**
+     * @param nanos Time between the end of the content and the verdict.
+     */
+    default void replied(long nanos) {
+    }
+
+    /**
+     * @param result Verdict.
+     * @param nanos Duration of the whole scan.
+     */
+    default void scanCompleted(ClamAVScanResult result, long nanos) {
+    }
+
+    /**
+     * @param cause Reason the scan failed.
+     * @param nanos Duration of the whole scan.
+     */
+    default void scanFailed(Throwable cause, long nanos) {
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ShutdownChannelGroupException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pipelines INSTREAM scans over a fixed number of IDSESSION connections.
+ * <p>
+ * clamd reads the stream of a command and hands it to its scanner threads
+ * before reading the next command, so a session may carry several scans at
+ * once. Streams are written one after another on each connection, and the
+ * replies, which arrive in any order tagged with {@code <id>: }, are routed
+ * back to the future of the matching scan. Scans that find every session
+ * at its in-flight limit wait in a shared queue. A session that cannot
+ * connect leaves them to the other sessions; they fail only once no session
+ * is left.
+ */
+public class ClamAVMultiplexer implements AutoCloseable {
+
+    private final AsynchronousChannelGroup asynchronousChannelGroup;
+    private final InetSocketAddress address;
+    private final int maxInFlight;
+    private final ClamAVMultiplexedSession[] sessions;
+    private final Deque<ClamAVMultiplexedRequest> queue = new ArrayDeque<>();
+    private boolean closed = false;
+    private volatile ClamAVTimeouts timeouts = ClamAVTimeouts.NONE;
+
+    public ClamAVMultiplexer(AsynchronousChannelGroup asynchronousChannelGroup, InetSocketAddress address, int sessions, int maxInFlight) {
+        if (sessions <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("sessions and maxInFlight must be positive");
+        }
+        this.asynchronousChannelGroup = asynchronousChannelGroup;
+        this.address = address;
+        this.maxInFlight = maxInFlight;
+        this.sessions = new ClamAVMultiplexedSession[sessions];
+    }
+
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    public int getConnectTimeout() {
+        return this.timeouts.connect;
+    }
+
+    /**
+     * @param connectTimeout Milliseconds until a session must be connected,
+     * 0 for no limit.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.timeouts = new ClamAVTimeouts(connectTimeout, this.timeouts.write, this.timeouts.reply);
+    }
+
+    public int getWriteTimeout() {
+        return this.timeouts.write;
+    }
+
+    /**
+     * @param writeTimeout Milliseconds a single write to clamd may take, 0
+     * for no limit.
+     */
+    public void setWriteTimeout(int writeTimeout) {
+        this.timeouts = new ClamAVTimeouts(this.timeouts.connect, writeTimeout, this.timeouts.reply);
+    }
+
+    public int getReplyTimeout() {
+        return this.timeouts.reply;
+    }
+
+    /**
+     * Sets the time a scan may wait for its verdict once streamed. A scan that
+     * runs out of time breaks its session, since replies come in order of
+     * completion and the missing one could still arrive; the other scans on
+     * that session fail with it.
+     *
+     * @param replyTimeout Milliseconds, 0 for no limit.
+     */
+    public void setReplyTimeout(int replyTimeout) {
+        this.timeouts = new ClamAVTimeouts(this.timeouts.connect, this.timeouts.write, replyTimeout);
+    }
+
+    /**
+     * @return Number of scans waiting for a session.
+     */
+    public synchronized int getQueued() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return Number of scans sent or being sent to clamd without a reply yet.
+     */
+    public synchronized int getInFlight() {
+        int inFlight = 0;
+        for (ClamAVMultiplexedSession session : this.sessions) {
+            if (session != null) {
+                inFlight += session.pending.size();
+            }
+        }
+        return inFlight;
+    }
+
+    /**
+     * Queues a scan for the next session with spare capacity.
+     *
+     * @param source Content to be scanned, closed once the scan is over.
+     * @return Future verdict.
+     */
+    public CompletableFuture<ClamAVScanResult> scan(ClamAVSource source) {
+        return scan(source, ClamAVScanTrace.NONE);
+    }
+
+    CompletableFuture<ClamAVScanResult> scan(ClamAVSource source, ClamAVScanTrace trace) {
+        ClamAVMultiplexedRequest request = new ClamAVMultiplexedRequest(source, trace);
+        CompletableFuture<ClamAVScanResult> future = request.future;
+        synchronized (this) {
+            if (!this.closed) {
+                this.queue.offerLast(request);
+                request = null;
+            }
+        }
+        if (request != null) {
+            request.failed(new IOException("Multiplexer is closed"));
+            return future;
+        }
+        dispatch();
+        return future;
+    }
+
+    /**
+     * Stops accepting scans. Queued and in-flight scans are completed, after
+     * which the connections are closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+        }
+        dispatch();
+    }
+
+    /**
+     * Assigns queued scans to sessions with spare capacity, opening sessions
+     * as needed and closing idle ones once the multiplexer is closed.
+     */
+    private void dispatch() {
+        List<ClamAVMultiplexedScan> writes = new ArrayList<>();
+        List<ClamAVMultiplexedSession> connects = new ArrayList<>();
+        List<ClamAVMultiplexedSession> disconnects = new ArrayList<>();
+        synchronized (this) {
+            for (ClamAVMultiplexedSession session : this.sessions) {
+                while (session != null && session.ready && session.writing == null
+                        && session.pending.size() < this.maxInFlight && !this.queue.isEmpty()) {
+                    ClamAVMultiplexedScan scan = this.queue.pollFirst().bind(session);
+                    session.writing = scan;
+                    session.pending.put(scan.id, scan);
+                    writes.add(scan);
+                }
+            }
+            for (int index = 0; index < this.sessions.length && !this.queue.isEmpty(); index++) {
+                if (this.sessions[index] == null) {
+                    this.sessions[index] = new ClamAVMultiplexedSession(index);
+                    connects.add(this.sessions[index]);
+                }
+            }
+            if (this.closed && this.queue.isEmpty()) {
+                for (int index = 0; index < this.sessions.length; index++) {
+                    ClamAVMultiplexedSession session = this.sessions[index];
+                    if (session != null && session.ready && session.pending.isEmpty()) {
+                        session.ready = false;
+                        this.sessions[index] = null;
+                        disconnects.add(session);
+                    }
+                }
+            }
+        }
+        for (ClamAVMultiplexedScan scan : writes) {
+            scan.start();
+        }
+        for (ClamAVMultiplexedSession session : connects) {
+            session.connect();
+        }
+        for (ClamAVMultiplexedSession session : disconnects) {
+            session.disconnect();
+        }
+    }
+
+    /**
+     * Fails every queued scan once a session could not be established, unless
+     * another session is left to take them.
+     */
+    private void drain(Throwable exc) {
+        List<ClamAVMultiplexedRequest> requests;
+        synchronized (this) {
+            for (ClamAVMultiplexedSession session : this.sessions) {
+                if (session != null) {
+                    return;
+                }
+            }
+            requests = new ArrayList<>(this.queue);
+            this.queue.clear();
+        }
+        for (ClamAVMultiplexedRequest request : requests) {
+            request.failed(exc);
+        }
+    }
+
+    protected static class ClamAVMultiplexedRequest {
+
+        protected final ClamAVSource source;
+        protected final CompletableFuture<ClamAVScanResult> future = new CompletableFuture<>();
+        final ClamAVScanTrace trace;
+
+        ClamAVMultiplexedRequest(ClamAVSource source, ClamAVScanTrace trace) {
+            this.source = source;
+            this.trace = trace;
+        }
+
+        protected ClamAVMultiplexedScan bind(ClamAVMultiplexedSession session) {
+            ClamAVMultiplexedScan scan = new ClamAVMultiplexedScan(this.source, this.future, session);
+            scan.trace = this.trace;
+            this.trace.connected();
+            return scan;
+        }
+
+        protected void failed(final Throwable exc) {
+            ClamAVReadAhead.close(this.source, () -> this.future.completeExceptionally(exc));
+        }
+    }
+
+    /**
+     * Streams one scan on a shared session. Unlike a standalone scan it does
+     * not read the reply itself, and a write failure breaks the whole session.
+     */
+    protected static class ClamAVMultiplexedScan extends ClamAVAsync.ClamAVAsyncScan {
+
+        protected final ClamAVMultiplexedSession session;
+        protected final int id;
+        protected IOException sourceFailure;
+        volatile ScheduledFuture<?> deadline;
+
+        protected ClamAVMultiplexedScan(ClamAVSource source, CompletableFuture<ClamAVScanResult> future, ClamAVMultiplexedSession session) {
+            super(source, session.asynchronousSocketChannel, future);
+            this.session = session;
+            this.id = ++session.id;
+            this.timeouts = session.timeouts();
+        }
+
+        /**
+         * The session reads the replies of all its scans.
+         */
+        @Override
+        protected void watch() {
+        }
+
+        @Override
+        protected void written() {
+            this.trace.uploaded();
+            this.session.written(this);
+            uploaded();
+        }
+
+        /**
+         * Ends the stream early so the session stays usable for the other
+         * scans; the reply clamd sends for the partial content is discarded.
+         */
+        @Override
+        protected void sourceFailed(IOException exc) {
+            this.sourceFailure = exc;
+            this.data = null;
+            frame();
+        }
+
+        /**
+         * Ends the scan with its reply once the upload is over. The session
+         * reads on into the same decoder, so the reply is decoded right away.
+         * A reply during the upload stops it at the next chunk.
+         *
+         * @param reply Decoded reply, valid during the call only.
+         */
+        protected void replied(ClamAVReplyDecoder reply) {
+            final Runnable verdict = verdict(reply);
+            answer(() -> {
+                if (this.sourceFailure != null) {
+                    fail(this.sourceFailure);
+                } else {
+                    verdict.run();
+                }
+            });
+        }
+
+        private Runnable verdict(ClamAVReplyDecoder reply) {
+            try {
+                final ClamAVScanResult result = reply.getScanResult();
+                return () -> complete(result);
+            } catch (final ClamAVException ex) {
+                return () -> fail(ex);
+            }
+        }
+
+        /**
+         * Breaks the session. A reply read before clamd closed the connection
+         * still ends the scan.
+         */
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            this.session.broken(timedOut(exc));
+            uploaded();
+        }
+
+        /**
+         * A stream cut short by an early reply leaves the session out of step
+         * with clamd, so it is closed.
+         */
+        @Override
+        protected void release(boolean healthy) {
+            if (this.stopped) {
+                this.session.broken(new IOException("Stream cut short by clamd"));
+            }
+        }
+    }
+
+    protected class ClamAVMultiplexedSession implements CompletionHandler<Integer, Void> {
+
+        protected final int index;
+        protected final AsynchronousSocketChannel asynchronousSocketChannel;
+        protected final Map<Integer, ClamAVMultiplexedScan> pending = new HashMap<>();
+        protected final ClamAVReplyDecoder decoder = new ClamAVReplyDecoder();
+        protected ClamAVMultiplexedScan writing;
+        protected boolean ready = false;
+        protected boolean broken = false;
+        protected int id = 0;
+        private final IOException openFailure;
+
+        protected ClamAVMultiplexedSession(int index) {
+            this.index = index;
+            AsynchronousSocketChannel channel = null;
+            IOException failure = null;
+            try {
+                channel = AsynchronousSocketChannel.open(asynchronousChannelGroup);
+            } catch (IOException ex) {
+                failure = ex;
+            }
+            this.asynchronousSocketChannel = channel;
+            this.openFailure = failure;
+        }
+
+        protected void connect() {
+            if (this.openFailure != null) {
+                unreachable(this.openFailure);
+                return;
+            }
+            final ByteBuffer head = ByteBuffer.wrap(ClamAV.IDSESSION);
+            final ClamAVTimeouts.ClamAVWatchdog watchdog = ClamAVTimeouts.watch(this.asynchronousSocketChannel, timeouts.connect);
+            this.asynchronousSocketChannel.connect(address, null, new CompletionHandler<Void, Void>() {
+
+                @Override
+                public void completed(Void result, Void attachment) {
+                    asynchronousSocketChannel.write(head, null, new CompletionHandler<Integer, Void>() {
+
+                        @Override
+                        public void completed(Integer result, Void attachment) {
+                            if (head.hasRemaining()) {
+                                asynchronousSocketChannel.write(head, null, this);
+                                return;
+                            }
+                            watchdog.cancel();
+                            synchronized (ClamAVMultiplexer.this) {
+                                ready = true;
+                            }
+                            receive();
+                            dispatch();
+                        }
+
+                        @Override
+                        public void failed(Throwable exc, Void attachment) {
+                            watchdog.cancel();
+                            unreachable(watchdog.isExpired() ? connectTimeout(exc) : exc);
+                        }
+                    });
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    watchdog.cancel();
+                    unreachable(watchdog.isExpired() ? connectTimeout(exc) : exc);
+                }
+            });
+        }
+
+        private Throwable connectTimeout(Throwable exc) {
+            return new ClamAVConnectTimeoutException("No session to " + address + " within " + timeouts.connect + " ms").initCause(exc);
+        }
+
+        protected ClamAVTimeouts timeouts() {
+            return timeouts;
+        }
+
+        /**
+         * No scan is bound to a session before it is ready, so only the queue
+         * can be affected.
+         */
+        private void unreachable(Throwable exc) {
+            close(null);
+            drain(exc);
+        }
+
+        protected void written(final ClamAVMultiplexedScan scan) {
+            synchronized (ClamAVMultiplexer.this) {
+                if (this.writing == scan) {
+                    this.writing = null;
+                }
+            }
+            if (scan.timeouts.reply > 0) {
+                scan.deadline = ClamAVTimeouts.schedule(() -> expired(scan), scan.timeouts.reply);
+            }
+            dispatch();
+        }
+
+        private void expired(ClamAVMultiplexedScan scan) {
+            synchronized (ClamAVMultiplexer.this) {
+                if (this.pending.get(scan.id) != scan) {
+                    return;
+                }
+            }
+            broken(new ClamAVReplyTimeoutException("No reply from clamd within " + scan.timeouts.reply + " ms"));
+        }
+
+        @Override
+        public void completed(Integer result, Void attachment) {
+            if (result < 0) {
+                broken(new IOException("Connection closed by clamd"));
+                return;
+            }
+            while (this.decoder.next()) {
+                if (!route(this.decoder)) {
+                    return;
+                }
+            }
+            receive();
+        }
+
+        private void receive() {
+            try {
+                this.asynchronousSocketChannel.read(this.decoder.getBuffer(), null, this);
+            } catch (IOException ex) {
+                broken(ex);
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            broken(exc);
+        }
+
+        private boolean route(ClamAVReplyDecoder reply) {
+            ClamAVMultiplexedScan scan;
+            synchronized (ClamAVMultiplexer.this) {
+                scan = this.pending.remove(reply.getId());
+            }
+            if (scan == null) {
+                broken(new IOException("Unexpected reply from clamd: " + reply));
+                return false;
+            }
+            ScheduledFuture<?> deadline = scan.deadline;
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            scan.replied(reply);
+            dispatch();
+            return true;
+        }
+
+        /**
+         * Closes the session and fails every scan still waiting on it.
+         */
+        protected void broken(Throwable exc) {
+            for (ClamAVMultiplexedScan scan : close(exc)) {
+                scan.fail(exc);
+            }
+            dispatch();
+        }
+
+        private List<ClamAVMultiplexedScan> close(Throwable exc) {
+            List<ClamAVMultiplexedScan> scans;
+            synchronized (ClamAVMultiplexer.this) {
+                if (this.broken) {
+                    return new ArrayList<>();
+                }
+                this.broken = true;
+                this.ready = false;
+                if (sessions[this.index] == this) {
+                    sessions[this.index] = null;
+                }
+                scans = new ArrayList<>(this.pending.values());
+                this.pending.clear();
+                this.writing = null;
+            }
+            if (this.asynchronousSocketChannel != null) {
+                try {
+                    this.asynchronousSocketChannel.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(ClamAVMultiplexer.class.getName()).log(Level.FINE, null, ex);
+                } catch (ShutdownChannelGroupException ex) {
+                    // The pending read can no longer be failed once the group is shut down.
+                }
+            }
+            if (exc != null && !scans.isEmpty() && !(exc instanceof AsynchronousCloseException)) {
+                Logger.getLogger(ClamAVMultiplexer.class.getName()).log(Level.SEVERE, null, exc);
+            }
+            return scans;
+        }
+
+        protected void disconnect() {
+            this.asynchronousSocketChannel.write(ByteBuffer.wrap(ClamAV.END), null, new CompletionHandler<Integer, Void>() {
+
+                @Override
+                public void completed(Integer result, Void attachment) {
+                    close(null);
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    close(null);
+                }
+            });
+        }
+    }
+}
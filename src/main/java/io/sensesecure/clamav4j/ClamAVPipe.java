@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring buffer between a thread producing content and a scan
+ * consuming it. The producer waits while the ring is full, so a slow clamd
+ * slows down the producer instead of the content piling up in memory. Chunks
+ * are handed to the scan straight out of the ring, and their space is only
+ * given back to the producer on the next call to {@link #next}.
+ * <p>
+ * Once the scan is over and has closed the source, further content is
+ * dropped without waiting.
+ */
+final class ClamAVPipe implements ClamAVSource {
+
+    private final byte[] ring;
+    private final int chunkSize;
+    private int head = 0;
+    private int count = 0;
+    private int lent = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    private IOException failure;
+
+    /**
+     * @param capacity Size of the ring in bytes.
+     * @param chunkSize Maximum number of bytes per chunk.
+     */
+    ClamAVPipe(int capacity, int chunkSize) {
+        if (capacity <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("capacity and chunkSize must be positive");
+        }
+        this.ring = new byte[capacity];
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Copies content into the ring, waiting for room as long as the scan is
+     * running.
+     */
+    synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            while (this.count == this.ring.length && !this.closed) {
+                await();
+            }
+            if (this.closed) {
+                return;
+            }
+            int tail = (this.head + this.count) % this.ring.length;
+            int copied = Math.min(length, Math.min(this.ring.length - this.count, this.ring.length - tail));
+            System.arraycopy(bytes, offset, this.ring, tail, copied);
+            this.count += copied;
+            offset += copied;
+            length -= copied;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the end of the content.
+     */
+    synchronized void finish() {
+        this.finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Fails the scan, e.g. because the content ended before it was complete.
+     */
+    synchronized void abort(IOException cause) {
+        if (!this.finished && this.failure == null) {
+            this.failure = cause;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer next() throws IOException {
+        this.head = (this.head + this.lent) % this.ring.length;
+        this.count -= this.lent;
+        this.lent = 0;
+        notifyAll();
+        while (this.count == 0 && !this.finished && this.failure == null) {
+            await();
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+        if (this.count == 0) {
+            return null;
+        }
+        this.lent = Math.min(this.chunkSize, Math.min(this.count, this.ring.length - this.head));
+        return ByteBuffer.wrap(this.ring, this.head, this.lent).slice();
+    }
+
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
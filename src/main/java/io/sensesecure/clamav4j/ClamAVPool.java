@@ -0,0 +1,443 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of clamd connections kept open in IDSESSION mode. Sessions are
+ * handed out one request at a time and returned afterwards, so consecutive
+ * scans reuse the same TCP connection instead of opening a new one.
+ * <p>
+ * Idle sessions are closed before clamd's own IdleTimeout would drop them, and
+ * sessions older than the maximum lifetime are retired. A session that failed
+ * during a request must be given back with {@link #invalidate} so it is never
+ * reused.
+ * <p>
+ * Callers beyond the maximum number of sessions wait in order of arrival,
+ * blocking with {@link #borrow} and without holding a thread with
+ * {@link #borrowAsync}.
+ *
+ * @param <C> Type of the underlying channel.
+ */
+public class ClamAVPool<C extends Channel> implements AutoCloseable {
+
+    /**
+     * Opens, checks and closes the connections of a pool.
+     *
+     * @param <C> Type of the underlying channel.
+     */
+    public interface Connector<C extends Channel> {
+
+        /**
+         * Opens a connection and switches it into IDSESSION mode.
+         *
+         * @return Connected channel.
+         * @throws IOException If the connection could not be established.
+         */
+        C connect() throws IOException;
+
+        /**
+         * Opens a connection and switches it into IDSESSION mode without
+         * blocking the caller. By default the connection is opened with
+         * {@link #connect} on the calling thread.
+         *
+         * @return Completes with the connected channel.
+         */
+        default CompletableFuture<C> connectAsync() {
+            CompletableFuture<C> future = new CompletableFuture<>();
+            try {
+                future.complete(connect());
+            } catch (IOException | RuntimeException ex) {
+                future.completeExceptionally(ex);
+            }
+            return future;
+        }
+
+        /**
+         * Checks whether an idle connection may still be used.
+         *
+         * @param channel Idle channel.
+         * @return false if the daemon closed the connection.
+         */
+        boolean isAlive(C channel);
+
+        /**
+         * Ends the session and closes the connection.
+         *
+         * @param channel Channel to close.
+         * @throws IOException If the connection could not be closed cleanly.
+         */
+        void disconnect(C channel) throws IOException;
+    }
+
+    private final Connector<C> connector;
+    private final int maxSessions;
+    private final Queue<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+    private final Deque<ClamAVSession<C>> idle = new ArrayDeque<>();
+    private int active = 0;
+    private long maxIdleTime = defaultMaxIdleTime;
+    private long maxLifetime = defaultMaxLifetime;
+    private long borrowTimeout = 0;
+    private volatile boolean closed = false;
+
+    public ClamAVPool(Connector<C> connector, int maxSessions) {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("maxSessions must be positive");
+        }
+        this.connector = connector;
+        this.maxSessions = maxSessions;
+    }
+
+    public int getMaxSessions() {
+        return this.maxSessions;
+    }
+
+    /**
+     * @return Milliseconds a session may stay idle before it is closed.
+     */
+    public long getMaxIdleTime() {
+        return this.maxIdleTime;
+    }
+
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * @return Milliseconds after which a session is retired, 0 for no limit.
+     */
+    public long getMaxLifetime() {
+        return this.maxLifetime;
+    }
+
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    /**
+     * @return Milliseconds to wait for a free session, 0 to wait forever.
+     */
+    public long getBorrowTimeout() {
+        return this.borrowTimeout;
+    }
+
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * @return Number of sessions currently handed out.
+     */
+    public int getActiveCount() {
+        synchronized (this.waiting) {
+            return this.active;
+        }
+    }
+
+    /**
+     * @return Number of callers waiting for a session.
+     */
+    public int getWaitingCount() {
+        synchronized (this.waiting) {
+            return this.waiting.size();
+        }
+    }
+
+    /**
+     * @return Number of open sessions waiting to be reused.
+     */
+    public int getIdleCount() {
+        synchronized (this.idle) {
+            return this.idle.size();
+        }
+    }
+
+    /**
+     * Takes a session from the pool, opening a new connection if no idle
+     * session is usable. Blocks while all sessions are in use.
+     *
+     * @return Session that must be given back with {@link #release} or
+     * {@link #invalidate}.
+     * @throws IOException If no connection could be established.
+     */
+    public ClamAVSession<C> borrow() throws IOException {
+        if (this.closed) {
+            throw new IOException("Pool is closed");
+        }
+        CompletableFuture<Void> permit = acquire();
+        try {
+            if (this.borrowTimeout == 0) {
+                permit.get();
+            } else {
+                permit.get(this.borrowTimeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ex) {
+            if (!permit.cancel(false) && !permit.isCompletedExceptionally()) {
+                releasePermit();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (TimeoutException ex) {
+            if (permit.cancel(false)) {
+                throw new IOException("Timed out waiting for a clamd session");
+            }
+            // Granted meanwhile, unless the pool was closed.
+            if (permit.isCompletedExceptionally()) {
+                throw new IOException("Pool is closed");
+            }
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+        try {
+            ClamAVSession<C> session = reuse();
+            return session != null ? session : new ClamAVSession<>(this.connector.connect());
+        } catch (IOException | RuntimeException ex) {
+            releasePermit();
+            throw ex;
+        }
+    }
+
+    /**
+     * Takes a session from the pool without blocking. Callers wait for a free
+     * session as futures, and new connections are opened with
+     * {@link Connector#connectAsync}.
+     *
+     * @return Completes with a session that must be given back with
+     * {@link #release} or {@link #invalidate}, on the thread that freed it or
+     * that completed the connection.
+     */
+    public CompletableFuture<ClamAVSession<C>> borrowAsync() {
+        if (this.closed) {
+            return CompletableFuture.failedFuture(new IOException("Pool is closed"));
+        }
+        CompletableFuture<Void> permit = acquire();
+        if (this.borrowTimeout > 0 && !permit.isDone()) {
+            permit.orTimeout(this.borrowTimeout, TimeUnit.MILLISECONDS);
+        }
+        return permit.handle((granted, exc) -> {
+            if (exc != null) {
+                Throwable cause = exc instanceof TimeoutException ? new IOException("Timed out waiting for a clamd session", exc) : exc;
+                return CompletableFuture.<ClamAVSession<C>>failedFuture(cause);
+            }
+            return open();
+        }).thenCompose(future -> future);
+    }
+
+    /**
+     * Hands out an idle session, or connects a new one, for a caller holding
+     * a permit. The permit is given back if that fails.
+     */
+    private CompletableFuture<ClamAVSession<C>> open() {
+        CompletableFuture<C> connected;
+        try {
+            ClamAVSession<C> session = reuse();
+            if (session != null) {
+                return CompletableFuture.completedFuture(session);
+            }
+            connected = this.connector.connectAsync();
+        } catch (RuntimeException ex) {
+            releasePermit();
+            return CompletableFuture.failedFuture(ex);
+        }
+        CompletableFuture<ClamAVSession<C>> future = new CompletableFuture<>();
+        connected.whenComplete((channel, exc) -> {
+            if (exc == null) {
+                future.complete(new ClamAVSession<>(channel));
+            } else {
+                releasePermit();
+                future.completeExceptionally(exc instanceof CompletionException && exc.getCause() != null ? exc.getCause() : exc);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return Most recently used idle session that is still usable, null if
+     * there is none.
+     */
+    private ClamAVSession<C> reuse() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            ClamAVSession<C> session;
+            synchronized (this.idle) {
+                session = this.idle.pollFirst();
+            }
+            if (session == null) {
+                return null;
+            }
+            if (isExpired(session, now) || !this.connector.isAlive(session.getChannel())) {
+                discard(session);
+                continue;
+            }
+            session.setLastUsed(now);
+            return session;
+        }
+    }
+
+    /**
+     * Takes a free slot, or queues for one.
+     *
+     * @return Completes once the caller may hold a session.
+     */
+    private CompletableFuture<Void> acquire() {
+        synchronized (this.waiting) {
+            if (this.waiting.isEmpty() && this.active < this.maxSessions) {
+                this.active++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> permit = new CompletableFuture<>();
+            this.waiting.add(permit);
+            return permit;
+        }
+    }
+
+    private void releasePermit() {
+        synchronized (this.waiting) {
+            this.active--;
+        }
+        grant();
+    }
+
+    private void grant() {
+        while (true) {
+            CompletableFuture<Void> permit;
+            synchronized (this.waiting) {
+                if (this.waiting.isEmpty() || this.active >= this.maxSessions) {
+                    return;
+                }
+                permit = this.waiting.poll();
+                this.active++;
+            }
+            // A waiter that gave up leaves its slot to the next one.
+            if (!permit.complete(null)) {
+                synchronized (this.waiting) {
+                    this.active--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives a healthy session back to the pool for reuse.
+     *
+     * @param session Session obtained from {@link #borrow}.
+     */
+    public void release(ClamAVSession<C> session) {
+        long now = System.currentTimeMillis();
+        boolean reuse = !this.closed && session.getChannel().isOpen() && !isExpired(session, now);
+        if (reuse) {
+            session.setLastUsed(now);
+            synchronized (this.idle) {
+                if (this.idle.size() < this.maxSessions) {
+                    this.idle.offerFirst(session);
+                } else {
+                    reuse = false;
+                }
+            }
+        }
+        if (!reuse) {
+            discard(session);
+        }
+        releasePermit();
+        evict();
+    }
+
+    /**
+     * Closes a session that failed during a request.
+     *
+     * @param session Session obtained from {@link #borrow}.
+     */
+    public void invalidate(ClamAVSession<C> session) {
+        discard(session);
+        releasePermit();
+    }
+
+    /**
+     * Closes idle sessions that exceeded the idle time or lifetime. This is
+     * done on every release, and may also be called periodically.
+     */
+    public void evict() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            ClamAVSession<C> session;
+            synchronized (this.idle) {
+                session = this.idle.peekLast();
+                if (session == null || !isExpired(session, now)) {
+                    return;
+                }
+                this.idle.pollLast();
+            }
+            discard(session);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        while (true) {
+            CompletableFuture<Void> permit;
+            synchronized (this.waiting) {
+                permit = this.waiting.poll();
+            }
+            if (permit == null) {
+                break;
+            }
+            permit.completeExceptionally(new IOException("Pool is closed"));
+        }
+        while (true) {
+            ClamAVSession<C> session;
+            synchronized (this.idle) {
+                session = this.idle.pollFirst();
+            }
+            if (session == null) {
+                return;
+            }
+            discard(session);
+        }
+    }
+
+    private boolean isExpired(ClamAVSession<C> session, long now) {
+        return (this.maxIdleTime > 0 && now - session.getLastUsed() > this.maxIdleTime)
+                || (this.maxLifetime > 0 && now - session.getCreated() > this.maxLifetime);
+    }
+
+    private void discard(ClamAVSession<C> session) {
+        try {
+            this.connector.disconnect(session.getChannel());
+        } catch (IOException ex) {
+            Logger.getLogger(ClamAVPool.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    /**
+     * clamd drops idle sessions after 30 seconds by default.
+     */
+    protected static final long defaultMaxIdleTime = 25000;
+    protected static final long defaultMaxLifetime = 600000;
+}
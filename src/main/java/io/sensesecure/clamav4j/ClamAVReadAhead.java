@@ -0,0 +1,471 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a source ahead of the chunk being written to clamd, so
+ * {@link ClamAVAsync} neither blocks its I/O threads on the source nor leaves
+ * the socket idle while the next chunk is read.
+ * <p>
+ * Chunks are read one after the other into a few recycled direct buffers:
+ * while one is being written, the next ones are read. A file is read with an
+ * {@link AsynchronousFileChannel}, any other source on an executor, its
+ * chunks copied into the buffers as the source may reuse its own. Reading,
+ * and taking the buffers, starts with the first chunk asked for, so a scan
+ * that is queued holds no buffer, and a scan that fails to connect leaves the
+ * source untouched.
+ */
+abstract class ClamAVReadAhead implements ClamAVSource {
+
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> ready = new ArrayDeque<>();
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final List<Runnable> idle = new ArrayList<>();
+    private final int chunks;
+    private final int chunkSize;
+    private ByteBuffer current;
+    private boolean reading = false;
+    private boolean ended = false;
+    private boolean closed = false;
+    private IOException failure;
+    private Object attachment;
+    private CompletionHandler<ByteBuffer, Object> handler;
+
+    /**
+     * @param chunks Number of chunks read ahead of the one being written.
+     * @param chunkSize Maximum number of bytes per chunk.
+     */
+    protected ClamAVReadAhead(int chunks, int chunkSize) {
+        this.chunks = chunks;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads a source ahead, with an asynchronous channel if it is a file.
+     *
+     * @param source Content to be read, closed with the returned source.
+     * @param chunks Number of chunks read ahead of the one being written.
+     * @param chunkSize Maximum number of bytes per chunk.
+     * @param executor Runs the reads of sources other than files.
+     * @return Source handing out its chunks through {@link #next(Object, CompletionHandler)}.
+     */
+    static ClamAVReadAhead of(ClamAVSource source, int chunks, int chunkSize, Executor executor) {
+        if (source instanceof ClamAVSource.ClamAVPathSource) {
+            return new ClamAVFileReadAhead((ClamAVSource.ClamAVPathSource) source, chunks, chunkSize);
+        }
+        return new ClamAVExecutorReadAhead(source, chunks, chunkSize, executor);
+    }
+
+    /**
+     * Closes a source, and runs an action once the source has no read in
+     * progress any more, so whoever reads the content next, e.g. after a
+     * rewind, does not race with it.
+     *
+     * @param source Source to be closed, read ahead or not.
+     * @param action Run once the source is idle, at once if it is not read
+     * ahead.
+     */
+    static void close(ClamAVSource source, Runnable action) {
+        try {
+            source.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ClamAVReadAhead.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if (source instanceof ClamAVReadAhead) {
+            ((ClamAVReadAhead) source).whenIdle(action);
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Starts reading a chunk into a buffer. Exactly one of
+     * {@link #filled} and {@link #failed} must be called once it is done.
+     *
+     * @param buffer Cleared buffer to read into.
+     */
+    protected abstract void read(ByteBuffer buffer);
+
+    /**
+     * Closes what the read ahead opened and the source, once no read is in
+     * progress.
+     *
+     * @throws IOException If the source could not be closed.
+     */
+    protected abstract void release() throws IOException;
+
+    /**
+     * Hands out the next chunk, without waiting for it. The previous chunk
+     * goes back to be read into. The buffers are taken on the first call,
+     * and given back once the source is closed.
+     *
+     * @param <A> Type of the attachment.
+     * @param attachment Passed to the handler.
+     * @param handler Receives the next chunk, or null at the end of the
+     * content, at once if it was read already, or else on the thread that
+     * read it.
+     */
+    @SuppressWarnings("unchecked")
+    <A> void next(A attachment, CompletionHandler<ByteBuffer, ? super A> handler) {
+        ByteBuffer chunk = null;
+        IOException exc = null;
+        boolean deliver = true;
+        synchronized (this) {
+            if (this.buffers.isEmpty() && !this.closed) {
+                for (int index = 0; index <= this.chunks; index++) {
+                    ByteBuffer buffer = ClamAVBuffers.acquire(this.chunkSize);
+                    this.buffers.add(buffer);
+                    this.free.add(buffer);
+                }
+            }
+            if (this.current != null) {
+                this.free.add(this.current);
+                this.current = null;
+            }
+            if (!this.ready.isEmpty()) {
+                chunk = this.ready.poll();
+                this.current = chunk;
+            } else if (this.failure != null) {
+                exc = this.failure;
+            } else if (!this.ended) {
+                this.attachment = attachment;
+                this.handler = (CompletionHandler<ByteBuffer, Object>) handler;
+                deliver = false;
+            }
+        }
+        fill();
+        if (!deliver) {
+            return;
+        }
+        if (exc != null) {
+            handler.failed(exc, attachment);
+        } else {
+            handler.completed(chunk, attachment);
+        }
+    }
+
+    /**
+     * Waits for the next chunk, for callers that may block.
+     */
+    @Override
+    public ByteBuffer next() throws IOException {
+        CompletableFuture<ByteBuffer> chunk = new CompletableFuture<>();
+        next(chunk, HANDOFF);
+        try {
+            return chunk.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
+    /**
+     * Starts the next read if a buffer is free and none is in progress.
+     */
+    private void fill() {
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (this.reading || this.ended || this.closed || this.failure != null || this.free.isEmpty()) {
+                return;
+            }
+            this.reading = true;
+            buffer = this.free.poll();
+        }
+        buffer.clear().limit(this.chunkSize);
+        read(buffer);
+    }
+
+    /**
+     * Called once a chunk was read.
+     *
+     * @param buffer Buffer read into, not flipped yet.
+     * @param count Number of bytes read, -1 at the end of the content.
+     */
+    protected void filled(ByteBuffer buffer, int count) {
+        ByteBuffer chunk = null;
+        Object pendingAttachment;
+        CompletionHandler<ByteBuffer, Object> pendingHandler;
+        synchronized (this) {
+            this.reading = false;
+            if (count < 0) {
+                this.ended = true;
+                this.free.add(buffer);
+            } else {
+                buffer.flip();
+                this.ready.add(buffer);
+            }
+            pendingHandler = this.handler;
+            pendingAttachment = this.attachment;
+            if (pendingHandler != null) {
+                this.handler = null;
+                this.attachment = null;
+                chunk = this.ready.poll();
+                this.current = chunk;
+            }
+        }
+        if (!idled()) {
+            fill();
+        }
+        if (pendingHandler != null) {
+            pendingHandler.completed(chunk, pendingAttachment);
+        }
+    }
+
+    /**
+     * Called if a chunk could not be read. The content is not read any
+     * further.
+     *
+     * @param buffer Buffer that was to be read into.
+     * @param exc Cause of the failure.
+     */
+    protected void failed(ByteBuffer buffer, IOException exc) {
+        Object pendingAttachment;
+        CompletionHandler<ByteBuffer, Object> pendingHandler;
+        synchronized (this) {
+            this.reading = false;
+            this.failure = exc;
+            this.free.add(buffer);
+            pendingHandler = this.handler;
+            pendingAttachment = this.attachment;
+            this.handler = null;
+            this.attachment = null;
+        }
+        idled();
+        if (pendingHandler != null) {
+            pendingHandler.failed(exc, pendingAttachment);
+        }
+    }
+
+    /**
+     * Stops reading. The buffers and the source are released at once, or
+     * once the read in progress is done.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.handler = null;
+            this.attachment = null;
+            if (this.reading) {
+                return;
+            }
+        }
+        finish();
+    }
+
+    private void whenIdle(Runnable action) {
+        synchronized (this) {
+            if (this.reading) {
+                this.idle.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Releases everything if the read ahead was closed while a read was in
+     * progress.
+     *
+     * @return true if it was closed.
+     */
+    private boolean idled() {
+        synchronized (this) {
+            if (!this.closed) {
+                return false;
+            }
+        }
+        try {
+            finish();
+        } catch (IOException ex) {
+            Logger.getLogger(ClamAVReadAhead.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return true;
+    }
+
+    private void finish() throws IOException {
+        List<Runnable> actions;
+        synchronized (this) {
+            for (ByteBuffer buffer : this.buffers) {
+                ClamAVBuffers.release(buffer);
+            }
+            this.buffers.clear();
+            this.free.clear();
+            this.ready.clear();
+            this.current = null;
+            actions = new ArrayList<>(this.idle);
+            this.idle.clear();
+        }
+        try {
+            release();
+        } finally {
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+
+    private static final CompletionHandler<ByteBuffer, CompletableFuture<ByteBuffer>> HANDOFF = new CompletionHandler<ByteBuffer, CompletableFuture<ByteBuffer>>() {
+
+        @Override
+        public void completed(ByteBuffer chunk, CompletableFuture<ByteBuffer> future) {
+            future.complete(chunk);
+        }
+
+        @Override
+        public void failed(Throwable exc, CompletableFuture<ByteBuffer> future) {
+            future.completeExceptionally(exc);
+        }
+    };
+
+    /**
+     * Reads a source on an executor, one chunk at a time.
+     */
+    private static final class ClamAVExecutorReadAhead extends ClamAVReadAhead {
+
+        private final ClamAVSource source;
+        private final Executor executor;
+        private ByteBuffer leftover;
+
+        private ClamAVExecutorReadAhead(ClamAVSource source, int chunks, int chunkSize, Executor executor) {
+            super(chunks, chunkSize);
+            this.source = source;
+            this.executor = executor;
+        }
+
+        @Override
+        protected void read(final ByteBuffer buffer) {
+            try {
+                this.executor.execute(() -> {
+                    try {
+                        // A chunk larger than the buffer stays valid until the source is read again.
+                        ByteBuffer chunk = this.leftover != null && this.leftover.hasRemaining() ? this.leftover : this.source.next();
+                        if (chunk == null) {
+                            filled(buffer, -1);
+                            return;
+                        }
+                        int count = Math.min(chunk.remaining(), buffer.remaining());
+                        ByteBuffer slice = chunk.duplicate();
+                        slice.limit(slice.position() + count);
+                        buffer.put(slice);
+                        chunk.position(chunk.position() + count);
+                        this.leftover = chunk;
+                        filled(buffer, count);
+                    } catch (IOException ex) {
+                        failed(buffer, ex);
+                    } catch (RuntimeException ex) {
+                        failed(buffer, new IOException(ex));
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                failed(buffer, new IOException(ex));
+            }
+        }
+
+        @Override
+        protected void release() throws IOException {
+            this.source.close();
+        }
+    }
+
+    /**
+     * Reads a file with an asynchronous channel of its own, by absolute
+     * position, so the source itself is not read.
+     */
+    private static final class ClamAVFileReadAhead extends ClamAVReadAhead implements CompletionHandler<Integer, ByteBuffer> {
+
+        private final ClamAVSource.ClamAVPathSource source;
+        private final long end;
+        private AsynchronousFileChannel fileChannel;
+        private long position;
+
+        private ClamAVFileReadAhead(ClamAVSource.ClamAVPathSource source, int chunks, int chunkSize) {
+            super(chunks, chunkSize);
+            this.source = source;
+            this.position = source.getPosition();
+            this.end = source.getLength() > Long.MAX_VALUE - this.position ? Long.MAX_VALUE : this.position + source.getLength();
+        }
+
+        @Override
+        protected void read(ByteBuffer buffer) {
+            if (this.position >= this.end) {
+                filled(buffer, -1);
+                return;
+            }
+            try {
+                if (this.fileChannel == null) {
+                    this.fileChannel = AsynchronousFileChannel.open(this.source.getPath(), StandardOpenOption.READ);
+                }
+                buffer.limit((int) Math.min(buffer.limit(), this.end - this.position));
+                this.fileChannel.read(buffer, this.position, buffer, this);
+            } catch (IOException ex) {
+                failed(buffer, ex);
+            } catch (RuntimeException ex) {
+                failed(buffer, new IOException(ex));
+            }
+        }
+
+        @Override
+        public void completed(Integer count, ByteBuffer buffer) {
+            if (count > 0) {
+                this.position += count;
+            }
+            filled(buffer, count);
+        }
+
+        @Override
+        public void failed(Throwable exc, ByteBuffer buffer) {
+            failed(buffer, exc instanceof IOException ? (IOException) exc : new IOException(exc));
+        }
+
+        @Override
+        protected void release() throws IOException {
+            try {
+                if (this.fileChannel != null) {
+                    this.fileChannel.close();
+                }
+            } finally {
+                this.source.close();
+            }
+        }
+    }
+}
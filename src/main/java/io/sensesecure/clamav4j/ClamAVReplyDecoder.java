@@ -0,0 +1,322 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the bytes received from clamd into NUL-terminated replies and decodes
+ * them in place. Bytes are read straight into the buffer of the decoder, which
+ * may hold a partial reply or several replies at once. The {@code <id>: }
+ * prefix of IDSESSION replies is parsed into a number, and verdicts are
+ * matched byte by byte, so a clean scan allocates nothing.
+ * <p>
+ * A decoded reply is only valid until the next call to {@link #next}, or to
+ * {@link #getBuffer} after which more bytes may be read.
+ */
+public class ClamAVReplyDecoder {
+
+    private final int maxLength;
+    private ByteBuffer buffer;
+    private int start = 0;
+    private int scanned = 0;
+    private int replyStart;
+    private int bodyStart;
+    private int replyEnd;
+    private int id = -1;
+
+    public ClamAVReplyDecoder() {
+        this(defaultMaxLength);
+    }
+
+    /**
+     * @param maxLength Maximum length of a reply, in bytes.
+     */
+    public ClamAVReplyDecoder(int maxLength) {
+        this.maxLength = maxLength;
+        this.buffer = ByteBuffer.allocate(Math.min(initialCapacity, maxLength));
+    }
+
+    /**
+     * Returns the buffer to read more bytes into, making room first if it is
+     * full.
+     *
+     * @return Buffer with remaining space.
+     * @throws IOException If a reply exceeds the maximum length.
+     */
+    public ByteBuffer getBuffer() throws IOException {
+        if (!this.buffer.hasRemaining()) {
+            if (this.start > 0) {
+                this.buffer.flip();
+                this.buffer.position(this.start);
+                this.buffer.compact();
+                this.scanned -= this.start;
+                this.start = 0;
+            } else if (this.buffer.capacity() < this.maxLength) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(this.buffer.capacity() * 2, this.maxLength));
+                this.buffer.flip();
+                larger.put(this.buffer);
+                this.buffer = larger;
+            } else {
+                throw new IOException("Reply from clamd exceeds " + this.maxLength + " bytes");
+            }
+        }
+        return this.buffer;
+    }
+
+    /**
+     * Decodes the next complete reply among the bytes received so far.
+     *
+     * @return false if more bytes are needed.
+     */
+    public boolean next() {
+        byte[] array = this.buffer.array();
+        int end = this.buffer.position();
+        for (int index = Math.max(this.scanned, this.start); index < end; index++) {
+            if (array[index] == 0) {
+                decode(this.start, index);
+                consumed(index + 1);
+                return true;
+            }
+        }
+        this.scanned = end;
+        return false;
+    }
+
+    /**
+     * Takes the bytes left without a terminating NUL as the last reply, once
+     * clamd has closed the connection.
+     *
+     * @return false if there are no such bytes.
+     */
+    public boolean finish() {
+        int end = this.buffer.position();
+        if (this.start >= end) {
+            return false;
+        }
+        decode(this.start, end);
+        consumed(end);
+        return true;
+    }
+
+    /**
+     * Drops every byte received so far.
+     */
+    public void reset() {
+        this.buffer.clear();
+        this.start = 0;
+        this.scanned = 0;
+    }
+
+    /**
+     * @return Request id of the reply, -1 if it has no {@code <id>: } prefix.
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * @return Reply without its request id.
+     */
+    public String getReply() {
+        return new String(this.buffer.array(), this.bodyStart, this.replyEnd - this.bodyStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param value ASCII text to compare with.
+     * @return true if the reply without its request id equals the text.
+     */
+    public boolean is(String value) {
+        return this.replyEnd - this.bodyStart == value.length() && regionMatches(this.bodyStart, value);
+    }
+
+    public boolean endsWith(String suffix) {
+        return this.replyEnd - this.bodyStart >= suffix.length() && regionMatches(this.replyEnd - suffix.length(), suffix);
+    }
+
+    /**
+     * @return true if clamd reported an error, after which it closes the
+     * connection.
+     */
+    public boolean isError() {
+        return endsWith(ClamAV.ERROR);
+    }
+
+    /**
+     * Decodes the reply to INSTREAM. Signature names are interned, so
+     * repeated detections share one result.
+     *
+     * @return Verdict of the scan.
+     * @throws ClamAVSizeLimitException If the content exceeded the
+     * StreamMaxLength of clamd.
+     * @throws ClamAVException If the reply is not a verdict.
+     */
+    public ClamAVScanResult getScanResult() throws ClamAVException {
+        if (is(ClamAV.OK)) {
+            return ClamAVScanResult.OK;
+        }
+        int length = this.replyEnd - this.bodyStart - STREAM.length() - FOUND.length();
+        if (length > 0 && regionMatches(this.bodyStart, STREAM) && endsWith(FOUND)) {
+            return ClamAVScanResult.valueOf(this.buffer.array(), this.bodyStart + STREAM.length(), length);
+        }
+        if (is(ClamAV.SIZE_LIMIT_EXCEEDED)) {
+            throw new ClamAVSizeLimitException(getReply());
+        }
+        throw new ClamAVException(getReply());
+    }
+
+    /**
+     * Finds the path of a reply to SCAN, CONTSCAN, MULTISCAN or ALLMATCHSCAN,
+     * which is {@code <path>: OK}, {@code <path>: <signature> FOUND} or
+     * {@code <path>: <message> ERROR}. Paths may contain ": " themselves, so
+     * the path of a verdict ends at the last separator, and the path of an
+     * error at the first one past the given offset, e.g. the length of the
+     * path that was requested.
+     *
+     * @param offset Minimum length of the path.
+     * @return Path reported by clamd, null if the reply names no path.
+     */
+    public String getPath(int offset) {
+        int separator = separator(offset);
+        if (separator < 0) {
+            return null;
+        }
+        return new String(this.buffer.array(), this.bodyStart, separator - this.bodyStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the verdict of a reply to SCAN, CONTSCAN, MULTISCAN or
+     * ALLMATCHSCAN.
+     *
+     * @return Verdict for the path of the reply.
+     * @throws ClamAVException If clamd could not scan the path.
+     */
+    public ClamAVScanResult getFileResult() throws ClamAVException {
+        if (endsWith(PATH_OK)) {
+            return ClamAVScanResult.OK;
+        }
+        int separator = separator(0);
+        if (separator >= 0 && endsWith(FOUND)) {
+            int length = this.replyEnd - FOUND.length() - separator - 2;
+            if (length > 0) {
+                return ClamAVScanResult.valueOf(this.buffer.array(), separator + 2, length);
+            }
+        }
+        throw new ClamAVException(getReply());
+    }
+
+    /**
+     * @return true if the reply is a verdict or an error for a path, rather
+     * than e.g. a notice that a path was excluded.
+     */
+    public boolean isFileResult() {
+        return separator(0) >= 0 && (endsWith(PATH_OK) || endsWith(FOUND) || isError());
+    }
+
+    /**
+     * @return true if clamd reported that it could not open a file or
+     * directory, e.g. for lack of permission or as it does not see the path,
+     * rather than an error scanning its content.
+     */
+    public boolean isAccessError() {
+        if (!isError()) {
+            return false;
+        }
+        for (String cause : ACCESS_ERRORS) {
+            for (int index = this.bodyStart; index + cause.length() <= this.replyEnd; index++) {
+                if (regionMatches(index, cause)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int separator(int offset) {
+        byte[] array = this.buffer.array();
+        if (isError()) {
+            for (int index = this.bodyStart + Math.max(offset, 0); index + 1 < this.replyEnd; index++) {
+                if (array[index] == ':' && array[index + 1] == ' ') {
+                    return index;
+                }
+            }
+            return -1;
+        }
+        int end = endsWith(FOUND) ? this.replyEnd - FOUND.length() : this.replyEnd;
+        for (int index = end - 2; index >= this.bodyStart; index--) {
+            if (array[index] == ':' && array[index + 1] == ' ') {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionMatches(int offset, String value) {
+        byte[] array = this.buffer.array();
+        for (int index = 0; index < value.length(); index++) {
+            if (array[offset + index] != value.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void decode(int from, int to) {
+        byte[] array = this.buffer.array();
+        int value = 0;
+        int index = from;
+        while (index < to && index - from < 9 && array[index] >= '0' && array[index] <= '9') {
+            value = value * 10 + array[index] - '0';
+            index++;
+        }
+        this.replyStart = from;
+        this.replyEnd = to;
+        if (index > from && index + 1 < to && array[index] == ':' && array[index + 1] == ' ') {
+            this.id = value;
+            this.bodyStart = index + 2;
+        } else {
+            this.id = -1;
+            this.bodyStart = from;
+        }
+    }
+
+    private void consumed(int end) {
+        if (end == this.buffer.position()) {
+            // Everything is decoded, so the next read may start over at the front.
+            this.buffer.clear();
+            this.start = 0;
+            this.scanned = 0;
+        } else {
+            this.start = end;
+            this.scanned = end;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.buffer.array(), this.replyStart, this.replyEnd - this.replyStart, StandardCharsets.UTF_8);
+    }
+
+    private static final String STREAM = "stream: ";
+    private static final String FOUND = " FOUND";
+    private static final String PATH_OK = ": OK";
+    private static final String[] ACCESS_ERRORS = {"Access denied.", "Permission denied", "No such file or directory", "Can't open file or directory"};
+
+    protected static final int initialCapacity = 256;
+    protected static final int defaultMaxLength = 8192;
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps content open across attempts, e.g. on different nodes of a
+ * {@link ClamAVCluster} or on different sessions of a pool of
+ * {@link ClamAVAsync}, and is only closed by {@link #release}. Content that
+ * cannot be rewound may still be sent again as long as nothing was read from
+ * it, which {@link #rewind} does not tell, as the clients take it to mean the
+ * content can be read twice. Errors of the content itself are remembered, so
+ * they are not blamed on the connection.
+ */
+final class ClamAVRetrySource implements ClamAVSource {
+
+    private final ClamAVSource source;
+    private boolean read = false;
+    private IOException failure;
+
+    ClamAVRetrySource(ClamAVSource source) {
+        this.source = source;
+    }
+
+    /**
+     * @return Content kept open across attempts.
+     */
+    ClamAVSource getSource() {
+        return this.source;
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        this.read = true;
+        try {
+            return this.source.next();
+        } catch (IOException ex) {
+            this.failure = ex;
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean rewind() throws IOException {
+        if (this.source.rewind()) {
+            this.read = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if nothing was read yet, so the content may be sent again
+     * even if it cannot be rewound.
+     */
+    boolean isUntouched() {
+        return !this.read;
+    }
+
+    /**
+     * @return true if the content failed to be read with this error.
+     */
+    boolean isFailure(Throwable exc) {
+        return exc != null && exc == this.failure;
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return this.source.isBlocking();
+    }
+
+    @Override
+    public long size() throws IOException {
+        return this.source.size();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Closes the content once no attempt is left.
+     */
+    void release() {
+        try {
+            this.source.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ClamAVRetrySource.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
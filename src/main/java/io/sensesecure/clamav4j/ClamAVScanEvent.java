@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event of a scan by {@link ClamAV} or {@link ClamAVAsync},
+ * recorded with e.g. {@code -XX:StartFlightRecording}. The duration of the
+ * event is the duration of the scan.
+ */
+@Name("io.sensesecure.clamav4j.Scan")
+@Label("ClamAV Scan")
+@Category("ClamAV")
+@Description("Scan of content by clamd")
+@StackTrace(false)
+class ClamAVScanEvent extends Event {
+
+    @Label("Address")
+    String address;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Connect Time")
+    @Timespan
+    long connectTime;
+
+    @Label("Upload Time")
+    @Timespan
+    long uploadTime;
+
+    @Label("Verdict Time")
+    @Timespan
+    long verdictTime;
+
+    @Label("Signature")
+    @Description("Name of the matched signature, null if the content is clean")
+    String signature;
+
+    @Label("Failure")
+    String failure;
+}
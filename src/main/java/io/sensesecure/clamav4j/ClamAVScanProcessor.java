@@ -0,0 +1,343 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+
+/**
+ * Scans the jobs of a {@link Flow.Publisher} and publishes their verdicts.
+ * <p>
+ * Jobs are requested from upstream only as far as the subscriber asked for
+ * verdicts, and never more than the maximum number of scans in flight, so a
+ * slow clamd or a slow subscriber holds back the publisher. Verdicts are
+ * published as the scans complete, or in the order of the jobs if the
+ * processor is ordered. A job that could not be scanned is published with
+ * its error, and the stream goes on.
+ * <p>
+ * There is a single subscriber. Reactive Streams publishers and subscribers
+ * could be connected with {@code org.reactivestreams.FlowAdapters}.
+ *
+ * @param <T> Type of the jobs, e.g. a message or an object key.
+ */
+public class ClamAVScanProcessor<T> implements Flow.Processor<T, ClamAVScanProcessor.ClamAVJobResult<T>> {
+
+    private final Function<ClamAVSource, CompletableFuture<ClamAVScanResult>> scanner;
+    private final Function<? super T, ? extends ClamAVSource> sourceOf;
+    private final int maxInFlight;
+    private final boolean ordered;
+    private final Queue<CompletableFuture<ClamAVJobResult<T>>> queue = new ArrayDeque<>();
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super ClamAVJobResult<T>> downstream;
+    private boolean subscribed = false;
+    private long demand = 0;
+    private long requested = 0;
+    private int pending = 0;
+    private boolean done = false;
+    private Throwable failure;
+    private boolean cancelled = false;
+    private boolean terminated = false;
+    private boolean emitting = false;
+    private boolean missed = false;
+
+    /**
+     * @param clamAVAsync Client the jobs are scanned with.
+     * @param sourceOf Content of a job.
+     * @param maxInFlight Maximum number of scans in progress at a time.
+     * @param ordered true to publish the verdicts in the order of the jobs.
+     */
+    public ClamAVScanProcessor(ClamAVAsync clamAVAsync, Function<? super T, ? extends ClamAVSource> sourceOf, int maxInFlight, boolean ordered) {
+        this(clamAVAsync::scan, sourceOf, maxInFlight, ordered);
+    }
+
+    /**
+     * Scans the jobs on a cluster. The cluster sends each scan to the least
+     * busy node, so every node has about {@code maxInFlightPerNode} scans in
+     * progress.
+     *
+     * @param cluster Cluster the jobs are scanned on.
+     * @param sourceOf Content of a job.
+     * @param maxInFlightPerNode Maximum number of scans in progress per node.
+     * @param ordered true to publish the verdicts in the order of the jobs.
+     */
+    public ClamAVScanProcessor(ClamAVCluster cluster, Function<? super T, ? extends ClamAVSource> sourceOf, int maxInFlightPerNode, boolean ordered) {
+        this(cluster::scan, sourceOf, maxInFlightPerNode * cluster.getNodes().size(), ordered);
+    }
+
+    /**
+     * @param scanner Starts the scan of a job, e.g. {@code clamAV::submit}.
+     * @param sourceOf Content of a job.
+     * @param maxInFlight Maximum number of scans in progress at a time.
+     * @param ordered true to publish the verdicts in the order of the jobs.
+     */
+    public ClamAVScanProcessor(Function<ClamAVSource, CompletableFuture<ClamAVScanResult>> scanner, Function<? super T, ? extends ClamAVSource> sourceOf, int maxInFlight, boolean ordered) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.scanner = scanner;
+        this.sourceOf = sourceOf;
+        this.maxInFlight = maxInFlight;
+        this.ordered = ordered;
+    }
+
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    public boolean isOrdered() {
+        return this.ordered;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ClamAVJobResult<T>> subscriber) {
+        boolean first;
+        synchronized (this) {
+            first = !this.subscribed;
+            this.subscribed = true;
+        }
+        if (!first) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("ClamAVScanProcessor allows a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new ClamAVScanSubscription());
+        synchronized (this) {
+            this.downstream = subscriber;
+        }
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (this.upstream == null && !this.cancelled) {
+                this.upstream = subscription;
+                subscription = null;
+            }
+        }
+        if (subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(final T job) {
+        final CompletableFuture<ClamAVJobResult<T>> entry = new CompletableFuture<>();
+        synchronized (this) {
+            this.requested--;
+            this.pending++;
+            if (this.ordered) {
+                this.queue.add(entry);
+            }
+        }
+        CompletableFuture<ClamAVScanResult> scan;
+        try {
+            scan = this.scanner.apply(this.sourceOf.apply(job));
+        } catch (RuntimeException ex) {
+            scan = CompletableFuture.failedFuture(ex);
+        }
+        scan.whenComplete((result, exc) -> {
+            Throwable cause = exc instanceof CompletionException ? exc.getCause() : exc;
+            entry.complete(new ClamAVJobResult<>(job, result, cause));
+            if (!this.ordered) {
+                synchronized (this) {
+                    this.queue.add(entry);
+                }
+            }
+            drain();
+        });
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            this.done = true;
+            this.failure = throwable;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            this.done = true;
+        }
+        drain();
+    }
+
+    /**
+     * Publishes the completed verdicts the subscriber asked for and requests
+     * as many jobs from upstream as there is room for. Only one thread at a
+     * time drains, and calls the subscriber outside of the lock.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (this.emitting) {
+                this.missed = true;
+                return;
+            }
+            this.emitting = true;
+        }
+        while (true) {
+            ClamAVJobResult<T> next = null;
+            boolean terminate = false;
+            long fetch = 0;
+            synchronized (this) {
+                if (this.cancelled || this.terminated || this.downstream == null) {
+                    this.emitting = false;
+                    return;
+                }
+                CompletableFuture<ClamAVJobResult<T>> head = this.queue.peek();
+                if (this.demand > 0 && head != null && head.isDone()) {
+                    this.queue.poll();
+                    next = head.getNow(null);
+                    if (this.demand != Long.MAX_VALUE) {
+                        this.demand--;
+                    }
+                    this.pending--;
+                } else if (this.done && this.pending == 0) {
+                    this.terminated = true;
+                    terminate = true;
+                } else {
+                    if (this.upstream != null && !this.done) {
+                        // Jobs requested or received but not yet published count against both limits.
+                        fetch = Math.min(this.maxInFlight, this.demand) - this.requested - this.pending;
+                    }
+                    if (fetch > 0) {
+                        this.requested += fetch;
+                    } else if (this.missed) {
+                        this.missed = false;
+                        continue;
+                    } else {
+                        this.emitting = false;
+                        return;
+                    }
+                }
+            }
+            if (next != null) {
+                this.downstream.onNext(next);
+            } else if (terminate) {
+                if (this.failure == null) {
+                    this.downstream.onComplete();
+                } else {
+                    this.downstream.onError(this.failure);
+                }
+            } else {
+                this.upstream.request(fetch);
+            }
+        }
+    }
+
+    private void cancel(Throwable reason) {
+        Flow.Subscription subscription;
+        Flow.Subscriber<? super ClamAVJobResult<T>> subscriber = null;
+        synchronized (this) {
+            if (this.cancelled || this.terminated) {
+                return;
+            }
+            this.cancelled = true;
+            this.queue.clear();
+            subscription = this.upstream;
+            if (reason != null) {
+                this.terminated = true;
+                subscriber = this.downstream;
+            }
+        }
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        if (subscriber != null) {
+            subscriber.onError(reason);
+        }
+    }
+
+    private class ClamAVScanSubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                ClamAVScanProcessor.this.cancel(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            synchronized (ClamAVScanProcessor.this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            ClamAVScanProcessor.this.cancel(null);
+        }
+    }
+
+    public static class ClamAVJobResult<T> {
+
+        private final T job;
+        private final ClamAVScanResult result;
+        private final Throwable error;
+
+        protected ClamAVJobResult(T job, ClamAVScanResult result, Throwable error) {
+            this.job = job;
+            this.result = result;
+            this.error = error;
+        }
+
+        public T getJob() {
+            return this.job;
+        }
+
+        /**
+         * @return Verdict, null if the job could not be scanned.
+         */
+        public ClamAVScanResult getResult() {
+            return this.result;
+        }
+
+        /**
+         * @return Reason the job could not be scanned, null if it was.
+         */
+        public Throwable getError() {
+            return this.error;
+        }
+
+        public boolean isInfected() {
+            return this.result != null && this.result.isInfected();
+        }
+
+        @Override
+        public String toString() {
+            if (this.error != null) {
+                return this.job + ": " + this.error;
+            }
+            return this.job + ": " + (this.result.isInfected() ? this.result.getSignature() + " FOUND" : "OK");
+        }
+    }
+}
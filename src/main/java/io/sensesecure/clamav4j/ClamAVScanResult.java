@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Verdict of a scan. The status is "OK" for clean content, or the name of the
+ * signature that matched, the same strings returned by {@link ClamAV#scan}.
+ */
+public class ClamAVScanResult {
+
+    public static final ClamAVScanResult OK = new ClamAVScanResult(ClamAV.CLEAN);
+
+    private final String status;
+
+    public ClamAVScanResult(String status) {
+        this.status = status;
+    }
+
+    /**
+     * @return "OK", or the name of the matched signature.
+     */
+    public String getStatus() {
+        return this.status;
+    }
+
+    public boolean isInfected() {
+        return !ClamAV.CLEAN.equals(this.status);
+    }
+
+    /**
+     * @return Name of the matched signature, null if the content is clean.
+     */
+    public String getSignature() {
+        return isInfected() ? this.status : null;
+    }
+
+    /**
+     * Maps a status returned by {@link ClamAV#scan} to a result.
+     *
+     * @param status "OK", or the name of the matched signature.
+     * @return Scan result.
+     */
+    public static ClamAVScanResult valueOf(String status) {
+        return ClamAV.CLEAN.equals(status) ? OK : new ClamAVScanResult(status);
+    }
+
+    /**
+     * Maps a signature name received from clamd to a result, reusing the one
+     * created for the same name before if it is still cached.
+     *
+     * @param bytes Buffer holding the name.
+     * @param offset Offset of the name in the buffer.
+     * @param length Length of the name in bytes.
+     * @return Scan result.
+     */
+    protected static ClamAVScanResult valueOf(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int index = offset; index < offset + length; index++) {
+            if (bytes[index] < 0) {
+                return valueOf(new String(bytes, offset, length, StandardCharsets.UTF_8));
+            }
+            hash = 31 * hash + bytes[index];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (interned.length - 1);
+        ClamAVScanResult result = interned[slot];
+        if (result != null && result.matches(hash, bytes, offset, length)) {
+            return result;
+        }
+        result = valueOf(new String(bytes, offset, length, StandardCharsets.US_ASCII));
+        interned[slot] = result;
+        return result;
+    }
+
+    private boolean matches(int hash, byte[] bytes, int offset, int length) {
+        if (this.status.hashCode() != hash || this.status.length() != length) {
+            return false;
+        }
+        for (int index = 0; index < length; index++) {
+            if (this.status.charAt(index) != bytes[offset + index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ClamAVScanResult [status=" + status + "]";
+    }
+
+    private static final int internedResults = 256;
+
+    /**
+     * Recent results by hash of their signature name. Results are immutable,
+     * so racing updates only cost an extra allocation.
+     */
+    private static final ClamAVScanResult[] interned = new ClamAVScanResult[internedResults];
+}
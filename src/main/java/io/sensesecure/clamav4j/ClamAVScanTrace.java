@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletionException;
+import jdk.jfr.EventType;
+
+/**
+ * Times the phases of one scan for {@link ClamAVMetrics} and
+ * {@link ClamAVScanEvent}. The phases of a scan happen one after the other,
+ * so a trace is used by one thread at a time.
+ */
+final class ClamAVScanTrace {
+
+    /**
+     * Trace of scans that are not measured, e.g. of the static methods.
+     */
+    static final ClamAVScanTrace NONE = new ClamAVScanTrace();
+
+    private final ClamAVMetrics metrics;
+    private final ClamAVScanEvent event;
+    private final long start;
+    private long mark;
+    private long bytes;
+    private IOException sourceFailure;
+    private boolean sent = false;
+    private long verdictTime = -1;
+
+    ClamAVScanTrace(ClamAVMetrics metrics, SocketAddress address) {
+        this.metrics = metrics;
+        if (EVENT_TYPE.isEnabled()) {
+            this.event = new ClamAVScanEvent();
+            this.event.address = String.valueOf(address);
+            this.event.begin();
+        } else {
+            this.event = null;
+        }
+        this.start = System.nanoTime();
+        this.mark = this.start;
+        metrics.scanStarted();
+    }
+
+    private ClamAVScanTrace() {
+        this.metrics = null;
+        this.event = null;
+        this.start = 0;
+    }
+
+    void connected() {
+        if (this.metrics == null) {
+            return;
+        }
+        long nanos = lap();
+        this.sent = false;
+        this.verdictTime = -1;
+        this.metrics.connected(nanos);
+        if (this.event != null) {
+            this.event.connectTime = nanos;
+        }
+    }
+
+    void streamed(long count) {
+        this.bytes += count;
+    }
+
+    void uploaded() {
+        if (this.metrics == null) {
+            return;
+        }
+        long nanos = lap();
+        this.sent = true;
+        this.metrics.uploaded(this.bytes, nanos);
+        if (this.event != null) {
+            this.event.bytes = this.bytes;
+            this.event.uploadTime = nanos;
+        }
+    }
+
+    void replied() {
+        if (this.metrics == null) {
+            return;
+        }
+        long nanos = lap();
+        if (this.sent) {
+            this.verdictTime = nanos;
+        }
+        this.metrics.replied(nanos);
+        if (this.event != null) {
+            this.event.verdictTime = nanos;
+        }
+    }
+
+    void completed(String status) {
+        if (this.metrics != null) {
+            completed(ClamAVScanResult.valueOf(status));
+        }
+    }
+
+    void completed(ClamAVScanResult result) {
+        if (this.metrics == null) {
+            return;
+        }
+        this.metrics.scanCompleted(result, System.nanoTime() - this.start);
+        if (this.event != null) {
+            this.event.signature = result.getSignature();
+            this.event.commit();
+        }
+    }
+
+    void failed(Throwable exc) {
+        if (this.metrics == null) {
+            return;
+        }
+        Throwable cause = exc instanceof CompletionException && exc.getCause() != null ? exc.getCause() : exc;
+        this.metrics.scanFailed(cause, System.nanoTime() - this.start);
+        if (this.event != null) {
+            this.event.failure = cause.toString();
+            this.event.commit();
+        }
+    }
+
+    void finished(ClamAVScanResult result, Throwable exc) {
+        if (exc == null) {
+            completed(result);
+        } else {
+            failed(exc);
+        }
+    }
+
+    /**
+     * Remembers a failure to read the content, which says nothing about
+     * clamd, so it is not held against clamd by a breaker or a limiter.
+     *
+     * @param exc Error of the source.
+     * @return The error, to be thrown on.
+     */
+    IOException sourceFailed(IOException exc) {
+        if (this.metrics != null) {
+            this.sourceFailure = exc;
+        }
+        return exc;
+    }
+
+    /**
+     * @param exc Cause of a failed scan.
+     * @return true if the scan failed because its content could not be read,
+     * rather than because clamd could not be reached.
+     */
+    boolean isSourceFailure(Throwable exc) {
+        return exc != null && exc == this.sourceFailure;
+    }
+
+    /**
+     * @return Nanoseconds clamd took to answer once the whole content was
+     * sent, -1 if there was no such answer.
+     */
+    long getVerdictTime() {
+        return this.verdictTime;
+    }
+
+    private long lap() {
+        long now = System.nanoTime();
+        long nanos = now - this.mark;
+        this.mark = now;
+        return nanos;
+    }
+
+    private static final EventType EVENT_TYPE = EventType.getEventType(ClamAVScanEvent.class);
+}
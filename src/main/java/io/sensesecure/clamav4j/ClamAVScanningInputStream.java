@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Scans the content of a stream while the application reads it, e.g. an
+ * upload that is stored and scanned in one pass. Every byte read is also
+ * streamed to clamd through a bounded buffer, so a slow clamd holds back the
+ * reader rather than the content being buffered.
+ * <p>
+ * The verdict is complete once the stream has been read to the end. Closing
+ * the stream before that fails the scan, as the rest of the content was not
+ * seen.
+ */
+public class ClamAVScanningInputStream extends FilterInputStream {
+
+    private final ClamAVPipe pipe;
+    private final CompletableFuture<ClamAVScanResult> result;
+    private final byte[] single = new byte[1];
+    private boolean ended = false;
+
+    /**
+     * Scans with the blocking client, on a thread of its executor.
+     *
+     * @param in Stream to be read and scanned.
+     * @param clamAV Client the content is scanned with.
+     */
+    public ClamAVScanningInputStream(InputStream in, ClamAV clamAV) {
+        this(in, clamAV::submit, defaultCapacity);
+    }
+
+    /**
+     * @param in Stream to be read and scanned.
+     * @param scanner Starts the scan of the content, e.g.
+     * {@code clamAV::submit}. The scan waits for the reader, on a thread of
+     * the scanner, e.g. of the shared executor for {@link ClamAVAsync} with
+     * read-ahead, or of its channel group without.
+     * @param capacity Maximum number of bytes read but not yet sent to clamd.
+     */
+    public ClamAVScanningInputStream(InputStream in, Function<ClamAVSource, CompletableFuture<ClamAVScanResult>> scanner, int capacity) {
+        super(in);
+        this.pipe = new ClamAVPipe(capacity, Math.max(1, Math.min(ClamAV.defaultChunkSize, capacity / 2)));
+        this.result = scanner.apply(this.pipe);
+    }
+
+    /**
+     * @return Verdict, complete once the stream was read to the end and
+     * clamd has replied.
+     */
+    public CompletableFuture<ClamAVScanResult> getResult() {
+        return this.result;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b < 0) {
+            end();
+        } else {
+            this.single[0] = (byte) b;
+            this.pipe.write(this.single, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int count = super.read(bytes, offset, length);
+        if (count < 0) {
+            end();
+        } else {
+            this.pipe.write(bytes, offset, count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the skipped bytes, which have to be scanned as well.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        byte[] skipped = new byte[(int) Math.min(n, skipBufferSize)];
+        long remaining = n;
+        while (remaining > 0) {
+            int count = read(skipped, 0, (int) Math.min(remaining, skipped.length));
+            if (count < 0) {
+                break;
+            }
+            remaining -= count;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.ended) {
+            this.pipe.abort(new IOException("Stream closed before the end of the content"));
+        }
+        super.close();
+    }
+
+    private void end() {
+        this.ended = true;
+        this.pipe.finish();
+    }
+
+    protected static final int defaultCapacity = 262144;
+    protected static final int skipBufferSize = 8192;
+}
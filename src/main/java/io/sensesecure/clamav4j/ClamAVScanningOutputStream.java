@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Scans the content written to a stream on its way to the underlying stream,
+ * e.g. an upload copied to storage. Every byte written is also streamed to
+ * clamd through a bounded buffer, so a slow clamd holds back the writer
+ * rather than the content being buffered.
+ * <p>
+ * Closing the stream ends the content. If the underlying stream fails, the
+ * scan fails with it.
+ */
+public class ClamAVScanningOutputStream extends FilterOutputStream {
+
+    private final ClamAVPipe pipe;
+    private final CompletableFuture<ClamAVScanResult> result;
+    private final byte[] single = new byte[1];
+
+    /**
+     * Scans with the blocking client, on a thread of its executor.
+     *
+     * @param out Stream the content is written to.
+     * @param clamAV Client the content is scanned with.
+     */
+    public ClamAVScanningOutputStream(OutputStream out, ClamAV clamAV) {
+        this(out, clamAV::submit, ClamAVScanningInputStream.defaultCapacity);
+    }
+
+    /**
+     * @param out Stream the content is written to.
+     * @param scanner Starts the scan of the content, e.g.
+     * {@code clamAV::submit}. The scan waits for the writer, on a thread of
+     * the scanner, e.g. of the shared executor for {@link ClamAVAsync} with
+     * read-ahead, or of its channel group without.
+     * @param capacity Maximum number of bytes written but not yet sent to
+     * clamd.
+     */
+    public ClamAVScanningOutputStream(OutputStream out, Function<ClamAVSource, CompletableFuture<ClamAVScanResult>> scanner, int capacity) {
+        super(out);
+        this.pipe = new ClamAVPipe(capacity, Math.max(1, Math.min(ClamAV.defaultChunkSize, capacity / 2)));
+        this.result = scanner.apply(this.pipe);
+    }
+
+    /**
+     * @return Verdict, complete once the stream was closed and clamd has
+     * replied.
+     */
+    public CompletableFuture<ClamAVScanResult> getResult() {
+        return this.result;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.single[0] = (byte) b;
+        write(this.single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        try {
+            this.out.write(bytes, offset, length);
+        } catch (IOException ex) {
+            this.pipe.abort(ex);
+            throw ex;
+        }
+        this.pipe.write(bytes, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } catch (IOException ex) {
+            this.pipe.abort(ex);
+            throw ex;
+        } finally {
+            this.pipe.finish();
+        }
+    }
+}
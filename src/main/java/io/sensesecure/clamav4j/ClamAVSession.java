@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.nio.channels.Channel;
+
+/**
+ * A clamd connection in IDSESSION mode. Every command sent on the session is
+ * numbered by clamd starting from 1, and the reply is prefixed with that
+ * number, so the session keeps the counter in step with the daemon.
+ *
+ * @param <C> Type of the underlying channel.
+ */
+public class ClamAVSession<C extends Channel> {
+
+    private final C channel;
+    private final long created;
+    private long lastUsed;
+    private int id;
+    private ClamAVReplyDecoder decoder;
+
+    protected ClamAVSession(C channel) {
+        this.channel = channel;
+        this.created = System.currentTimeMillis();
+        this.lastUsed = this.created;
+    }
+
+    public C getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * @return Time when the connection was opened.
+     */
+    public long getCreated() {
+        return this.created;
+    }
+
+    /**
+     * @return Time when the session was last handed out or returned.
+     */
+    public long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    protected void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+
+    /**
+     * @return Number of commands already sent on this session.
+     */
+    public int getRequests() {
+        return this.id;
+    }
+
+    /**
+     * Allocates the id clamd will assign to the next command.
+     *
+     * @return Request id expected in the reply prefix.
+     */
+    public int nextId() {
+        return ++this.id;
+    }
+
+    /**
+     * @return Decoder for the replies on this session, kept across requests.
+     */
+    public ClamAVReplyDecoder getDecoder() {
+        if (this.decoder == null) {
+            this.decoder = new ClamAVReplyDecoder();
+        }
+        return this.decoder;
+    }
+}
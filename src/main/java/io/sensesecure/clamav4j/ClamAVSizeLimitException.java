@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+/**
+ * Thrown when content is larger than clamd accepts, its StreamMaxLength.
+ * clamd stops reading past the limit and closes the connection, so nothing
+ * was scanned. Larger content can be scanned in slices, see
+ * {@link ClamAV#scan(java.nio.channels.FileChannel, long, long)}.
+ */
+public class ClamAVSizeLimitException extends ClamAVException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ClamAVSizeLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Content to be streamed to clamd, handed out one chunk at a time.
+ */
+public interface ClamAVSource extends Closeable {
+
+    /**
+     * Returns the next chunk of content. The returned buffer may be reused by
+     * the source, and is only valid until the next call.
+     *
+     * @return Chunk to be written, or null at the end of the content.
+     * @throws IOException If the content could not be read.
+     */
+    ByteBuffer next() throws IOException;
+
+    /**
+     * Goes back to the start of the content, if the source can be read more
+     * than once.
+     *
+     * @return false if the content can only be read once.
+     * @throws IOException If the content could not be reset.
+     */
+    default boolean rewind() throws IOException {
+        return false;
+    }
+
+    /**
+     * Tells whether {@link #next} may wait for I/O, e.g. reading a stream or
+     * a file. {@link ClamAVAsync} reads such content ahead on other threads,
+     * so its I/O threads never wait for it.
+     *
+     * @return false if the content is already in memory.
+     */
+    default boolean isBlocking() {
+        return true;
+    }
+
+    /**
+     * Tells how many bytes are left to be handed out, if that is known
+     * without reading them, e.g. to reject content larger than clamd accepts
+     * up front.
+     *
+     * @return Number of bytes left, -1 if not known.
+     * @throws IOException If the size could not be read.
+     */
+    default long size() throws IOException {
+        return -1;
+    }
+
+    /**
+     * Releases what the source opened itself. Content passed in by the caller
+     * is left open.
+     *
+     * @throws IOException If the source could not be closed.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+
+    static ClamAVSource of(InputStream inputStream) {
+        return of(inputStream, ClamAV.defaultChunkSize);
+    }
+
+    static ClamAVSource of(ByteBuffer byteBuffer) {
+        return of(byteBuffer, ClamAV.defaultChunkSize);
+    }
+
+    static ClamAVSource of(ByteBuffer[] byteBuffers) {
+        return of(byteBuffers, ClamAV.defaultChunkSize);
+    }
+
+    static ClamAVSource of(FileChannel fileChannel) {
+        return of(fileChannel, ClamAV.defaultChunkSize);
+    }
+
+    static ClamAVSource of(Path path) {
+        return of(path, ClamAV.defaultChunkSize);
+    }
+
+    /**
+     * @param inputStream Content to be scanned.
+     * @param chunkSize Maximum number of bytes per INSTREAM chunk.
+     * @return Source reading the stream.
+     */
+    static ClamAVSource of(InputStream inputStream, int chunkSize) {
+        return new ClamAVInputStreamSource(inputStream, checkChunkSize(chunkSize));
+    }
+
+    static ClamAVSource of(ByteBuffer byteBuffer, int chunkSize) {
+        return new ClamAVByteBufferSource(byteBuffer, checkChunkSize(chunkSize));
+    }
+
+    /**
+     * @param byteBuffers Buffers whose remaining bytes, one after the other,
+     * make up the content.
+     * @param chunkSize Maximum number of bytes per INSTREAM chunk.
+     * @return Source handing out views of the buffers.
+     */
+    static ClamAVSource of(ByteBuffer[] byteBuffers, int chunkSize) {
+        return new ClamAVByteBuffersSource(byteBuffers, checkChunkSize(chunkSize));
+    }
+
+    static ClamAVSource of(FileChannel fileChannel, int chunkSize) {
+        return of(fileChannel, 0, Long.MAX_VALUE, chunkSize);
+    }
+
+    static ClamAVSource of(Path path, int chunkSize) {
+        return of(path, 0, Long.MAX_VALUE, chunkSize);
+    }
+
+    /**
+     * @param fileChannel File to be scanned.
+     * @param position Offset of the first byte to scan.
+     * @param length Number of bytes to scan, cut short at the end of the
+     * file.
+     * @param chunkSize Maximum number of bytes per INSTREAM chunk.
+     * @return Source reading the slice of the file.
+     */
+    static ClamAVSource of(FileChannel fileChannel, long position, long length, int chunkSize) {
+        return new ClamAVFileChannelSource(fileChannel, false, position, length, checkChunkSize(chunkSize));
+    }
+
+    static ClamAVSource of(Path path, long position, long length, int chunkSize) {
+        return new ClamAVPathSource(path, position, length, checkChunkSize(chunkSize));
+    }
+
+    private static int checkChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Reads a stream into a single reused chunk buffer.
+     */
+    class ClamAVInputStreamSource implements ClamAVSource {
+
+        private final InputStream inputStream;
+        private final byte[] buffer;
+        private final ByteBuffer chunk;
+
+        protected ClamAVInputStreamSource(InputStream inputStream, int chunkSize) {
+            this.inputStream = inputStream;
+            this.buffer = new byte[chunkSize];
+            this.chunk = ByteBuffer.wrap(this.buffer);
+        }
+
+        public InputStream getInputStream() {
+            return this.inputStream;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            int length;
+            do {
+                length = this.inputStream.read(this.buffer);
+            } while (length == 0);
+            if (length < 0) {
+                return null;
+            }
+            this.chunk.limit(length).position(0);
+            return this.chunk;
+        }
+    }
+
+    /**
+     * Hands out views of the remaining bytes of a buffer without copying. The
+     * position of the caller's buffer is left untouched.
+     */
+    class ClamAVByteBufferSource implements ClamAVSource {
+
+        private final ByteBuffer view;
+        private final int chunkSize;
+        private final int start;
+        private final int end;
+        private int position;
+
+        protected ClamAVByteBufferSource(ByteBuffer byteBuffer, int chunkSize) {
+            this.view = byteBuffer.duplicate();
+            this.chunkSize = chunkSize;
+            this.start = byteBuffer.position();
+            this.position = this.start;
+            this.end = byteBuffer.limit();
+        }
+
+        @Override
+        public boolean rewind() {
+            this.position = this.start;
+            return true;
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return Math.max(0, this.end - this.position);
+        }
+
+        @Override
+        public ByteBuffer next() {
+            if (this.position >= this.end) {
+                return null;
+            }
+            int length = Math.min(this.chunkSize, this.end - this.position);
+            this.view.limit(this.position + length).position(this.position);
+            this.position += length;
+            return this.view;
+        }
+    }
+
+    /**
+     * Hands out views of several buffers in turn, without copying or
+     * gathering them into one.
+     */
+    class ClamAVByteBuffersSource implements ClamAVSource {
+
+        private final ClamAVByteBufferSource[] sources;
+        private int index = 0;
+
+        protected ClamAVByteBuffersSource(ByteBuffer[] byteBuffers, int chunkSize) {
+            this.sources = new ClamAVByteBufferSource[byteBuffers.length];
+            for (int position = 0; position < byteBuffers.length; position++) {
+                this.sources[position] = new ClamAVByteBufferSource(byteBuffers[position], chunkSize);
+            }
+        }
+
+        @Override
+        public ByteBuffer next() {
+            while (this.index < this.sources.length) {
+                ByteBuffer chunk = this.sources[this.index].next();
+                if (chunk != null) {
+                    return chunk;
+                }
+                this.index++;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean rewind() {
+            for (ClamAVByteBufferSource source : this.sources) {
+                source.rewind();
+            }
+            this.index = 0;
+            return true;
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            long size = 0;
+            for (int position = this.index; position < this.sources.length; position++) {
+                size += this.sources[position].size();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Reads a slice of a file by absolute position, so the position of the
+     * channel is left untouched. Chunks are read into a recycled direct
+     * buffer, which is written to the socket without another copy. The
+     * blocking client sends the slice with {@link FileChannel#transferTo}
+     * instead.
+     */
+    class ClamAVFileChannelSource implements ClamAVSource {
+
+        private final FileChannel fileChannel;
+        private final boolean owned;
+        private final long start;
+        private final long end;
+        private final int chunkSize;
+        private ByteBuffer chunk;
+        private long position;
+
+        protected ClamAVFileChannelSource(FileChannel fileChannel, boolean owned, long position, long length, int chunkSize) {
+            if (position < 0 || length < 0) {
+                throw new IllegalArgumentException("position and length must not be negative");
+            }
+            this.fileChannel = fileChannel;
+            this.owned = owned;
+            this.start = position;
+            this.end = length > Long.MAX_VALUE - position ? Long.MAX_VALUE : position + length;
+            this.position = position;
+            this.chunkSize = chunkSize;
+        }
+
+        public int getChunkSize() {
+            return this.chunkSize;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (this.position >= this.end) {
+                return null;
+            }
+            if (this.chunk == null) {
+                this.chunk = ClamAVBuffers.acquire(this.chunkSize);
+            }
+            this.chunk.clear().limit((int) Math.min(this.chunkSize, this.end - this.position));
+            int length;
+            do {
+                length = this.fileChannel.read(this.chunk, this.position);
+            } while (length == 0);
+            if (length < 0) {
+                return null;
+            }
+            this.position += length;
+            this.chunk.flip();
+            return this.chunk;
+        }
+
+        /**
+         * @return Number of bytes left, as far as the file currently extends.
+         * @throws IOException If the size of the file could not be read.
+         */
+        protected long remaining() throws IOException {
+            return Math.max(0, Math.min(this.end, this.fileChannel.size()) - this.position);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return remaining();
+        }
+
+        /**
+         * Sends the next bytes straight from the file to a channel, calling
+         * {@link FileChannel#transferTo} until all of them are written.
+         *
+         * @param target Channel to write to.
+         * @param count Number of bytes to send.
+         * @throws IOException If the file ends early or the write failed.
+         */
+        protected void transferTo(WritableByteChannel target, long count) throws IOException {
+            while (count > 0) {
+                long transferred = this.fileChannel.transferTo(this.position, count, target);
+                if (transferred == 0 && this.position >= this.fileChannel.size()) {
+                    throw new EOFException("File truncated at " + this.position);
+                }
+                this.position += transferred;
+                count -= transferred;
+            }
+        }
+
+        @Override
+        public boolean rewind() {
+            this.position = this.start;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.chunk != null) {
+                ClamAVBuffers.release(this.chunk);
+                this.chunk = null;
+            }
+            if (this.owned) {
+                this.fileChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the file on the first read and closes it with the source, and
+     * again on the next read if it is read once more.
+     */
+    class ClamAVPathSource implements ClamAVSource {
+
+        private final Path path;
+        private final long position;
+        private final long length;
+        private final int chunkSize;
+        private ClamAVFileChannelSource source;
+
+        protected ClamAVPathSource(Path path, long position, long length, int chunkSize) {
+            this.path = path;
+            this.position = position;
+            this.length = length;
+            this.chunkSize = chunkSize;
+        }
+
+        public Path getPath() {
+            return this.path;
+        }
+
+        /**
+         * @return Offset of the first byte to scan.
+         */
+        public long getPosition() {
+            return this.position;
+        }
+
+        /**
+         * @return Number of bytes to scan, cut short at the end of the file.
+         */
+        public long getLength() {
+            return this.length;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            return open().next();
+        }
+
+        /**
+         * Reads the size of the file without opening it.
+         */
+        @Override
+        public long size() throws IOException {
+            if (this.source != null) {
+                return this.source.size();
+            }
+            return Math.max(0, Math.min(this.length, Files.size(this.path) - this.position));
+        }
+
+        /**
+         * @return Source reading the opened file.
+         * @throws IOException If the file could not be opened.
+         */
+        protected ClamAVFileChannelSource open() throws IOException {
+            if (this.source == null) {
+                this.source = new ClamAVFileChannelSource(FileChannel.open(this.path, StandardOpenOption.READ), true, this.position, this.length, this.chunkSize);
+            }
+            return this.source;
+        }
+
+        @Override
+        public boolean rewind() {
+            if (this.source != null) {
+                this.source.rewind();
+            }
+            return true;
+        }
+
+        /**
+         * Closes the file. It is opened again if the source is read after a
+         * rewind, e.g. by a retried scan.
+         */
+        @Override
+        public void close() throws IOException {
+            ClamAVFileChannelSource opened = this.source;
+            this.source = null;
+            if (opened != null) {
+                opened.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the measurements of a client in memory: a histogram per phase and
+ * counters of scans, bytes, infections and failures by cause.
+ * <p>
+ * One instance could be shared by several clients to get their totals.
+ */
+public class ClamAVStatistics implements ClamAVMetrics {
+
+    private final ClamAVHistogram connectTime = new ClamAVHistogram();
+    private final ClamAVHistogram uploadTime = new ClamAVHistogram();
+    private final ClamAVHistogram verdictTime = new ClamAVHistogram();
+    private final ClamAVHistogram scanTime = new ClamAVHistogram();
+    private final LongAdder scans = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder infections = new LongAdder();
+    private final ConcurrentHashMap<Class<?>, LongAdder> failures = new ConcurrentHashMap<>();
+
+    @Override
+    public void scanStarted() {
+        this.inFlight.increment();
+    }
+
+    @Override
+    public void connected(long nanos) {
+        this.connectTime.record(nanos);
+    }
+
+    @Override
+    public void uploaded(long bytes, long nanos) {
+        this.bytes.add(bytes);
+        this.uploadTime.record(nanos);
+    }
+
+    @Override
+    public void replied(long nanos) {
+        this.verdictTime.record(nanos);
+    }
+
+    @Override
+    public void scanCompleted(ClamAVScanResult result, long nanos) {
+        this.inFlight.decrement();
+        this.scans.increment();
+        if (result.isInfected()) {
+            this.infections.increment();
+        }
+        this.scanTime.record(nanos);
+    }
+
+    @Override
+    public void scanFailed(Throwable cause, long nanos) {
+        this.inFlight.decrement();
+        this.scans.increment();
+        this.failures.computeIfAbsent(cause.getClass(), type -> new LongAdder()).increment();
+        this.scanTime.record(nanos);
+    }
+
+    /**
+     * @return Nanoseconds until a connection or session was ready.
+     */
+    public ClamAVHistogram getConnectTime() {
+        return this.connectTime;
+    }
+
+    /**
+     * @return Nanoseconds spent streaming the content.
+     */
+    public ClamAVHistogram getUploadTime() {
+        return this.uploadTime;
+    }
+
+    /**
+     * @return Nanoseconds between the end of the content and the verdict.
+     */
+    public ClamAVHistogram getVerdictTime() {
+        return this.verdictTime;
+    }
+
+    /**
+     * @return Nanoseconds per scan, cache hits and failures included.
+     */
+    public ClamAVHistogram getScanTime() {
+        return this.scanTime;
+    }
+
+    /**
+     * @return Number of finished scans, failed ones included.
+     */
+    public long getScans() {
+        return this.scans.sum();
+    }
+
+    public long getInFlight() {
+        return this.inFlight.sum();
+    }
+
+    public long getBytesStreamed() {
+        return this.bytes.sum();
+    }
+
+    public long getInfections() {
+        return this.infections.sum();
+    }
+
+    /**
+     * @return Number of failed scans by the simple name of the exception.
+     */
+    public Map<String, Long> getFailures() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<Class<?>, LongAdder> entry : this.failures.entrySet()) {
+            counts.merge(entry.getKey().getSimpleName(), entry.getValue().sum(), Long::sum);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "Scans: " + getScans() + ", in flight: " + getInFlight() + ", bytes: " + getBytesStreamed() + ", infections: " + getInfections() + ", failures: " + getFailures()
+                + "\nconnect [ns]: " + this.connectTime
+                + "\nupload [ns]: " + this.uploadTime
+                + "\nverdict [ns]: " + this.verdictTime
+                + "\nscan [ns]: " + this.scanTime;
+    }
+}
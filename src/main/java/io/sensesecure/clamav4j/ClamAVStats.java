@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+/**
+ * Load of clamd as reported by its STATS command: the threads of its pool,
+ * the requests waiting for one, and its memory use.
+ */
+public class ClamAVStats {
+
+    private final int pools;
+    private final String state;
+    private final int threadsLive;
+    private final int threadsIdle;
+    private final int threadsMax;
+    private final int queue;
+    private final long heap;
+    private final long used;
+    private final long poolsUsed;
+    private final long poolsTotal;
+
+    /**
+     * Constructor.
+     *
+     * @param clamdResponse Response from the clamd STATS command, up to its
+     * END line.
+     */
+    public ClamAVStats(String clamdResponse) {
+        int parsedPools = 0;
+        String parsedState = null;
+        int live = -1;
+        int idle = -1;
+        int max = -1;
+        int items = -1;
+        long parsedHeap = -1;
+        long parsedUsed = -1;
+        long parsedPoolsUsed = -1;
+        long parsedPoolsTotal = -1;
+        for (String line : clamdResponse.split("\n")) {
+            if (line.startsWith("POOLS:")) {
+                parsedPools = Integer.parseInt(line.substring(6).trim());
+            } else if (line.startsWith("STATE:")) {
+                parsedState = line.substring(6).trim();
+            } else if (line.startsWith("THREADS:")) {
+                String[] fields = line.substring(8).trim().split("\\s+");
+                live = Integer.parseInt(value(fields, "live"));
+                idle = Integer.parseInt(value(fields, "idle"));
+                max = Integer.parseInt(value(fields, "max"));
+            } else if (line.startsWith("QUEUE:")) {
+                items = Integer.parseInt(line.substring(6).trim().split("\\s+")[0]);
+            } else if (line.startsWith("MEMSTATS:")) {
+                String[] fields = line.substring(9).trim().split("\\s+");
+                parsedHeap = megabytes(value(fields, "heap"));
+                parsedUsed = megabytes(value(fields, "used"));
+                parsedPoolsUsed = megabytes(value(fields, "pools_used"));
+                parsedPoolsTotal = megabytes(value(fields, "pools_total"));
+            }
+        }
+        if (live < 0 || items < 0) {
+            throw new IllegalArgumentException("Not a STATS response: " + clamdResponse);
+        }
+        this.pools = parsedPools;
+        this.state = parsedState;
+        this.threadsLive = live;
+        this.threadsIdle = idle;
+        this.threadsMax = max;
+        this.queue = items;
+        this.heap = parsedHeap;
+        this.used = parsedUsed;
+        this.poolsUsed = parsedPoolsUsed;
+        this.poolsTotal = parsedPoolsTotal;
+    }
+
+    /**
+     * @return Number of thread pools.
+     */
+    public int getPools() {
+        return this.pools;
+    }
+
+    /**
+     * @return State of the signature database, e.g. "VALID PRIMARY".
+     */
+    public String getState() {
+        return this.state;
+    }
+
+    /**
+     * @return Number of threads started.
+     */
+    public int getThreadsLive() {
+        return this.threadsLive;
+    }
+
+    /**
+     * @return Number of started threads waiting for work.
+     */
+    public int getThreadsIdle() {
+        return this.threadsIdle;
+    }
+
+    /**
+     * @return Number of threads scanning or serving a command.
+     */
+    public int getThreadsBusy() {
+        return this.threadsLive - this.threadsIdle;
+    }
+
+    /**
+     * @return MaxThreads of clamd.
+     */
+    public int getThreadsMax() {
+        return this.threadsMax;
+    }
+
+    /**
+     * @return Number of requests waiting for a thread.
+     */
+    public int getQueue() {
+        return this.queue;
+    }
+
+    /**
+     * @return Heap of clamd in bytes, -1 if not reported.
+     */
+    public long getHeap() {
+        return this.heap;
+    }
+
+    /**
+     * @return Memory in use by clamd in bytes, -1 if not reported.
+     */
+    public long getUsed() {
+        return this.used;
+    }
+
+    /**
+     * @return Memory of the signature pools in use in bytes, -1 if not
+     * reported.
+     */
+    public long getPoolsUsed() {
+        return this.poolsUsed;
+    }
+
+    /**
+     * @return Memory of the signature pools in bytes, -1 if not reported.
+     */
+    public long getPoolsTotal() {
+        return this.poolsTotal;
+    }
+
+    private static String value(String[] fields, String name) {
+        for (int index = 0; index + 1 < fields.length; index++) {
+            if (name.equals(fields[index])) {
+                return fields[index + 1];
+            }
+        }
+        return "N/A";
+    }
+
+    private static long megabytes(String value) {
+        if (!value.endsWith("M")) {
+            return -1;
+        }
+        return (long) (Double.parseDouble(value.substring(0, value.length() - 1)) * 1048576);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return ClamAVStats String
+     */
+    @Override
+    public String toString() {
+        return "ClamAVStats [state=" + state + ", threadsLive=" + threadsLive + ", threadsIdle=" + threadsIdle + ", threadsMax=" + threadsMax + ", queue=" + queue + ", used=" + used + "]";
+    }
+}
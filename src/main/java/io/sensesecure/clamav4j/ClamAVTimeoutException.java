@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown when clamd does not respond in time. The subclasses tell which phase
+ * of the request timed out. The connection is closed, as it is left in an
+ * unknown state.
+ */
+public class ClamAVTimeoutException extends SocketTimeoutException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ClamAVTimeoutException(String message) {
+        super(message);
+    }
+}
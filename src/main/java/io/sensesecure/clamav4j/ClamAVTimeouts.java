@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timeouts in milliseconds of the phases of a request, 0 for no limit, and
+ * the timer that enforces those that cannot be passed to a channel
+ * operation.
+ */
+final class ClamAVTimeouts {
+
+    static final ClamAVTimeouts NONE = of(0);
+
+    final int connect;
+    final int write;
+    final int reply;
+
+    ClamAVTimeouts(int connect, int write, int reply) {
+        this.connect = connect;
+        this.write = write;
+        this.reply = reply;
+    }
+
+    static ClamAVTimeouts of(int timeout) {
+        return new ClamAVTimeouts(timeout, timeout, timeout);
+    }
+
+    /**
+     * Runs a task after a delay on the timer shared by all clients. The task
+     * must not block.
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long millis) {
+        return timer.schedule(task, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a watchdog closing a channel once the timeout elapsed without
+     * progress, which makes a blocked operation on it fail.
+     *
+     * @param channel Channel to close.
+     * @param timeout Milliseconds without progress, 0 for no limit.
+     * @return Watchdog to report progress to and to cancel.
+     */
+    static ClamAVWatchdog watch(Channel channel, int timeout) {
+        if (timeout <= 0) {
+            return ClamAVWatchdog.NONE;
+        }
+        ClamAVWatchdog watchdog = new ClamAVWatchdog(channel, timeout);
+        watchdog.future = schedule(watchdog, timeout);
+        return watchdog;
+    }
+
+    /**
+     * Closes a channel when its deadline passes. Progress moves the deadline,
+     * which the watchdog notices when it wakes up, so reporting progress is a
+     * volatile write rather than a new timer task.
+     */
+    static final class ClamAVWatchdog implements Runnable {
+
+        static final ClamAVWatchdog NONE = new ClamAVWatchdog(null, 0);
+
+        private final Channel channel;
+        private final long timeout;
+        private volatile long deadline;
+        private volatile boolean expired = false;
+        private volatile boolean cancelled = false;
+        private volatile ScheduledFuture<?> future;
+
+        private ClamAVWatchdog(Channel channel, int timeout) {
+            this.channel = channel;
+            this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+            this.deadline = System.nanoTime() + this.timeout;
+        }
+
+        void touch() {
+            if (this.channel != null) {
+                this.deadline = System.nanoTime() + this.timeout;
+            }
+        }
+
+        /**
+         * @return true if the channel was closed because the deadline passed.
+         */
+        boolean isExpired() {
+            return this.expired;
+        }
+
+        void cancel() {
+            this.cancelled = true;
+            ScheduledFuture<?> scheduled = this.future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (this.cancelled) {
+                return;
+            }
+            long remaining = this.deadline - System.nanoTime();
+            if (remaining > 0) {
+                this.future = timer.schedule(this, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+            this.expired = true;
+            try {
+                this.channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ClamAVTimeouts.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+
+    private static final ScheduledThreadPoolExecutor timer = newTimer();
+
+    private static ScheduledThreadPoolExecutor newTimer() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "clamav4j-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
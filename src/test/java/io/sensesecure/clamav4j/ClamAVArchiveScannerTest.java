@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ClamAVArchiveScannerTest {
+
+    /**
+     * The archive as a whole and its entries must not wait for each other
+     * when the client runs one scan at a time.
+     */
+    @Test(timeout = 30000)
+    public void testScanInputStreamWithOneScanInFlight() throws Exception {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(archive)) {
+            zipOutputStream.putNextEntry(new ZipEntry("large.bin"));
+            zipOutputStream.write(new byte[1048576]);
+            zipOutputStream.putNextEntry(new ZipEntry("infected.txt"));
+            zipOutputStream.write(MockClamd.MARKER);
+        }
+        try (MockClamd mockClamd = new MockClamd(); ClamAVAsync client = new ClamAVAsync(mockClamd.getAddress(), 5000)) {
+            ClamAVSerialScanner serial = new ClamAVSerialScanner(client);
+            ClamAVArchiveScanner scanner = new ClamAVArchiveScanner(serial::scan, 4);
+            scanner.setCapacity(65536);
+            ClamAVArchiveScanner.ClamAVArchiveResult result = scanner.scan(new ByteArrayInputStream(archive.toByteArray()));
+            assertTrue(result.getErrors().isEmpty());
+            assertEquals(1, result.getInfected().size());
+            assertEquals("infected.txt", result.getInfected().get(0).getName());
+            assertTrue(result.getContainerResult() != null);
+        }
+    }
+
+    /**
+     * Starts each scan once the previous one is over, like a client with a
+     * pool of one session.
+     */
+    private static final class ClamAVSerialScanner {
+
+        private final ClamAVAsync client;
+        private CompletableFuture<ClamAVScanResult> last = CompletableFuture.completedFuture(null);
+
+        private ClamAVSerialScanner(ClamAVAsync client) {
+            this.client = client;
+        }
+
+        private synchronized CompletableFuture<ClamAVScanResult> scan(ClamAVSource source) {
+            this.last = this.last.handle((result, exc) -> null).thenCompose(ignored -> this.client.scan(source));
+            return this.last;
+        }
+    }
+}
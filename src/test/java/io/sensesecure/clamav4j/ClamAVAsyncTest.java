@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ClamAVAsyncTest {
+
+    /**
+     * A pooled session that clamd dropped while idle is replaced by a new
+     * one for content that can be sent again.
+     */
+    @Test(timeout = 30000)
+    public void testScanByteBufferOnDroppedSession() throws Exception {
+        try (MockClamd mockClamd = new MockClamd(); ClamAVAsync client = new ClamAVAsync(mockClamd.getAddress(), 5000)) {
+            client.setPool(client.newPool(1));
+            assertFalse(client.scan(ByteBuffer.wrap(new byte[16])).get(10, TimeUnit.SECONDS).isInfected());
+            mockClamd.dropSessions();
+            assertTrue(client.scan(ByteBuffer.wrap(MockClamd.MARKER)).get(10, TimeUnit.SECONDS).isInfected());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testScanPathOnDroppedSession() throws Exception {
+        Path path = Files.createTempFile("clamav4j", ".bin");
+        try (MockClamd mockClamd = new MockClamd(); ClamAVAsync client = new ClamAVAsync(mockClamd.getAddress(), 5000)) {
+            Files.write(path, MockClamd.MARKER);
+            client.setPool(client.newPool(1));
+            assertFalse(client.scan(ByteBuffer.wrap(new byte[16])).get(10, TimeUnit.SECONDS).isInfected());
+            mockClamd.dropSessions();
+            assertTrue(client.scan(path).get(10, TimeUnit.SECONDS).isInfected());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * With a cache, content that can be read again is digested before it is
+     * sent, but never by the caller.
+     */
+    @Test(timeout = 30000)
+    public void testScanWithCacheReadsOffCaller() throws Exception {
+        try (MockClamd mockClamd = new MockClamd(); ClamAVAsync client = new ClamAVAsync(mockClamd.getAddress(), 5000)) {
+            client.setCache(new ClamAVCache(16));
+            ClamAVCountingSource source = new ClamAVCountingSource(MockClamd.MARKER);
+            assertTrue(client.scan(source).get(10, TimeUnit.SECONDS).isInfected());
+            assertEquals(2, source.passes);
+            assertFalse(source.readByCaller);
+            source = new ClamAVCountingSource(MockClamd.MARKER);
+            assertTrue(client.scan(source).get(10, TimeUnit.SECONDS).isInfected());
+            assertEquals(1, source.passes);
+            assertFalse(source.readByCaller);
+        }
+    }
+
+    /**
+     * With a cache and a coalescer as well, the content is read once for the
+     * digest of both, and once to be sent.
+     */
+    @Test(timeout = 30000)
+    public void testScanWithCacheAndCoalescerReadsOffCaller() throws Exception {
+        try (MockClamd mockClamd = new MockClamd(); ClamAVAsync client = new ClamAVAsync(mockClamd.getAddress(), 5000)) {
+            client.setCache(new ClamAVCache(16));
+            client.setCoalescer(new ClamAVCoalescer());
+            ClamAVCountingSource source = new ClamAVCountingSource(MockClamd.MARKER);
+            assertTrue(client.scan(source).get(10, TimeUnit.SECONDS).isInfected());
+            assertEquals(2, source.passes);
+            assertFalse(source.readByCaller);
+            source = new ClamAVCountingSource(MockClamd.MARKER);
+            assertTrue(client.scan(source).get(10, TimeUnit.SECONDS).isInfected());
+            assertEquals(1, source.passes);
+            assertFalse(source.readByCaller);
+        }
+    }
+
+    /**
+     * Counts how often the content is read to the end, and whether the
+     * thread that created it reads it.
+     */
+    private static final class ClamAVCountingSource implements ClamAVSource {
+
+        private final Thread caller = Thread.currentThread();
+        private final byte[] content;
+        private boolean handedOut = false;
+        private volatile int passes = 0;
+        private volatile boolean readByCaller = false;
+
+        private ClamAVCountingSource(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            if (Thread.currentThread() == this.caller) {
+                this.readByCaller = true;
+            }
+            if (this.handedOut) {
+                this.passes++;
+                return null;
+            }
+            this.handedOut = true;
+            return ByteBuffer.wrap(this.content);
+        }
+
+        @Override
+        public boolean rewind() {
+            this.handedOut = false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ClamAVClusterTest {
+
+    /**
+     * Content read only once must reach clamd in full when the node client
+     * digests it for its cache or coalescer.
+     */
+    @Test(timeout = 30000)
+    public void testScanInputStreamOnNodeWithCacheAndCoalescer() throws Exception {
+        assertTrue(scanInputStream(new ClamAVCache(100), new ClamAVCoalescer()).isInfected());
+    }
+
+    @Test(timeout = 30000)
+    public void testScanInputStreamOnNodeWithCache() throws Exception {
+        assertTrue(scanInputStream(new ClamAVCache(100), null).isInfected());
+    }
+
+    @Test(timeout = 30000)
+    public void testScanInputStreamOnNodeWithCoalescer() throws Exception {
+        assertTrue(scanInputStream(null, new ClamAVCoalescer()).isInfected());
+    }
+
+    /**
+     * A node that accepts connections but never answers must not keep the
+     * other nodes from being put back in rotation.
+     */
+    @Test(timeout = 30000)
+    public void testHealthCheckPastHungNode() throws Exception {
+        try (ServerSocketChannel hung = ServerSocketChannel.open(); MockClamd mockClamd = new MockClamd()) {
+            hung.bind(new InetSocketAddress("localhost", 0));
+            try (ClamAVCluster cluster = new ClamAVCluster(Arrays.asList(hung.getLocalAddress(), mockClamd.getAddress()), 0, 100)) {
+                ClamAVCluster.ClamAVClusterNode node = cluster.getNodes().get(1);
+                Thread.sleep(200);
+                node.down(new IOException("Test"));
+                for (int wait = 0; wait < 50 && !node.isHealthy(); wait++) {
+                    Thread.sleep(100);
+                }
+                assertTrue(node.isHealthy());
+            }
+        }
+    }
+
+    /**
+     * Content to be hedged is buffered, but never by the caller.
+     */
+    @Test(timeout = 30000)
+    public void testHedgedScanReadsOffCaller() throws Exception {
+        try (MockClamd first = new MockClamd(); MockClamd second = new MockClamd();
+                ClamAVCluster cluster = new ClamAVCluster(Arrays.asList(first.getAddress(), second.getAddress()), 5000)) {
+            cluster.setHedgePercentile(95);
+            for (int i = 0; i < ClamAVCluster.minHedgeSamples; i++) {
+                cluster.scan(ClamAVSource.of(ByteBuffer.wrap(new byte[16]))).get(10, TimeUnit.SECONDS);
+            }
+            final Thread caller = Thread.currentThread();
+            final boolean[] readByCaller = new boolean[1];
+            final ClamAVSource content = ClamAVSource.of(ByteBuffer.wrap(MockClamd.MARKER));
+            ClamAVSource source = new ClamAVSource() {
+
+                @Override
+                public ByteBuffer next() throws IOException {
+                    readByCaller[0] |= Thread.currentThread() == caller;
+                    return content.next();
+                }
+
+                @Override
+                public boolean rewind() throws IOException {
+                    return content.rewind();
+                }
+            };
+            assertTrue(cluster.scan(source).get(10, TimeUnit.SECONDS).isInfected());
+            assertFalse(readByCaller[0]);
+        }
+    }
+
+    /**
+     * Content larger than the StreamMaxLength of a node is rejected up front.
+     */
+    @Test(timeout = 30000)
+    public void testScanPastStreamMaxLength() throws Exception {
+        try (MockClamd mockClamd = new MockClamd(); ClamAVCluster cluster = new ClamAVCluster(Collections.singletonList(mockClamd.getAddress()), 5000)) {
+            cluster.getNodes().get(0).getClient().setStreamMaxLength(8);
+            try {
+                cluster.scan(ClamAVSource.of(ByteBuffer.wrap(new byte[16]))).get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof ClamAVSizeLimitException);
+            }
+        }
+    }
+
+    private static ClamAVScanResult scanInputStream(ClamAVCache cache, ClamAVCoalescer coalescer) throws Exception {
+        try (MockClamd mockClamd = new MockClamd(); ClamAVCluster cluster = new ClamAVCluster(Collections.singletonList(mockClamd.getAddress()), 5000)) {
+            ClamAVAsync client = cluster.getNodes().get(0).getClient();
+            client.setCache(cache);
+            client.setCoalescer(coalescer);
+            return cluster.scan(new ByteArrayInputStream(MockClamd.MARKER)).get(10, TimeUnit.SECONDS);
+        }
+    }
+}
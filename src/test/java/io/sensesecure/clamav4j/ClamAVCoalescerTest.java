@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ClamAVCoalescerTest {
+
+    /**
+     * A scan waiting for the same content read only once gives up its own
+     * copy, and still has the content to try again if the sent scan fails.
+     */
+    @Test
+    public void testFollowerRetriesWithSharedContent() throws Exception {
+        ClamAVCoalescer coalescer = new ClamAVCoalescer();
+        ClamAVCoalescer.ClamAVFlight leader = coalescer.prepare(ClamAVSource.of(new ByteArrayInputStream(MockClamd.MARKER)), 4);
+        ClamAVCoalescer.ClamAVFlight follower = coalescer.prepare(ClamAVSource.of(new ByteArrayInputStream(MockClamd.MARKER)), 4);
+        assertTrue(coalescer.join(leader));
+        assertFalse(coalescer.join(follower));
+        coalescer.land(leader, null, new IOException("Test"));
+        assertTrue(follower.getFuture().isCompletedExceptionally());
+        assertTrue(follower.getSource().rewind());
+        assertEquals(ByteBuffer.wrap(MockClamd.MARKER), ClamAVCoalescer.buffer(follower.getSource(), Integer.MAX_VALUE));
+    }
+
+    /**
+     * The blocking client buffers content read only once off the calling
+     * thread, and sends all of it.
+     */
+    @Test(timeout = 30000)
+    public void testScanInputStreamWithBlockingClient() throws Exception {
+        try (MockClamd mockClamd = new MockClamd()) {
+            ClamAV clamAV = new ClamAV(mockClamd.getAddress(), 5000);
+            clamAV.setCoalescer(new ClamAVCoalescer());
+            assertTrue(ClamAVScanResult.valueOf(clamAV.scan(new ByteArrayInputStream(MockClamd.MARKER))).isInfected());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ClamAVDirectoryScannerTest {
+
+    /**
+     * Interrupting the caller stops a traversal that waits for a scan slot.
+     */
+    @Test(timeout = 30000)
+    public void testInterruptWhileWaitingForSlot() throws Exception {
+        Path root = Files.createTempDirectory("clamav4j");
+        try {
+            for (int i = 0; i < 8; i++) {
+                Files.write(Files.createDirectories(root.resolve("dir" + i)).resolve("file"), new byte[16]);
+            }
+            ClamAVDirectoryScanner scanner = new ClamAVDirectoryScanner(source -> new CompletableFuture<ClamAVScanResult>(), 1);
+            scanner.setParallelism(2);
+            final Thread caller = Thread.currentThread();
+            Thread interrupter = new Thread(() -> {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                caller.interrupt();
+            });
+            interrupter.start();
+            try {
+                scanner.scan(root, result -> {
+                });
+                fail();
+            } catch (InterruptedException ex) {
+                // Expected.
+            } finally {
+                interrupter.join();
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ClamAVMultiplexerTest {
+
+    /**
+     * A reply during the upload stops it at the next chunk, and the content
+     * is not read once the scan is over.
+     */
+    @Test(timeout = 30000)
+    public void testScanRejectedDuringUpload() throws Exception {
+        try (MockClamd mockClamd = new MockClamd(); ClamAVAsync client = new ClamAVAsync(mockClamd.getAddress(), 5000)) {
+            mockClamd.setStreamMaxLength(1048576);
+            client.setMultiplexer(client.newMultiplexer(1, 4));
+            ClamAVEndlessSource source = new ClamAVEndlessSource();
+            try {
+                client.scan(source).get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof ClamAVSizeLimitException);
+            }
+            assertFalse(source.readAfterClose);
+            assertTrue(client.scan(ByteBuffer.wrap(MockClamd.MARKER)).get(10, TimeUnit.SECONDS).isInfected());
+        }
+    }
+
+    /**
+     * Hands out chunks until closed.
+     */
+    private static final class ClamAVEndlessSource implements ClamAVSource {
+
+        private volatile boolean closed = false;
+        private volatile boolean readAfterClose = false;
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (this.closed) {
+                this.readAfterClose = true;
+                throw new IOException("Source is closed");
+            }
+            return ByteBuffer.allocate(65536);
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+}
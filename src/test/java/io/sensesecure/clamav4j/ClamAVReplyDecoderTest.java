@@ -0,0 +1,214 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ClamAVReplyDecoderTest {
+
+    @Test
+    public void testReplySplitAcrossReads() throws Exception {
+        ClamAVReplyDecoder decoder = new ClamAVReplyDecoder();
+        feed(decoder, "stream: Eicar-");
+        assertFalse(decoder.next());
+        feed(decoder, "Signature FOUND");
+        assertFalse(decoder.next());
+        feed(decoder, "\0");
+        assertTrue(decoder.next());
+        assertEquals("Eicar-Signature", decoder.getScanResult().getSignature());
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void testSeveralRepliesInOneRead() throws Exception {
+        ClamAVReplyDecoder decoder = new ClamAVReplyDecoder();
+        feed(decoder, "1: stream: OK\0002: stream: Eicar-Signature FOUND\0003: PO");
+        assertTrue(decoder.next());
+        assertEquals(1, decoder.getId());
+        assertSame(ClamAVScanResult.OK, decoder.getScanResult());
+        assertTrue(decoder.next());
+        assertEquals(2, decoder.getId());
+        assertEquals("Eicar-Signature", decoder.getScanResult().getSignature());
+        assertFalse(decoder.next());
+        feed(decoder, "NG\0");
+        assertTrue(decoder.next());
+        assertEquals(3, decoder.getId());
+        assertTrue(decoder.is("PONG"));
+        assertEquals("3: PONG", decoder.toString());
+    }
+
+    @Test
+    public void testReplyWithoutId() throws Exception {
+        ClamAVReplyDecoder decoder = decode("stream: OK");
+        assertEquals(-1, decoder.getId());
+        assertEquals("stream: OK", decoder.getReply());
+        decoder = decode("12345: PONG");
+        assertEquals(12345, decoder.getId());
+        assertEquals("PONG", decoder.getReply());
+        // A number without the separator is part of the reply.
+        decoder = decode("42 PONG");
+        assertEquals(-1, decoder.getId());
+        assertEquals("42 PONG", decoder.getReply());
+    }
+
+    @Test
+    public void testLastReplyWithoutNul() throws Exception {
+        ClamAVReplyDecoder decoder = new ClamAVReplyDecoder();
+        feed(decoder, "stream: OK");
+        assertFalse(decoder.next());
+        assertTrue(decoder.finish());
+        assertSame(ClamAVScanResult.OK, decoder.getScanResult());
+        assertFalse(decoder.finish());
+    }
+
+    @Test
+    public void testScanResults() throws Exception {
+        assertSame(ClamAVScanResult.OK, decode("stream: OK").getScanResult());
+        ClamAVScanResult found = decode("1: stream: Win.Test.EICAR_HDB-1 FOUND").getScanResult();
+        assertTrue(found.isInfected());
+        assertEquals("Win.Test.EICAR_HDB-1", found.getSignature());
+        try {
+            decode("INSTREAM size limit exceeded. ERROR").getScanResult();
+            fail();
+        } catch (ClamAVSizeLimitException ex) {
+            assertEquals("INSTREAM size limit exceeded. ERROR", ex.getMessage());
+        }
+        ClamAVReplyDecoder error = decode("2: Can't allocate memory ERROR");
+        assertTrue(error.isError());
+        try {
+            error.getScanResult();
+            fail();
+        } catch (ClamAVException ex) {
+            assertFalse(ex instanceof ClamAVSizeLimitException);
+            assertEquals("Can't allocate memory ERROR", ex.getMessage());
+        }
+        try {
+            decode("stream:  FOUND").getScanResult();
+            fail();
+        } catch (ClamAVException ex) {
+            // No signature.
+        }
+    }
+
+    @Test
+    public void testFileResults() throws Exception {
+        ClamAVReplyDecoder decoder = decode("/srv/a: b/clean.txt: OK");
+        assertTrue(decoder.isFileResult());
+        assertEquals("/srv/a: b/clean.txt", decoder.getPath(0));
+        assertSame(ClamAVScanResult.OK, decoder.getFileResult());
+        decoder = decode("/srv/a: b/eicar.com: Eicar-Signature FOUND");
+        assertTrue(decoder.isFileResult());
+        assertEquals("/srv/a: b/eicar.com", decoder.getPath(0));
+        assertEquals("Eicar-Signature", decoder.getFileResult().getSignature());
+        decoder = decode("/srv/a: b/locked: Access denied. ERROR");
+        assertTrue(decoder.isFileResult());
+        // The path of an error ends at the first separator past the path requested.
+        assertEquals("/srv/a", decoder.getPath(0));
+        assertEquals("/srv/a: b/locked", decoder.getPath("/srv/a: b".length()));
+        try {
+            decoder.getFileResult();
+            fail();
+        } catch (ClamAVException ex) {
+            assertEquals("/srv/a: b/locked: Access denied. ERROR", ex.getMessage());
+        }
+        assertTrue(decoder.isAccessError());
+        assertTrue(decode("/srv/gone: lstat() failed: No such file or directory. ERROR").isAccessError());
+        assertTrue(decode("/srv/root: Can't open file or directory ERROR").isAccessError());
+        decoder = decode("/srv/a: b/broken.zip: Can't allocate memory ERROR");
+        assertTrue(decoder.isFileResult());
+        assertFalse(decoder.isAccessError());
+        assertFalse(decode("/srv/Access denied.txt: OK").isAccessError());
+        decoder = decode("/srv/excluded: Excluded");
+        assertFalse(decoder.isFileResult());
+        decoder = decode("PONG");
+        assertNull(decoder.getPath(0));
+        assertFalse(decoder.isFileResult());
+    }
+
+    @Test
+    public void testBufferGrowsUpToMaxLength() throws Exception {
+        ClamAVReplyDecoder decoder = new ClamAVReplyDecoder(1024);
+        StringBuilder signature = new StringBuilder();
+        while (signature.length() < 900) {
+            signature.append("Long.Signature.");
+        }
+        feed(decoder, "stream: " + signature + " FOUND\0");
+        assertTrue(decoder.next());
+        assertEquals(signature.toString(), decoder.getScanResult().getSignature());
+    }
+
+    @Test
+    public void testReplyPastMaxLength() throws Exception {
+        ClamAVReplyDecoder decoder = new ClamAVReplyDecoder(64);
+        try {
+            for (int i = 0; i < 64; i++) {
+                feed(decoder, "xx");
+                assertFalse(decoder.next());
+            }
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("64"));
+        }
+    }
+
+    /**
+     * Replies consumed at the front make room for the rest, so a long
+     * exchange does not grow the buffer past the longest reply.
+     */
+    @Test
+    public void testBufferCompactedForPartialReply() throws Exception {
+        ClamAVReplyDecoder decoder = new ClamAVReplyDecoder(32);
+        feed(decoder, "1: str");
+        for (int id = 1; id < 100; id++) {
+            feed(decoder, "eam: OK\0" + (id + 1) + ": str");
+            assertTrue(decoder.next());
+            assertEquals(id, decoder.getId());
+            assertSame(ClamAVScanResult.OK, decoder.getScanResult());
+            assertFalse(decoder.next());
+        }
+    }
+
+    private static ClamAVReplyDecoder decode(String reply) throws IOException {
+        ClamAVReplyDecoder decoder = new ClamAVReplyDecoder();
+        feed(decoder, reply + "\0");
+        assertTrue(decoder.next());
+        return decoder;
+    }
+
+    /**
+     * Hands bytes to the decoder as a read from clamd would, as many as fit
+     * at a time.
+     */
+    private static void feed(ClamAVReplyDecoder decoder, String bytes) throws IOException {
+        byte[] array = bytes.getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        while (offset < array.length) {
+            ByteBuffer buffer = decoder.getBuffer();
+            int length = Math.min(buffer.remaining(), array.length - offset);
+            buffer.put(array, offset, length);
+            offset += length;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ClamAVSourceTest {
+
+    /**
+     * A file source that was closed, e.g. by a scan that failed, opens the
+     * file again when it is read once more.
+     */
+    @Test
+    public void testReadPathSourceAfterClose() throws Exception {
+        Path path = Files.createTempFile("clamav4j", ".bin");
+        try {
+            Files.write(path, MockClamd.MARKER);
+            ClamAVSource source = ClamAVSource.of(path);
+            assertEquals(ByteBuffer.wrap(MockClamd.MARKER), source.next());
+            source.close();
+            assertTrue(source.rewind());
+            assertEquals(ByteBuffer.wrap(MockClamd.MARKER), source.next());
+            source.close();
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
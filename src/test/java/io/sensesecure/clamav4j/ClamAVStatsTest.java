@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ClamAVStatsTest {
+
+    /**
+     * Reply of clamd 0.103 with two scans running and one waiting.
+     */
+    private static final String BUSY = "POOLS: 1\n"
+            + "\n"
+            + "STATE: VALID PRIMARY\n"
+            + "THREADS: live 3  idle 1 max 12 idle-timeout 30\n"
+            + "QUEUE: 1 items\n"
+            + "\tINSTREAM 0.004215 \n"
+            + "\tSTATS 0.000071 \n"
+            + "\n"
+            + "MEMSTATS: heap 9.082M mmap 0.000M used 6.902M free 2.184M releasable 0.129M pools 1 pools_used 565.979M pools_total 565.999M\n"
+            + "END";
+
+    /**
+     * Reply of clamd on a libc without mallinfo, which reports no memory.
+     */
+    private static final String WITHOUT_MEMSTATS = "POOLS: 1\n"
+            + "\n"
+            + "STATE: VALID PRIMARY\n"
+            + "THREADS: live 1  idle 0 max 10 idle-timeout 30\n"
+            + "QUEUE: 0 items\n"
+            + "\tSTATS 0.000068 \n"
+            + "\n"
+            + "MEMSTATS: heap N/A mmap N/A used N/A free N/A releasable N/A pools 1 pools_used 565.979M pools_total 565.999M\n"
+            + "END";
+
+    @Test
+    public void testParseBusyDaemon() {
+        ClamAVStats stats = new ClamAVStats(BUSY);
+        assertEquals(1, stats.getPools());
+        assertEquals("VALID PRIMARY", stats.getState());
+        assertEquals(3, stats.getThreadsLive());
+        assertEquals(1, stats.getThreadsIdle());
+        assertEquals(2, stats.getThreadsBusy());
+        assertEquals(12, stats.getThreadsMax());
+        assertEquals(1, stats.getQueue());
+        assertEquals((long) (9.082 * 1048576), stats.getHeap());
+        assertEquals((long) (6.902 * 1048576), stats.getUsed());
+        assertEquals((long) (565.979 * 1048576), stats.getPoolsUsed());
+        assertEquals((long) (565.999 * 1048576), stats.getPoolsTotal());
+    }
+
+    @Test
+    public void testParseWithoutMemoryStatistics() {
+        ClamAVStats stats = new ClamAVStats(WITHOUT_MEMSTATS);
+        // The thread serving STATS itself.
+        assertEquals(1, stats.getThreadsBusy());
+        assertEquals(10, stats.getThreadsMax());
+        assertEquals(0, stats.getQueue());
+        assertEquals(-1, stats.getHeap());
+        assertEquals(-1, stats.getUsed());
+        assertEquals((long) (565.979 * 1048576), stats.getPoolsUsed());
+    }
+
+    @Test
+    public void testRejectMalformedReply() {
+        String[] malformed = {
+            "",
+            "UNKNOWN COMMAND",
+            // No QUEUE line, e.g. cut short.
+            "POOLS: 1\nSTATE: VALID PRIMARY\nTHREADS: live 1  idle 0 max 10 idle-timeout 30\n",
+            "POOLS: 1\nSTATE: VALID PRIMARY\nTHREADS: live one idle 0 max 10\nQUEUE: 0 items\nEND",
+            "POOLS: 1\nSTATE: VALID PRIMARY\nTHREADS: live 1 idle 0\nQUEUE: 0 items\nEND",
+            "POOLS: 1\nSTATE: VALID PRIMARY\nTHREADS: live 1  idle 0 max 10 idle-timeout 30\nQUEUE: many items\nEND"
+        };
+        for (String reply : malformed) {
+            try {
+                new ClamAVStats(reply);
+                fail(reply);
+            } catch (IllegalArgumentException ex) {
+                // Expected, number format errors included.
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ClamAVTest {
+
+    /**
+     * Only files clamd could not open are streamed, an error scanning a file
+     * is reported as it is, and the command holds a slot of the limiter.
+     */
+    @Test(timeout = 30000)
+    public void testPathScanStreamsOnlyWhatClamdCannotOpen() throws Exception {
+        Path directory = Files.createTempDirectory("clamav4j");
+        Path locked = Files.write(directory.resolve("locked"), MockClamd.MARKER);
+        Path missing = Files.write(directory.resolve("missing"), MockClamd.MARKER);
+        Path broken = Files.write(directory.resolve("broken"), MockClamd.MARKER);
+        Path clean = Files.write(directory.resolve("clean"), new byte[1]);
+        try (MockClamd mockClamd = new MockClamd()) {
+            mockClamd.setPathReplies(
+                    locked + ": Access denied. ERROR",
+                    missing + ": lstat() failed: No such file or directory. ERROR",
+                    broken + ": Can't allocate memory ERROR",
+                    clean + ": OK");
+            ClamAV clamAV = new ClamAV(mockClamd.getAddress(), 5000);
+            ClamAVLimiter limiter = new ClamAVLimiter(1, 1, 1);
+            // The mock does not speak STATS.
+            limiter.setStatsCheckInterval(0);
+            clamAV.setLimiter(limiter);
+            final Map<Path, ClamAVDirectoryScanner.ClamAVFileResult> results = new HashMap<>();
+            final Map<Path, Integer> inFlight = new HashMap<>();
+            ClamAVDirectoryScanner.ClamAVScanSummary summary = clamAV.scan(directory, ClamAV.Command.CONTSCAN, result -> {
+                results.put(result.getPath(), result);
+                inFlight.put(result.getPath(), limiter.getInFlight());
+            });
+            assertEquals(4, summary.getFiles());
+            assertEquals(2, summary.getInfected());
+            assertEquals(1, summary.getErrors());
+            assertTrue(results.get(locked).isInfected());
+            assertTrue(results.get(missing).isInfected());
+            assertNull(results.get(broken).getResult());
+            assertNotNull(results.get(broken).getError());
+            assertEquals(ClamAVScanResult.OK, results.get(clean).getResult());
+            assertEquals(1, (int) inFlight.get(clean));
+            assertEquals(0, limiter.getInFlight());
+        } finally {
+            for (Path file : new Path[]{locked, missing, broken, clean}) {
+                Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 sensesecure.io.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.sensesecure.clamav4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal clamd for the tests, speaking PING, VERSION and INSTREAM, one
+ * command per connection or several in IDSESSION mode, and answering path
+ * commands with replies set by the test. A stream is reported infected if it
+ * contains the marker, so content lost on the way comes back clean.
+ */
+class MockClamd implements AutoCloseable {
+
+    static final byte[] MARKER = "clamav4j-test-signature".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocketChannel serverSocketChannel;
+    private final ExecutorService connections;
+    private final Set<SocketChannel> sessions = ConcurrentHashMap.newKeySet();
+    private volatile int streamMaxLength = Integer.MAX_VALUE;
+    private volatile String[] pathReplies = {};
+
+    MockClamd() throws IOException {
+        this.serverSocketChannel = ServerSocketChannel.open();
+        this.serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+        this.connections = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "mock-clamd");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.connections.execute(this::accept);
+    }
+
+    SocketAddress getAddress() throws IOException {
+        return this.serverSocketChannel.getLocalAddress();
+    }
+
+    /**
+     * Closes every connection in IDSESSION mode, like clamd after its
+     * IdleTimeout.
+     */
+    void dropSessions() throws IOException {
+        for (SocketChannel channel : this.sessions) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Rejects streams past the given length before they end, like clamd past
+     * its StreamMaxLength. The rest is discarded until the client closes the
+     * connection, so the reply is not lost to a reset.
+     */
+    void setStreamMaxLength(int streamMaxLength) {
+        this.streamMaxLength = streamMaxLength;
+    }
+
+    /**
+     * Answers SCAN, CONTSCAN, MULTISCAN and ALLMATCHSCAN with the given
+     * replies, one per line, whatever the path.
+     */
+    void setPathReplies(String... pathReplies) {
+        this.pathReplies = pathReplies;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocketChannel.close();
+        this.connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (this.serverSocketChannel.isOpen()) {
+            try {
+                final SocketChannel socketChannel = this.serverSocketChannel.accept();
+                this.connections.execute(() -> serve(socketChannel));
+            } catch (IOException ex) {
+                return;
+            }
+        }
+    }
+
+    private void serve(SocketChannel socketChannel) {
+        try (SocketChannel channel = socketChannel) {
+            boolean session = false;
+            int id = 0;
+            do {
+                String command = command(channel);
+                if (command.endsWith("IDSESSION")) {
+                    session = true;
+                    this.sessions.add(channel);
+                    continue;
+                }
+                if (command.endsWith("END")) {
+                    return;
+                }
+                String reply;
+                boolean rejected = false;
+                if (command.endsWith("PING")) {
+                    reply = "PONG";
+                } else if (command.endsWith("VERSION")) {
+                    reply = "ClamAV 0.103.8/26734/Mon Dec  5 08:00:00 2022";
+                } else if (command.endsWith("INSTREAM")) {
+                    byte[] content = stream(channel, this.streamMaxLength);
+                    rejected = content == null;
+                    if (rejected) {
+                        reply = "INSTREAM size limit exceeded. ERROR";
+                    } else {
+                        reply = contains(content, MARKER) ? "stream: Test.Signature FOUND" : "stream: OK";
+                    }
+                } else if (command.contains("SCAN ")) {
+                    reply = String.join("\0", this.pathReplies);
+                } else {
+                    reply = "UNKNOWN COMMAND";
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(((session ? ++id + ": " : "") + reply + "\0").getBytes(StandardCharsets.US_ASCII));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (rejected) {
+                    discard(channel);
+                    return;
+                }
+            } while (session);
+        } catch (IOException ex) {
+            // The client went away.
+        } finally {
+            this.sessions.remove(socketChannel);
+        }
+    }
+
+    private static String command(SocketChannel channel) throws IOException {
+        StringBuilder command = new StringBuilder();
+        ByteBuffer b = ByteBuffer.allocate(1);
+        while (true) {
+            b.clear();
+            if (channel.read(b) < 0) {
+                throw new EOFException();
+            }
+            if (b.get(0) == 0 || b.get(0) == '\n') {
+                return command.toString();
+            }
+            command.append((char) b.get(0));
+        }
+    }
+
+    /**
+     * @return Content of the stream, or null once it is past the limit.
+     */
+    private static byte[] stream(SocketChannel channel, int maxLength) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        while (true) {
+            int length = read(channel, 4).getInt();
+            if (length == 0) {
+                return content.toByteArray();
+            }
+            content.write(read(channel, length).array());
+            if (content.size() > maxLength) {
+                return null;
+            }
+        }
+    }
+
+    private static void discard(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        while (channel.read(buffer) >= 0) {
+            buffer.clear();
+        }
+    }
+
+    private static ByteBuffer read(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean contains(byte[] content, byte[] marker) {
+        for (int i = 0; i + marker.length <= content.length; i++) {
+            int j = 0;
+            while (j < marker.length && content[i + j] == marker[j]) {
+                j++;
+            }
+            if (j == marker.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+}